@@ -21,7 +21,15 @@ class FourIsogeny extends MontCurve {
     coeff = new F2elm[3];
 
     a = ia;
-    c = F2elm.ONE;
+    c = F2elm.one (ia.getField ());
+  }
+
+
+  public FourIsogeny (F2elm ia, F2elm ic) {
+    coeff = new F2elm[3];
+
+    a = ia;
+    c = ic;
   }
 
 
@@ -31,6 +39,7 @@ class FourIsogeny extends MontCurve {
     a = curve.a;
     c = curve.c;
     a24 = curve.a24;
+    c24 = curve.c24;
     c4 = curve.c4;
     aPlus2c = curve.aPlus2c;
     aMinus2c = curve.aMinus2c;
@@ -46,6 +55,9 @@ class FourIsogeny extends MontCurve {
     // Compute 4-isogeny of a point (px:pz) of order 4. Updates curve parameters and coefficients. 
 
     F2elm px, pz;
+    int phase = OpCounter.enter (OpCounter.ISOG);
+
+    OpCounter.count (OpCounter.GET_ISOG);
 
     px = p.getX();
     pz = p.getZ();
@@ -59,11 +71,16 @@ class FourIsogeny extends MontCurve {
     aPlus2c = F2elm.sqr (px);
     aPlus2c.f2LeftShiftInPlace (1);
     aPlus2c.f2SqrInPlace ();
+
+    OpCounter.exit (phase);
   }
 
 
   public F2Point eval4Isog (F2Point p) {
     F2elm t0, t1, px, pz;
+    int phase = OpCounter.enter (OpCounter.EVAL);
+
+    OpCounter.count (OpCounter.EVAL_ISOG);
 
     px = p.getX ();
     pz = p.getZ ();
@@ -82,7 +99,8 @@ class FourIsogeny extends MontCurve {
     t0 = F2elm.sub (pz, t0);
     px.f2MultInPlace (t1);
     pz.f2MultInPlace (t0);
-    
+
+    OpCounter.exit (phase);
     return new F2Point (px, pz);
   }
 }
@@ -96,7 +114,15 @@ class ThreeIsogeny extends MontCurve {
     coeff = new F2elm[2];
 
     a = ia;
-    c = F2elm.ONE;
+    c = F2elm.one (ia.getField ());
+  }
+
+
+  public ThreeIsogeny (F2elm ia, F2elm ic) {
+    coeff = new F2elm[2];
+
+    a = ia;
+    c = ic;
   }
 
 
@@ -106,6 +132,7 @@ class ThreeIsogeny extends MontCurve {
     a = curve.a;
     c = curve.c;
     a24 = curve.a24;
+    c24 = curve.c24;
     c4 = curve.c4;
     aPlus2c = curve.aPlus2c;
     aMinus2c = curve.aMinus2c;
@@ -121,6 +148,9 @@ class ThreeIsogeny extends MontCurve {
     // Compute 3-isogeny of a point (px:pz) of order 3. Updates curve parameters and coefficients.
 
     F2elm t0, t1, t2, t3, t4, px, pz;
+    int phase = OpCounter.enter (OpCounter.ISOG);
+
+    OpCounter.count (OpCounter.GET_ISOG);
 
     px = p.getX ();
     pz = p.getZ ();
@@ -145,6 +175,8 @@ class ThreeIsogeny extends MontCurve {
     t4.f2MultInPlace (t3);
     t0 = F2elm.sub (t4, aMinus2c);
     aPlus2c = F2elm.add (t0, aMinus2c);
+
+    OpCounter.exit (phase);
   }
 
 
@@ -152,6 +184,9 @@ class ThreeIsogeny extends MontCurve {
     // Evaluate the isogeny at q = (x:z)
 
     F2elm t0, t1, t2, qx, qz;
+    int phase = OpCounter.enter (OpCounter.EVAL);
+
+    OpCounter.count (OpCounter.EVAL_ISOG);
 
     qx = q.getX ();
     qz = q.getZ ();
@@ -167,6 +202,7 @@ class ThreeIsogeny extends MontCurve {
     qx.f2MultInPlace (t2);
     qz.f2MultInPlace (t0);
 
+    OpCounter.exit (phase);
     return new F2Point (qx, qz);
   }
 }
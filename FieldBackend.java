@@ -0,0 +1,901 @@
+
+package sidh;
+
+/**************************************************************************************************
+ *
+ * Service interface for the arithmetic behind Felm. A backend fixes the prime and an encoding of
+ * GF(p) elements as arrays of getWords() longs; Felm, F2elm and the curve and isogeny layers only
+ * ever move those arrays around and call the operations below.
+ *
+ * Three backends are provided:
+ *
+ *   biginteger   the reference. Values are stored as plain 64-bit words and every operation goes
+ *                through BigInteger.
+ *   montgomery   Montgomery form in 64-bit words, multiplied with CIOS. This is the default.
+ *   radix28      Montgomery form in unsaturated 28-bit limbs, so that products are accumulated
+ *                without a carry chain.
+ *
+ * The supported primes have the form 2^eA*3^eB - 1, so the low words of p+1 are zero. Both
+ * Montgomery backends use this to skip those words during reduction; the "-generic" variants
+ * (montgomery-generic, radix28-generic) reduce against every word of p and are kept for
+ * comparison. Running this class benchmarks the backends on each parameter set.
+ *
+ * The backend is chosen with -Dsidh.field=<name> or per SidhKeyExchange instance. Appending
+ * "+check" to the name, or setting -Dsidh.fieldCheck=<n>, wraps the backend so that on average
+ * one operation in n is recomputed with BigInteger and compared; a mismatch throws
+ * IllegalStateException rather than letting a wrong value through. Every Felm keeps a reference
+ * to the backend it was created with, so exchanges with different backends or parameter sets can
+ * run side by side on different threads.
+ *
+ **************************************************************************************************/
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+public abstract class FieldBackend {
+  public static final String BIGINTEGER = "biginteger";
+  public static final String MONTGOMERY = "montgomery";
+  public static final String RADIX28 = "radix28";
+  public static final String CHECK_SUFFIX = "+check";
+  public static final String GENERIC_SUFFIX = "-generic";
+
+  protected final BigInteger prime;
+  protected final int words;
+  protected final int primesize;                // bytes in the serialized form of an element
+
+
+  protected FieldBackend (BigInteger p, int numWords) {
+    prime = p;
+    words = numWords;
+    primesize = (p.bitLength () / 8) + 1;
+  }
+
+
+  public static String defaultName () {
+    String name = System.getProperty ("sidh.field", MONTGOMERY);
+
+    if (Integer.getInteger ("sidh.fieldCheck", 0) > 0 && !name.endsWith (CHECK_SUFFIX))
+      name += CHECK_SUFFIX;
+
+    return name;
+  }
+
+
+  public static FieldBackend create (String name, BigInteger p) {
+    // Look a backend up by name. The montgomery and radix28 backends need an odd prime.
+
+    int interval;
+
+    if (name.endsWith (CHECK_SUFFIX)) {
+      interval = Integer.getInteger ("sidh.fieldCheck", CrossCheckField.DEFAULT_INTERVAL);
+      name = name.substring (0, name.length () - CHECK_SUFFIX.length ());
+      return new CrossCheckField (create (name, p), interval);
+    }
+
+    if (name.equals (BIGINTEGER))
+      return new BigIntegerField (p);
+    else if (name.equals (MONTGOMERY))
+      return new MontgomeryField (p, false);
+    else if (name.equals (MONTGOMERY + GENERIC_SUFFIX))
+      return new MontgomeryField (p, true);
+    else if (name.equals (RADIX28))
+      return new RadixField (p, false);
+    else if (name.equals (RADIX28 + GENERIC_SUFFIX))
+      return new RadixField (p, true);
+
+    throw new IllegalArgumentException ("Unknown field backend " + name);
+  }
+
+
+  public abstract String getName ();
+
+
+  public BigInteger getPrime () {
+    return prime;
+  }
+
+
+  public int getWords () {
+    return words;
+  }
+
+
+  public int getPrimeSize () {
+    return primesize;
+  }
+
+
+  public long[] newElement () {
+    return new long[words];
+  }
+
+
+  // Conversions. v must lie in [0, p).
+
+  public abstract void fromBigInteger (BigInteger v, long c[]);
+
+  public abstract BigInteger toBigInteger (long a[]);
+
+
+  // Arithmetic. add, sub, neg and div2 allow c to alias an input; mul, sqr and inverse do not.
+
+  public abstract void add (long a[], long b[], long c[]);
+
+  public abstract void sub (long a[], long b[], long c[]);
+
+  public abstract void neg (long a[], long c[]);
+
+  public abstract void mul (long a[], long b[], long c[]);
+
+  public abstract void sqr (long a[], long c[]);
+
+  public abstract void div2 (long a[], long c[]);
+
+
+  public void inverse (long a[], long c[]) {
+    // Inversion is rare enough to go through BigInteger for every backend
+    fromBigInteger (toBigInteger (a).modInverse (prime), c);
+  }
+
+
+  public boolean isZero (long a[]) {
+    long acc = 0;
+
+    for (int i = 0; i < words; i++)
+      acc |= a[i];
+
+    return acc == 0;
+  }
+
+
+  public static void select (long a[], long b[], long c[], long mask) {
+    // c = b where mask is all ones, a where it is zero
+    for (int i = 0; i < c.length; i++)
+      c[i] = a[i] ^ ((a[i] ^ b[i]) & mask);
+  }
+
+
+  public static void cswap (long a[], long b[], long mask) {
+    long d;
+
+    for (int i = 0; i < a.length; i++) {
+      d = (a[i] ^ b[i]) & mask;
+      a[i] ^= d;
+      b[i] ^= d;
+    }
+  }
+
+
+  public static void main (String args[]) {
+    // Nanoseconds per multiplication for each backend and parameter set
+
+    String sets[] = { "sidhP434", "sidhP503", "sidhP751" };
+    String names[] = { BIGINTEGER, MONTGOMERY + GENERIC_SUFFIX, MONTGOMERY,
+                       RADIX28 + GENERIC_SUFFIX, RADIX28 };
+    int iters = (args.length > 0) ? Integer.parseInt (args[0]) : 100000;
+    FieldBackend f;
+    BigInteger prime;
+
+    for (String id : sets) {
+      prime = new SidhKeyExchange (id).getField ().getPrime ();
+      System.out.print (id + ":");
+      for (String name : names) {
+        f = create (name, prime);
+        benchMul (f, iters / 10);                           // warm up
+        System.out.printf ("  %s %.0f", name, benchMul (f, iters));
+      }
+      System.out.println (" ns/mul");
+    }
+  }
+
+
+  private static double benchMul (FieldBackend f, int iters) {
+    // Best of five runs, which is less sensitive to noise from other processes than the mean
+
+    long a[] = f.newElement (), b[] = f.newElement (), c[] = f.newElement (), t[], start;
+    double best = Double.MAX_VALUE;
+    int i, run;
+
+    f.fromBigInteger (Felm.genRandom (f.prime), a);
+    f.fromBigInteger (Felm.genRandom (f.prime), b);
+
+    for (run = 0; run < 5; run++) {
+      start = System.nanoTime ();
+      for (i = 0; i < iters; i++) {
+        f.mul (a, b, c);
+        t = a;
+        a = c;
+        c = t;
+      }
+      best = Math.min (best, (double) (System.nanoTime () - start) / iters);
+    }
+
+    return best;
+  }
+
+
+  protected static void toWords (BigInteger v, long c[], int bits) {
+    // Split a non-negative v into limbs of the given width, least significant first
+
+    long mask = (bits == 64) ? -1L : (1L << bits) - 1;
+
+    for (int i = 0; i < c.length; i++)
+      c[i] = v.shiftRight (i * bits).longValue () & mask;
+  }
+
+
+  protected static BigInteger fromWords (long a[], int bits) {
+    byte buf[];
+    BigInteger v;
+    int i, j;
+    long w;
+
+    if (bits == 64) {
+      buf = new byte[8*a.length + 1];
+      for (i = 0; i < a.length; i++) {
+        w = a[a.length - 1 - i];
+        for (j = 0; j < 8; j++)
+          buf[1 + 8*i + j] = (byte) (w >>> (56 - 8*j));
+      }
+      return new BigInteger (buf);
+    }
+
+    v = BigInteger.ZERO;
+    for (i = a.length - 1; i >= 0; i--)
+      v = v.shiftLeft (bits).or (BigInteger.valueOf (a[i]));
+
+    return v;
+  }
+}
+
+
+class BigIntegerField extends FieldBackend {
+  /* Reference backend: canonical values in 64-bit words, arithmetic done by BigInteger */
+
+  public BigIntegerField (BigInteger p) {
+    super (p, (p.bitLength () + 63) / 64);
+  }
+
+
+  public String getName () {
+    return BIGINTEGER;
+  }
+
+
+  public void fromBigInteger (BigInteger v, long c[]) {
+    toWords (v, c, 64);
+  }
+
+
+  public BigInteger toBigInteger (long a[]) {
+    return fromWords (a, 64);
+  }
+
+
+  public void add (long a[], long b[], long c[]) {
+    fromBigInteger (toBigInteger (a).add (toBigInteger (b)).mod (prime), c);
+  }
+
+
+  public void sub (long a[], long b[], long c[]) {
+    fromBigInteger (toBigInteger (a).subtract (toBigInteger (b)).mod (prime), c);
+  }
+
+
+  public void neg (long a[], long c[]) {
+    fromBigInteger (toBigInteger (a).negate ().mod (prime), c);
+  }
+
+
+  public void mul (long a[], long b[], long c[]) {
+    fromBigInteger (toBigInteger (a).multiply (toBigInteger (b)).mod (prime), c);
+  }
+
+
+  public void sqr (long a[], long c[]) {
+    BigInteger v = toBigInteger (a);
+    fromBigInteger (v.multiply (v).mod (prime), c);
+  }
+
+
+  public void div2 (long a[], long c[]) {
+    BigInteger v = toBigInteger (a);
+
+    if (v.testBit (0))
+      v = v.add (prime);
+    fromBigInteger (v.shiftRight (1), c);
+  }
+}
+
+
+class MontgomeryField extends FieldBackend {
+  /* Montgomery form a*R mod p in 64-bit words with R = 2^(64*words) */
+
+  final long pw[];
+  final long n0;                            // -p^-1 mod 2^64
+  final long zero[];
+  final long p1w[];                         // p + 1
+  final int zeroWords;                      // low words of p + 1 that are zero, 0 if generic
+
+  private final BigInteger rModP;
+  private final BigInteger rInv;
+
+
+  public MontgomeryField (BigInteger p, boolean generic) {
+    super (p, (p.bitLength () + 63) / 64);
+
+    BigInteger r = BigInteger.ONE.shiftLeft (64 * words), r64 = BigInteger.ONE.shiftLeft (64);
+
+    if (!p.testBit (0))
+      throw new IllegalArgumentException ("Montgomery arithmetic needs an odd prime");
+
+    pw = new long[words];
+    toWords (p, pw, 64);
+    n0 = p.modInverse (r64).negate ().mod (r64).longValue ();
+    zero = new long[words];
+    rModP = r.mod (p);
+    rInv = r.modInverse (p);
+
+    p1w = new long[words];
+    toWords (p.add (BigInteger.ONE), p1w, 64);
+    zeroWords = generic ? 0 : Math.min (words - 1, p.add (BigInteger.ONE).getLowestSetBit () / 64);
+  }
+
+
+  public String getName () {
+    return (zeroWords > 0) ? MONTGOMERY : MONTGOMERY + GENERIC_SUFFIX;
+  }
+
+
+  public void fromBigInteger (BigInteger v, long c[]) {
+    toWords (v.multiply (rModP).mod (prime), c, 64);
+  }
+
+
+  public BigInteger toBigInteger (long a[]) {
+    return fromWords (a, 64).multiply (rInv).mod (prime);
+  }
+
+
+  static long mulHigh (long x, long y) {
+    // Unsigned high word of x*y
+    return Math.multiplyHigh (x, y) + ((x >> 63) & y) + ((y >> 63) & x);
+  }
+
+
+  static long carryOut (long a, long b, long s) {
+    // Carry out of s = a + b + cin for a carry in of 0 or 1
+    return ((a & b) | ((a | b) & ~s)) >>> 63;
+  }
+
+
+  static long borrowOut (long a, long b, long d) {
+    // Borrow out of d = a - b - bin for a borrow in of 0 or 1
+    return ((~a & b) | (~(a ^ b) & d)) >>> 63;
+  }
+
+
+  public void add (long a[], long b[], long c[]) {
+    long s, carry = 0;
+
+    for (int i = 0; i < words; i++) {
+      s = a[i] + b[i] + carry;
+      carry = carryOut (a[i], b[i], s);
+      c[i] = s;
+    }
+
+    reduceOnce (c, carry);
+  }
+
+
+  public void sub (long a[], long b[], long c[]) {
+    long d, borrow = 0, mask, s, x, carry = 0;
+    int i;
+
+    for (i = 0; i < words; i++) {
+      d = a[i] - b[i] - borrow;
+      borrow = borrowOut (a[i], b[i], d);
+      c[i] = d;
+    }
+
+    mask = -borrow;                         // add p back if a < b
+    for (i = 0; i < words; i++) {
+      x = pw[i] & mask;
+      s = c[i] + x + carry;
+      carry = carryOut (c[i], x, s);
+      c[i] = s;
+    }
+  }
+
+
+  public void neg (long a[], long c[]) {
+    sub (zero, a, c);
+  }
+
+
+  void reduceOnce (long c[], long top) {
+    // Subtract p from top:c if it is not below p. The value must be below 2p.
+
+    long d, borrow = 0, mask, x;
+    int i;
+
+    for (i = 0; i < words; i++) {
+      d = c[i] - pw[i] - borrow;
+      borrow = borrowOut (c[i], pw[i], d);
+    }
+
+    mask = -(top | (borrow ^ 1));           // 0 if top:c < p
+    borrow = 0;
+    for (i = 0; i < words; i++) {
+      x = pw[i] & mask;
+      d = c[i] - x - borrow;
+      borrow = borrowOut (c[i], x, d);
+      c[i] = d;
+    }
+  }
+
+
+  public void mul (long a[], long b[], long c[]) {
+    // CIOS Montgomery multiplication c = a*b/R mod p. The running sum is kept in c plus the
+    // two top words t and tt.
+
+    final int n = words;
+    long ai, m, lo, hi, s, carry, t = 0, tt;
+    int i, j;
+
+    if (zeroWords > 0) {
+      mulSpecial (a, b, c);
+      return;
+    }
+
+    Arrays.fill (c, 0);
+
+    for (i = 0; i < n; i++) {
+      ai = a[i];
+      carry = 0;
+      for (j = 0; j < n; j++) {
+        lo = ai * b[j];
+        hi = mulHigh (ai, b[j]);
+        s = lo + c[j];
+        hi += carryOut (lo, c[j], s);
+        lo = s + carry;
+        hi += carryOut (s, carry, lo);
+        c[j] = lo;
+        carry = hi;
+      }
+      s = t + carry;
+      tt = carryOut (t, carry, s);
+      t = s;
+
+      m = c[0] * n0;
+      lo = m * pw[0];
+      hi = mulHigh (m, pw[0]);
+      s = lo + c[0];
+      carry = hi + carryOut (lo, c[0], s);
+      for (j = 1; j < n; j++) {
+        lo = m * pw[j];
+        hi = mulHigh (m, pw[j]);
+        s = lo + c[j];
+        hi += carryOut (lo, c[j], s);
+        lo = s + carry;
+        hi += carryOut (s, carry, lo);
+        c[j-1] = lo;
+        carry = hi;
+      }
+      s = t + carry;
+      c[n-1] = s;
+      t = tt + carryOut (t, carry, s);
+    }
+
+    reduceOnce (c, t);
+  }
+
+
+  private void mulSpecial (long a[], long b[], long c[]) {
+    // As mul, for p + 1 divisible by 2^64. Then -p^-1 = 1 mod 2^64 so m is the low word itself,
+    // and adding m*p = m*(p+1) - m clears that word and touches only the non-zero words of p+1.
+
+    final int n = words, z = zeroWords;
+    long ai, m, lo, hi, s, carry, t = 0, tt;
+    int i, j;
+
+    Arrays.fill (c, 0);
+
+    for (i = 0; i < n; i++) {
+      ai = a[i];
+      carry = 0;
+      for (j = 0; j < n; j++) {
+        lo = ai * b[j];
+        hi = mulHigh (ai, b[j]);
+        s = lo + c[j];
+        hi += carryOut (lo, c[j], s);
+        lo = s + carry;
+        hi += carryOut (s, carry, lo);
+        c[j] = lo;
+        carry = hi;
+      }
+      s = t + carry;
+      tt = carryOut (t, carry, s);
+      t = s;
+
+      m = c[0];
+      for (j = 1; j < z; j++)
+        c[j-1] = c[j];
+
+      carry = 0;
+      for (j = z; j < n; j++) {
+        lo = m * p1w[j];
+        hi = mulHigh (m, p1w[j]);
+        s = lo + c[j];
+        hi += carryOut (lo, c[j], s);
+        lo = s + carry;
+        hi += carryOut (s, carry, lo);
+        c[j-1] = lo;
+        carry = hi;
+      }
+      s = t + carry;
+      c[n-1] = s;
+      t = tt + carryOut (t, carry, s);
+    }
+
+    reduceOnce (c, t);
+  }
+
+
+  public void sqr (long a[], long c[]) {
+    mul (a, a, c);
+  }
+
+
+  public void div2 (long a[], long c[]) {
+    // Halving commutes with the Montgomery factor: add p if odd, then shift right
+    long mask = -(a[0] & 1), x, s, carry = 0;
+    int i;
+
+    for (i = 0; i < words; i++) {
+      x = pw[i] & mask;
+      s = a[i] + x + carry;
+      carry = carryOut (a[i], x, s);
+      c[i] = s;
+    }
+
+    for (i = 0; i < words - 1; i++)
+      c[i] = (c[i] >>> 1) | (c[i+1] << 63);
+    c[words-1] = (c[words-1] >>> 1) | (carry << 63);
+  }
+}
+
+
+class RadixField extends FieldBackend {
+  /* Montgomery form in unsaturated radix 2^28 limbs with R = 2^(28*words). Products of two limbs
+     are below 2^56, so a limb can collect every product of a multiplication (at most 2*words of
+     them for the primes used here) before the carries are propagated. */
+
+  public static final int RADIX = 28;
+  public static final long MASK = (1L << RADIX) - 1;
+
+  final long pl[];
+  final long n0;                            // -p^-1 mod 2^RADIX
+  final long zero[];
+  final long p1l[];                         // p + 1
+  final int zeroLimbs;                      // low limbs of p + 1 that are zero, 0 if generic
+
+  private final BigInteger rModP;
+  private final BigInteger rInv;
+
+
+  public RadixField (BigInteger p, boolean generic) {
+    super (p, (p.bitLength () + RADIX) / RADIX);
+
+    BigInteger r = BigInteger.ONE.shiftLeft (RADIX * words), radix = BigInteger.ONE.shiftLeft (RADIX);
+
+    if (!p.testBit (0))
+      throw new IllegalArgumentException ("Montgomery arithmetic needs an odd prime");
+
+    pl = new long[words];
+    toWords (p, pl, RADIX);
+    n0 = p.modInverse (radix).negate ().mod (radix).longValue ();
+    zero = new long[words];
+    rModP = r.mod (p);
+    rInv = r.modInverse (p);
+
+    p1l = new long[words];
+    toWords (p.add (BigInteger.ONE), p1l, RADIX);
+    zeroLimbs = generic ? 0 : Math.min (words - 1,
+                                        p.add (BigInteger.ONE).getLowestSetBit () / RADIX);
+  }
+
+
+  public String getName () {
+    return (zeroLimbs > 0) ? RADIX28 : RADIX28 + GENERIC_SUFFIX;
+  }
+
+
+  public void fromBigInteger (BigInteger v, long c[]) {
+    toWords (v.multiply (rModP).mod (prime), c, RADIX);
+  }
+
+
+  public BigInteger toBigInteger (long a[]) {
+    return fromWords (a, RADIX).multiply (rInv).mod (prime);
+  }
+
+
+  public void add (long a[], long b[], long c[]) {
+    long v, carry = 0;
+
+    for (int i = 0; i < words; i++) {
+      v = a[i] + b[i] + carry;
+      c[i] = v & MASK;
+      carry = v >> RADIX;
+    }
+
+    reduceOnce (c);
+  }
+
+
+  public void sub (long a[], long b[], long c[]) {
+    long v, carry = 0, mask;
+    int i;
+
+    for (i = 0; i < words; i++) {
+      v = a[i] - b[i] + carry;
+      c[i] = v & MASK;
+      carry = v >> RADIX;
+    }
+
+    mask = carry;                           // -1 if a < b
+    carry = 0;
+    for (i = 0; i < words; i++) {
+      v = c[i] + (pl[i] & mask) + carry;
+      c[i] = v & MASK;
+      carry = v >> RADIX;
+    }
+  }
+
+
+  public void neg (long a[], long c[]) {
+    sub (zero, a, c);
+  }
+
+
+  void reduceOnce (long c[]) {
+    // Subtract p if c is not below p. The value must be below 2p and fit in the top limb.
+
+    long v, carry = 0, mask;
+    int i;
+
+    for (i = 0; i < words; i++) {
+      v = c[i] - pl[i] + carry;
+      carry = v >> RADIX;
+    }
+
+    mask = ~carry;                          // 0 if c < p
+    carry = 0;
+    for (i = 0; i < words; i++) {
+      v = c[i] - (pl[i] & mask) + carry;
+      c[i] = v & MASK;
+      carry = v >> RADIX;
+    }
+  }
+
+
+  public void mul (long a[], long b[], long c[]) {
+    // Interleaved Montgomery multiplication. After each row the lowest limb is a multiple of
+    // the radix and is shifted out; only that limb's carry is propagated inside the loop.
+
+    final int n = words, z = zeroLimbs;
+    long ai, m;
+    int i, j;
+
+    Arrays.fill (c, 0);
+
+    for (i = 0; i < n; i++) {
+      ai = a[i];
+      for (j = 0; j < n; j++)
+        c[j] += ai * b[j];
+
+      if (z > 0) {
+        // m*p = m*(p+1) - m: the low limb loses its bottom bits and only the non-zero limbs
+        // of p+1 are multiplied
+        m = c[0] & MASK;
+        for (j = z; j < n; j++)
+          c[j] += m * p1l[j];
+      } else {
+        m = (c[0] * n0) & MASK;
+        for (j = 0; j < n; j++)
+          c[j] += m * pl[j];
+      }
+
+      c[1] += c[0] >> RADIX;
+      for (j = 1; j < n; j++)
+        c[j-1] = c[j];
+      c[n-1] = 0;
+    }
+
+    normalize (c);
+    reduceOnce (c);
+  }
+
+
+  private void normalize (long c[]) {
+    long carry = 0;
+
+    for (int i = 0; i < words; i++) {
+      c[i] += carry;
+      carry = c[i] >> RADIX;
+      c[i] &= MASK;
+    }
+  }
+
+
+  public void sqr (long a[], long c[]) {
+    mul (a, a, c);
+  }
+
+
+  public void div2 (long a[], long c[]) {
+    long mask = -(a[0] & 1), v, carry = 0;
+    int i;
+
+    for (i = 0; i < words; i++) {
+      v = a[i] + (pl[i] & mask) + carry;
+      c[i] = v & MASK;
+      carry = v >> RADIX;
+    }
+
+    for (i = 0; i < words - 1; i++)
+      c[i] = (c[i] >> 1) | ((c[i+1] & 1) << (RADIX - 1));
+    c[words-1] = (c[words-1] >> 1) | (carry << (RADIX - 1));
+  }
+}
+
+
+class CrossCheckField extends FieldBackend {
+  /* Wraps a backend and recomputes a random sample of its operations with BigInteger */
+
+  public static final int DEFAULT_INTERVAL = 64;
+
+  private static final AtomicLong checks = new AtomicLong ();
+
+  final FieldBackend fast;
+  final int interval;
+
+
+  public CrossCheckField (FieldBackend f, int sampleInterval) {
+    super (f.prime, f.words);
+    fast = f;
+    interval = Math.max (1, sampleInterval);
+  }
+
+
+  public String getName () {
+    return fast.getName () + CHECK_SUFFIX;
+  }
+
+
+  public static long getChecks () {
+    // Number of operations that have been recomputed and compared so far
+    return checks.get ();
+  }
+
+
+  private boolean sample () {
+    return ThreadLocalRandom.current ().nextInt (interval) == 0;
+  }
+
+
+  private void verify (String op, BigInteger expected, long c[]) {
+    // The operands may be secret, so the message names only the operation
+    checks.incrementAndGet ();
+
+    if (!fast.toBigInteger (c).equals (expected))
+      throw new IllegalStateException ("Field backend " + fast.getName () + " disagrees with " +
+                                       BIGINTEGER + " in " + op);
+  }
+
+
+  public void fromBigInteger (BigInteger v, long c[]) {
+    fast.fromBigInteger (v, c);
+  }
+
+
+  public BigInteger toBigInteger (long a[]) {
+    return fast.toBigInteger (a);
+  }
+
+
+  public void add (long a[], long b[], long c[]) {
+    BigInteger x, y;
+
+    if (!sample ()) {
+      fast.add (a, b, c);
+      return;
+    }
+
+    x = fast.toBigInteger (a);
+    y = fast.toBigInteger (b);
+    fast.add (a, b, c);
+    verify ("add", x.add (y).mod (prime), c);
+  }
+
+
+  public void sub (long a[], long b[], long c[]) {
+    BigInteger x, y;
+
+    if (!sample ()) {
+      fast.sub (a, b, c);
+      return;
+    }
+
+    x = fast.toBigInteger (a);
+    y = fast.toBigInteger (b);
+    fast.sub (a, b, c);
+    verify ("sub", x.subtract (y).mod (prime), c);
+  }
+
+
+  public void neg (long a[], long c[]) {
+    BigInteger x;
+
+    if (!sample ()) {
+      fast.neg (a, c);
+      return;
+    }
+
+    x = fast.toBigInteger (a);
+    fast.neg (a, c);
+    verify ("neg", x.negate ().mod (prime), c);
+  }
+
+
+  public void mul (long a[], long b[], long c[]) {
+    BigInteger x, y;
+
+    if (!sample ()) {
+      fast.mul (a, b, c);
+      return;
+    }
+
+    x = fast.toBigInteger (a);
+    y = fast.toBigInteger (b);
+    fast.mul (a, b, c);
+    verify ("mul", x.multiply (y).mod (prime), c);
+  }
+
+
+  public void sqr (long a[], long c[]) {
+    BigInteger x;
+
+    if (!sample ()) {
+      fast.sqr (a, c);
+      return;
+    }
+
+    x = fast.toBigInteger (a);
+    fast.sqr (a, c);
+    verify ("sqr", x.multiply (x).mod (prime), c);
+  }
+
+
+  public void div2 (long a[], long c[]) {
+    BigInteger x;
+
+    if (!sample ()) {
+      fast.div2 (a, c);
+      return;
+    }
+
+    x = fast.toBigInteger (a);
+    fast.div2 (a, c);
+    verify ("div2", x.multiply (BigInteger.TWO.modInverse (prime)).mod (prime), c);
+  }
+
+
+  public void inverse (long a[], long c[]) {
+    fast.inverse (a, c);
+  }
+}
@@ -13,72 +13,99 @@ import java.lang.System;
 import java.lang.Math;
   import java.security.SecureRandom;
 
-class InvalidFieldException extends Exception {
-}
-
-
 class Felm {
-  /* Elements of GF(p) */
+  /* Elements of GF(p), stored in the encoding of the field backend they were created with */
 
-  // Set p to a placeholder value until the prime has been set
-  public static BigInteger p = BigInteger.valueOf(2);
-  private BigInteger value;
-  public static int primesize = 1;
+  private final FieldBackend field;
+  private long value[];
+  private long spare[];                        // output buffer for mul, sqr and inverse
 
-  public static final Felm ZERO = new Felm (BigInteger.ZERO);
-  public static final Felm ONE = new Felm (BigInteger.ONE);
-  
-    
-  public Felm (BigInteger v) {
-    value = v.mod(p);
+
+  public Felm (FieldBackend f, BigInteger v) {
+    OpCounter.count (OpCounter.FELM_NEW);
+    field = f;
+    value = f.newElement ();
+    f.fromBigInteger (v.mod (f.getPrime ()), value);
   }
 
 
   public Felm (Felm a) {
-    value = a.fpGetValue();
+    OpCounter.count (OpCounter.FELM_NEW);
+    field = a.field;
+    value = a.value.clone ();
   }
 
 
-  public Felm (long v) {
-    value = BigInteger.valueOf(v).mod(p);
+  public Felm (FieldBackend f, long v) {
+    this (f, BigInteger.valueOf(v));
   }
     
 
-  public Felm (byte[] bytes) {
-    value = new BigInteger (bytes);
+  public Felm (FieldBackend f, byte[] bytes) {
+    // Decode a canonical encoding; values outside [0, p) are rejected, not reduced
+    this (f, canonical (f, new BigInteger (bytes)));
   }
 
 
-  public Felm (SecureRandom rnd) {
-    value = genRandom (p);
+  private static BigInteger canonical (FieldBackend f, BigInteger v) {
+    if (v.signum () < 0 || v.compareTo (f.getPrime ()) >= 0)
+      throw new IllegalArgumentException ("Field element out of range");
+    return v;
   }
-    
 
-  public static void setPrime (BigInteger pr) throws InvalidFieldException {
-    if (pr.isProbablePrime(10))
-      p = pr;
-    else
-      throw new InvalidFieldException();
 
-    primesize = (pr.bitLength() / 8) + 1; 
+  Felm (FieldBackend f, long words[]) {
+    // Copy of an element that is already in f's encoding
+    OpCounter.count (OpCounter.FELM_NEW);
+    field = f;
+    value = words.clone ();
   }
 
 
-  public static BigInteger getPrime() {
-    return p;
+  public Felm (FieldBackend f, SecureRandom rnd) {
+    this (f, genRandom (f.getPrime (), rnd));
   }
 
 
-  public BigInteger fpGetValue() {
+  public FieldBackend getField() {
+    return field;
+  }
+
+
+  private long[] spare () {
+    if (spare == null)
+      spare = field.newElement ();
+    return spare;
+  }
+
+
+  private void swapSpare () {
+    long t[] = value;
+    value = spare;
+    spare = t;
+  }
+
+
+  long[] getWords () {
+    // The backing array, not a copy
     return value;
   }
 
 
+  public BigInteger fpGetValue() {
+    return field.toBigInteger (value);
+  }
+
+
   public static BigInteger genRandom (BigInteger bound) {
+    return genRandom (bound, new SecureRandom());
+  }
+
+
+  public static BigInteger genRandom (BigInteger bound, SecureRandom rnd) {
     // Gen random values up to the same bit length as the bound until the value generated is
     // strictly less than the bound. Average expected number of calls is less than 2.
     
-    SecureRandom rnd = new SecureRandom();
     int numBits = bound.bitLength();
     
     BigInteger randval = new BigInteger (numBits, rnd);
@@ -91,7 +118,7 @@ class Felm {
 
 
   public void randomize () {
-    value = genRandom (p);
+    field.fromBigInteger (genRandom (field.getPrime ()), value);
   }
     
     
@@ -103,8 +130,8 @@ class Felm {
 
 
   public void fpAddInPlace (Felm y) {
-    value = value.add (y.value);
-    value = value.mod (p);
+    OpCounter.count (OpCounter.FP_ADD);
+    field.add (value, y.value, value);
   }
 
 
@@ -116,8 +143,8 @@ class Felm {
 
     
   public void fpSubInPlace (Felm y) {
-    value = value.add (p).subtract (y.value);
-    value = value.mod (p);
+    OpCounter.count (OpCounter.FP_SUB);
+    field.sub (value, y.value, value);
   }
 
 
@@ -129,29 +156,33 @@ class Felm {
 
 
   public void fpMultInPlace (Felm y) {
-    value = value.multiply (y.value);
-    value = value.mod (p);
+    OpCounter.count (OpCounter.FP_MUL);
+    field.mul (value, y.value, spare ());
+    swapSpare ();
   }
 
     
   public static Felm sqr (Felm x) {
-    return mult (x, x);
+    Felm z = new Felm (x);
+    z.fpSqrInPlace ();
+    return z;
   }
 
 
   public void fpSqrInPlace () {
-    fpMultInPlace (this);
+    OpCounter.count (OpCounter.FP_SQR);
+    field.sqr (value, spare ());
+    swapSpare ();
   }
     
 
   public boolean fpIsZero() {
-    return value.equals (BigInteger.ZERO);
+    return field.isZero (value);
   }
 
 
   public boolean fpIsEven() {
-    BigInteger c = value.and (BigInteger.ONE);
-    return c.equals (BigInteger.ZERO);
+    return !fpGetValue().testBit (0);
   }
 
 
@@ -161,27 +192,30 @@ class Felm {
 
 
   public boolean fpEquals (Felm y) {
-    return value.equals (y.value);
+    return Arrays.equals (value, y.value);
   }
 
 
   public boolean fpIsLessThan (Felm y) {
-    return value.compareTo (y.value) == -1;
+    return fpGetValue().compareTo (y.fpGetValue()) == -1;
   }
 
 
   public boolean fpIsGreaterThan (Felm y) {
-    return value.compareTo (y.value) == 1;
+    return fpGetValue().compareTo (y.fpGetValue()) == 1;
   }
 
 
   public static Felm negate (Felm x) {
-    return new Felm (p.subtract (x.value));
+    Felm z = new Felm (x);
+    z.fpNegateInPlace ();
+    return z;
   }
 
 
   public void fpNegateInPlace () {
-    value = p.subtract (value);
+    OpCounter.count (OpCounter.FP_OTHER);
+    field.neg (value, value);
   }
     
 
@@ -193,7 +227,9 @@ class Felm {
 
 
   public void fpInverseInPlace () {
-    value = value.modInverse (p);
+    OpCounter.count (OpCounter.FP_INV);
+    field.inverse (value, spare ());
+    swapSpare ();
   }
     
 
@@ -205,9 +241,8 @@ class Felm {
 
 
   public void fpDiv2InPlace () {
-    if (fpIsOdd ())
-      value = value.add (p);
-    value = value.shiftRight (1);    
+    OpCounter.count (OpCounter.FP_OTHER);
+    field.div2 (value, value);
   }
 
 
@@ -219,7 +254,10 @@ class Felm {
 
 
   public void fpLeftShiftInPlace (int shiftBy) {
-    value = value.shiftLeft (shiftBy);
+    // Multiplication by 2^shiftBy, reduced mod p
+    OpCounter.count (OpCounter.FP_OTHER);
+    for (int i = 0; i < shiftBy; i++)
+      field.add (value, value, value);
   }
     
 
@@ -231,40 +269,48 @@ class Felm {
 
 
   public void fpRightShiftInPlace (int shiftBy) {
-    value = value.shiftRight (shiftBy);
+    // Integer shift of the canonical value, not a field operation
+    OpCounter.count (OpCounter.FP_OTHER);
+    field.fromBigInteger (fpGetValue().shiftRight (shiftBy), value);
   }
     
 
   public Felm fpSwap (Felm y, BigInteger option) {
-    // Constant time swap regardless of whether option is 0 or 1
-    BigInteger temp, mask, yval;
-
-    yval = y.value;
-    mask = option.negate();                  // option = 1 => mask = 1...1 because BigInteger
-                                             // automatically sign extends as necessary
+    // Constant time swap regardless of whether option is 0 or 1. This element takes y's value
+    // when option is 1 and the value y would have taken is returned; y itself is left alone.
 
-    temp = mask.and(value.xor(yval));        // temp = mask & (this.value xor y.value)
-    value = temp.xor(value);
-    yval = temp.xor(yval);
+    Felm res = new Felm (y);
 
-    return new Felm (yval);
+    FieldBackend.cswap (value, res.value, -option.longValue());
+    return res;
   } 
+
+
+  static Felm select (Felm x, Felm y, long mask) {
+    // Return x if mask is 0 and y if mask is all ones
+    Felm z = new Felm (x);
+
+    FieldBackend.select (x.value, y.value, z.value, mask);
+    return z;
+  }
     
 
   public String toString() {
-    return "0x" + value.toString(16);
+    return "0x" + fpGetValue().toString(16);
   }
 
 
   public byte[] toByteArray() {
     // Returns the same size array regardless of the value. Zero pad the highbits.
+    BigInteger v = fpGetValue();
+    int primesize = field.getPrimeSize ();
     byte[] retval = new byte[primesize];
     Arrays.fill (retval, (byte) 0);                    
 
-    int eltsize = (value.bitLength() / 8) + 1; 
+    int eltsize = (v.bitLength() / 8) + 1; 
     int offset = primesize - eltsize;
 
-    System.arraycopy (value.toByteArray(), 0, retval, offset, eltsize);
+    System.arraycopy (v.toByteArray(), 0, retval, offset, eltsize);
 
     return retval;
   }
@@ -277,47 +323,72 @@ class F2elm {
   private Felm x0;
   private Felm x1;
 
-  public static final F2elm ZERO = new F2elm (Felm.ZERO, Felm.ZERO);
-  public static final F2elm ONE = new F2elm (Felm.ONE, Felm.ZERO);
 
-
-  public F2elm (BigInteger a0, BigInteger a1) {
-    x0 = new Felm (a0);
-    x1 = new Felm (a1);
+  public F2elm (FieldBackend f, BigInteger a0, BigInteger a1) {
+    OpCounter.count (OpCounter.F2ELM_NEW);
+    x0 = new Felm (f, a0);
+    x1 = new Felm (f, a1);
   }
 
 
   public F2elm (Felm a0, Felm a1) {
+    OpCounter.count (OpCounter.F2ELM_NEW);
     x0 = new Felm (a0);
     x1 = new Felm (a1);
   }
 
 
   public F2elm (F2elm a) {
+    OpCounter.count (OpCounter.F2ELM_NEW);
     x0 = new Felm (a.x0);
     x1 = new Felm (a.x1);
   }
 
 
-  public F2elm (long v0, long v1) {
-    x0 = new Felm (v0);
-    x1 = new Felm (v1);
+  public F2elm (FieldBackend f, long v0, long v1) {
+    OpCounter.count (OpCounter.F2ELM_NEW);
+    x0 = new Felm (f, v0);
+    x1 = new Felm (f, v1);
   }
     
 
-  public F2elm (byte[] bytes) {
+  public F2elm (FieldBackend f, byte[] bytes) {
+    OpCounter.count (OpCounter.F2ELM_NEW);
     int len = (bytes.length) / 2;
-    x0 = new Felm (Arrays.copyOfRange (bytes, 0, len));
-    x1 = new Felm (Arrays.copyOfRange (bytes, len, 2*len));
+    x0 = new Felm (f, Arrays.copyOfRange (bytes, 0, len));
+    x1 = new Felm (f, Arrays.copyOfRange (bytes, len, 2*len));
+  }
+
+
+  F2elm (FieldBackend f, long w0[], long w1[]) {
+    OpCounter.count (OpCounter.F2ELM_NEW);
+    x0 = new Felm (f, w0);
+    x1 = new Felm (f, w1);
+  }
+
+
+  public F2elm (FieldBackend f, SecureRandom rnd) {
+    OpCounter.count (OpCounter.F2ELM_NEW);
+    x0 = new Felm (f, rnd);
+    x1 = new Felm (f, rnd);
   }
 
 
-  public F2elm (SecureRandom rnd) {
-    x0 = new Felm (rnd);
-    x1 = new Felm (rnd);
+  public static F2elm zero (FieldBackend f) {
+    return new F2elm (f, 0, 0);
+  }
+
+
+  public static F2elm one (FieldBackend f) {
+    return new F2elm (f, 1, 0);
   }
     
 
+  public FieldBackend getField() {
+    return x0.getField ();
+  }
+
+
   public Felm f2Get0() {
     return x0;
   }
@@ -533,30 +604,9 @@ class F2elm {
 
   public static F2elm select (F2elm x, F2elm y, BigInteger option) {
     // Return x if option = 0 and y if option = 1
-    BigInteger y0, y1, z0, z1, mask, bix0, bix1;
-
-    mask = option.negate ();                // if option = 1 then mask = 1...1 because BigInteger
-                                            // automatically sign extends as necessary
-
-    // Get x0, x1, y0, y1 as their BigInteger representations
-    y0 = (y.x0).fpGetValue ();
-    y1 = (y.x1).fpGetValue ();
-    bix0 = (x.x0).fpGetValue ();                 
-    bix1 = (x.x1).fpGetValue ();                 
-
-    z0 = bix0.xor (y0);                     // z0 = x0 xor y0
-    z1 = bix1.xor (y1);                     // z1 = x1 xor y1
-
-    z0 = z0.and (mask);                     // if mask = 0 then z0 = 0 else z0 = x0 xor y0 
-    z1 = z1.and (mask);                     // if mask = 0 then z1 = 0 else z1 = x1 xor y1 
-
-    z0 = bix0.xor (z0);                     // if mask = 0 then z0 = x0 
-                                            // else z0 = x0 xor x0 xor y0 = y0
-
-    z1 = bix1.xor (z1);                     // if mask = 0 then z1 = x1 
-                                            // else z1 = x1 xor x1 xor y1 = y1
+    long mask = -option.longValue ();
 
-    return new F2elm (z0, z1);
+    return new F2elm (Felm.select (x.x0, y.x0, mask), Felm.select (x.x1, y.x1, mask));
   }
 
 
@@ -567,9 +617,10 @@ class F2elm {
 
 
   public byte[] toByteArray() {
-    byte[] retval = new byte[2*Felm.primesize];
-    System.arraycopy (x0.toByteArray(), 0, retval, 0, Felm.primesize);
-    System.arraycopy (x1.toByteArray(), 0, retval, Felm.primesize, Felm.primesize);
+    int primesize = getField ().getPrimeSize ();
+    byte[] retval = new byte[2*primesize];
+    System.arraycopy (x0.toByteArray(), 0, retval, 0, primesize);
+    System.arraycopy (x1.toByteArray(), 0, retval, primesize, primesize);
     return retval;
   }
 }
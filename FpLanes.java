@@ -0,0 +1,421 @@
+
+package sidh;
+
+/**************************************************************************************************
+ *
+ * Multi-lane arithmetic over GF(p) and GF(p^2) for running several independent computations in
+ * lockstep. An element holds one value per lane, stored limb-major: limb i of lane l is at index
+ * i*lanes + l, so every inner loop walks the lanes of one limb through contiguous memory and can
+ * be vectorized by the JIT. Values are kept in Montgomery form in unsaturated radix 2^28 limbs,
+ * which leaves enough headroom in a long for a whole row of products to be accumulated before any
+ * carry is propagated.
+ *
+ * An FpLanes or F2Lanes instance owns scratch buffers and must only be used by one thread.
+ *
+ **************************************************************************************************/
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+
+class FpLanes {
+  public static final int RADIX = 28;
+  public static final long MASK = (1L << RADIX) - 1;
+
+  final BigInteger prime;
+  final int lanes;
+  final int limbs;
+  final int size;                         // limbs * lanes, the length of one element
+
+  private final long pLimbs[];
+  private final long n0;                  // -p^-1 mod 2^RADIX
+  private final BigInteger rModP;
+  private final BigInteger rInv;
+
+  private final long pRep[];              // each limb of p repeated once per lane
+  private final long acc[];
+  private final long row[];
+  private final long m[];
+  private final long carry[];
+  private final long diff[];
+  final long zero[];
+
+
+  public FpLanes (BigInteger p, int numLanes) {
+    BigInteger r, radix = BigInteger.ONE.shiftLeft (RADIX);
+
+    prime = p;
+    lanes = numLanes;
+    limbs = (p.bitLength() + RADIX - 1) / RADIX;
+    size = limbs * lanes;
+
+    pLimbs = new long[limbs];
+    for (int i = 0; i < limbs; i++)
+      pLimbs[i] = p.shiftRight (i * RADIX).longValue() & MASK;
+
+    pRep = new long[size];
+    for (int i = 0; i < size; i++)
+      pRep[i] = pLimbs[i / lanes];
+
+    n0 = p.modInverse (radix).negate().mod (radix).longValue();
+    r = BigInteger.ONE.shiftLeft (RADIX * limbs);
+    rModP = r.mod (p);
+    rInv = r.modInverse (p);
+
+    acc = new long[2 * limbs * lanes];
+    row = new long[size];
+    m = new long[lanes];
+    carry = new long[lanes];
+    diff = new long[size];
+    zero = new long[size];
+  }
+
+
+  public long[] newElement () {
+    return new long[size];
+  }
+
+
+  public void set (long c[], int co, int lane, BigInteger v) {
+    // Store v in Montgomery form in one lane of c
+
+    BigInteger w = v.multiply (rModP).mod (prime);
+
+    for (int i = 0; i < limbs; i++)
+      c[co + i*lanes + lane] = w.shiftRight (i * RADIX).longValue() & MASK;
+  }
+
+
+  public BigInteger get (long a[], int ao, int lane) {
+    BigInteger w = BigInteger.ZERO;
+
+    for (int i = limbs - 1; i >= 0; i--)
+      w = w.shiftLeft (RADIX).or (BigInteger.valueOf (a[ao + i*lanes + lane]));
+
+    return w.multiply (rInv).mod (prime);
+  }
+
+
+  public void copy (long a[], int ao, long c[], int co) {
+    System.arraycopy (a, ao, c, co, size);
+  }
+
+
+  public void add (long a[], int ao, long b[], int bo, long c[], int co) {
+    final int L = lanes;
+    long v;
+    int i, l, k;
+
+    Arrays.fill (carry, 0);
+
+    for (i = 0; i < limbs; i++) {
+      k = i * L;
+      for (l = 0; l < L; l++) {
+        v = a[ao+k+l] + b[bo+k+l] + carry[l];
+        c[co+k+l] = v & MASK;
+        carry[l] = v >> RADIX;
+      }
+    }
+
+    reduceOnce (c, co);
+  }
+
+
+  public void sub (long a[], int ao, long b[], int bo, long c[], int co) {
+    final int L = lanes;
+    long v;
+    int i, l, k;
+
+    Arrays.fill (carry, 0);
+
+    for (i = 0; i < limbs; i++) {
+      k = i * L;
+      for (l = 0; l < L; l++) {
+        v = a[ao+k+l] - b[bo+k+l] + carry[l];
+        c[co+k+l] = v & MASK;
+        carry[l] = v >> RADIX;
+      }
+    }
+
+    // A final borrow of -1 means a < b, in which case p is added back
+
+    for (l = 0; l < L; l++) {
+      m[l] = carry[l];
+      carry[l] = 0;
+    }
+
+    for (i = 0; i < limbs; i++) {
+      k = i * L;
+      for (l = 0; l < L; l++) {
+        v = c[co+k+l] + (pLimbs[i] & m[l]) + carry[l];
+        c[co+k+l] = v & MASK;
+        carry[l] = v >> RADIX;
+      }
+    }
+  }
+
+
+  public void mul (long a[], int ao, long b[], int bo, long c[], int co) {
+    // Montgomery multiplication c = a*b/R mod p. The product is accumulated in full before the
+    // reduction, so c may alias a or b.
+
+    final int L = lanes, NL = size;
+    final long t[] = acc, rep[] = row;
+    int i, k, tk;
+
+    Arrays.fill (t, 0);
+
+    for (i = 0; i < limbs; i++) {
+      tile (a, ao + i*L);
+      tk = i * L;
+      for (k = 0; k < NL; k++)
+        t[tk+k] += rep[k] * b[bo+k];
+    }
+
+    redc (c, co);
+  }
+
+
+  private void tile (long a[], int ao) {
+    // Repeat the lanes a[ao..ao+lanes) across the whole row buffer
+
+    for (int k = 0; k < size; k += lanes)
+      System.arraycopy (a, ao, row, k, lanes);
+  }
+
+
+  public void sqr (long a[], int ao, long c[], int co) {
+    // Squaring computes each cross product once and doubles it
+
+    final int L = lanes, N = limbs;
+    final long t[] = acc;
+    int i, j, l, ak, bk, tk;
+
+    Arrays.fill (t, 0);
+
+    for (i = 0; i < N; i++) {
+      ak = ao + i*L;
+      for (j = i + 1; j < N; j++) {
+        bk = ao + j*L;
+        tk = (i + j) * L;
+        for (l = 0; l < L; l++)
+          t[tk+l] += a[ak+l] * a[bk+l];
+      }
+    }
+
+    for (i = 0; i < 2*N*L; i++)
+      t[i] <<= 1;
+
+    for (i = 0; i < N; i++) {
+      ak = ao + i*L;
+      tk = 2 * i * L;
+      for (l = 0; l < L; l++)
+        t[tk+l] += a[ak+l] * a[ak+l];
+    }
+
+    redc (c, co);
+  }
+
+
+  private void redc (long c[], int co) {
+    // Word-by-word Montgomery reduction of the accumulator into c. Each accumulator word
+    // collects at most 2*limbs products below 2^56 plus carries, which fits in a long for every
+    // supported prime.
+
+    final int L = lanes, N = limbs, NL = size;
+    final long t[] = acc, rep[] = row;
+    long v;
+    int i, k, l, tk;
+
+    for (i = 0; i < N; i++) {
+      tk = i * L;
+      for (l = 0; l < L; l++)
+        m[l] = (t[tk+l] * n0) & MASK;
+
+      tile (m, 0);
+      for (k = 0; k < NL; k++)
+        t[tk+k] += rep[k] * pRep[k];
+
+      for (l = 0; l < L; l++)
+        t[tk+L+l] += t[tk+l] >> RADIX;
+    }
+
+    Arrays.fill (carry, 0);
+
+    for (i = 0; i < N; i++) {
+      tk = (N + i) * L;
+      for (l = 0; l < L; l++) {
+        v = t[tk+l] + carry[l];
+        c[co + i*L + l] = v & MASK;
+        carry[l] = v >> RADIX;
+      }
+    }
+
+    reduceOnce (c, co);
+  }
+
+
+  private void reduceOnce (long c[], int co) {
+    // Subtract p from every lane of c that is not already below p
+
+    final int L = lanes;
+    long v, keep;
+    int i, l, k;
+
+    Arrays.fill (carry, 0);
+
+    for (i = 0; i < limbs; i++) {
+      k = i * L;
+      for (l = 0; l < L; l++) {
+        v = c[co+k+l] - pLimbs[i] + carry[l];
+        diff[k+l] = v & MASK;
+        carry[l] = v >> RADIX;
+      }
+    }
+
+    for (i = 0; i < limbs; i++) {
+      k = i * L;
+      for (l = 0; l < L; l++) {
+        keep = carry[l];                              // -1 if c < p
+        c[co+k+l] = (c[co+k+l] & keep) | (diff[k+l] & ~keep);
+      }
+    }
+  }
+
+
+  public void cswap (long a[], int ao, long b[], int bo, long mask[]) {
+    // Swap lane l of a and b when mask[l] is all ones
+
+    final int L = lanes;
+    long d;
+    int i, l, k;
+
+    for (i = 0; i < limbs; i++) {
+      k = i * L;
+      for (l = 0; l < L; l++) {
+        d = (a[ao+k+l] ^ b[bo+k+l]) & mask[l];
+        a[ao+k+l] ^= d;
+        b[bo+k+l] ^= d;
+      }
+    }
+  }
+
+
+  public void inverse (long a[], int ao, long c[], int co) {
+    // Lane by lane inversion. Only a handful are needed per key operation.
+
+    BigInteger v;
+
+    for (int l = 0; l < lanes; l++) {
+      v = get (a, ao, l);
+      set (c, co, l, v.signum () == 0 ? v : v.modInverse (prime));
+    }
+  }
+}
+
+
+class F2Lanes {
+  /* Multi-lane elements of GF(p^2): the x0 part of every lane followed by the x1 part */
+
+  final FpLanes fp;
+  final int size;
+
+  private final int half;
+  private final long t0[], t1[], t2[], t3[];
+
+
+  public F2Lanes (FpLanes f) {
+    fp = f;
+    half = fp.size;
+    size = 2 * half;
+
+    t0 = fp.newElement ();
+    t1 = fp.newElement ();
+    t2 = fp.newElement ();
+    t3 = fp.newElement ();
+  }
+
+
+  public long[] newElement () {
+    return new long[size];
+  }
+
+
+  public void set (long c[], int lane, F2elm v) {
+    fp.set (c, 0, lane, v.f2Get0().fpGetValue());
+    fp.set (c, half, lane, v.f2Get1().fpGetValue());
+  }
+
+
+  public void setAll (long c[], F2elm v) {
+    for (int l = 0; l < fp.lanes; l++)
+      set (c, l, v);
+  }
+
+
+  public F2elm get (FieldBackend f, long a[], int lane) {
+    // Lane l of a as an element of f
+    return new F2elm (f, fp.get (a, 0, lane), fp.get (a, half, lane));
+  }
+
+
+  public void copy (long a[], long c[]) {
+    System.arraycopy (a, 0, c, 0, size);
+  }
+
+
+  public void add (long a[], long b[], long c[]) {
+    fp.add (a, 0, b, 0, c, 0);
+    fp.add (a, half, b, half, c, half);
+  }
+
+
+  public void sub (long a[], long b[], long c[]) {
+    fp.sub (a, 0, b, 0, c, 0);
+    fp.sub (a, half, b, half, c, half);
+  }
+
+
+  public void mul (long a[], long b[], long c[]) {
+    // (a0 + i*a1)(b0 + i*b1) = a0b0 - a1b1 + i*((a0+a1)(b0+b1) - a0b0 - a1b1)
+
+    fp.mul (a, 0, b, 0, t0, 0);
+    fp.mul (a, half, b, half, t1, 0);
+    fp.add (a, 0, a, half, t2, 0);
+    fp.add (b, 0, b, half, t3, 0);
+    fp.mul (t2, 0, t3, 0, t2, 0);
+    fp.sub (t0, 0, t1, 0, c, 0);
+    fp.sub (t2, 0, t0, 0, t2, 0);
+    fp.sub (t2, 0, t1, 0, c, half);
+  }
+
+
+  public void sqr (long a[], long c[]) {
+    // (a0 + i*a1)^2 = (a0+a1)(a0-a1) + i*2*a0*a1
+
+    fp.add (a, 0, a, half, t0, 0);
+    fp.sub (a, 0, a, half, t1, 0);
+    fp.add (a, 0, a, 0, t2, 0);
+    fp.mul (a, half, t2, 0, c, half);
+    fp.mul (t0, 0, t1, 0, c, 0);
+  }
+
+
+  public void inverse (long a[], long c[]) {
+    // 1/(a0 + i*a1) = (a0 - i*a1)/(a0^2 + a1^2)
+
+    fp.sqr (a, 0, t0, 0);
+    fp.sqr (a, half, t1, 0);
+    fp.add (t0, 0, t1, 0, t0, 0);
+    fp.inverse (t0, 0, t0, 0);
+    fp.mul (a, 0, t0, 0, c, 0);
+    fp.mul (a, half, t0, 0, t1, 0);
+    fp.sub (fp.zero, 0, t1, 0, c, half);
+  }
+
+
+  public void cswap (long a[], long b[], long mask[]) {
+    fp.cswap (a, 0, b, 0, mask);
+    fp.cswap (a, half, b, half, mask);
+  }
+}
@@ -0,0 +1,224 @@
+
+package sidh;
+
+/**************************************************************************************************
+ *
+ * Default SidhMetrics implementation. Keeps one LatencyHistogram per parameter set, operation
+ * and party, a count of the operations shed at their deadline and a count of the agreements
+ * resumed from the session cache. Recording is lock-free and allocation free once a parameter
+ * set has been seen; an exporter polls snapshot() or snapshotAndReset() to read counts,
+ * throughput and p50/p99/p999 latencies.
+ *
+ **************************************************************************************************/
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+public class HistogramMetrics implements SidhMetrics {
+  private final ConcurrentHashMap<String, LatencyHistogram[]> histograms;
+  private final ConcurrentHashMap<String, AtomicLongArray> shed;
+  private final ConcurrentHashMap<String, AtomicLongArray> resumed;
+  private volatile long intervalStart;
+
+
+  public HistogramMetrics () {
+    histograms = new ConcurrentHashMap<String, LatencyHistogram[]> ();
+    shed = new ConcurrentHashMap<String, AtomicLongArray> ();
+    resumed = new ConcurrentHashMap<String, AtomicLongArray> ();
+    intervalStart = System.nanoTime ();
+  }
+
+
+  public void record (int operation, String parameterID, int aOrB, long nanos) {
+    LatencyHistogram hists[] = histograms.get (parameterID);
+
+    if (hists == null)
+      hists = histograms.computeIfAbsent (parameterID, k -> newHistograms ());
+
+    hists[2*operation + aOrB].record (nanos);
+  }
+
+
+  public void shed (int operation, String parameterID, int aOrB, long nanos) {
+    counts (shed, parameterID).incrementAndGet (2*operation + aOrB);
+  }
+
+
+  public void resumed (String parameterID, int aOrB, long nanos) {
+    counts (resumed, parameterID).incrementAndGet (2*AGREEMENT + aOrB);
+  }
+
+
+  private static AtomicLongArray counts (ConcurrentHashMap<String, AtomicLongArray> m,
+                                         String parameterID) {
+    // Indexed like the histograms
+    AtomicLongArray counts = m.get (parameterID);
+
+    if (counts == null)
+      counts = m.computeIfAbsent (parameterID, k -> new AtomicLongArray (4));
+
+    return counts;
+  }
+
+
+  private static LatencyHistogram[] newHistograms () {
+    // Indexed by 2*operation + party
+
+    LatencyHistogram hists[] = new LatencyHistogram[4];
+
+    for (int i = 0; i < hists.length; i++)
+      hists[i] = new LatencyHistogram ();
+
+    return hists;
+  }
+
+
+  public List<Snapshot> snapshot () {
+    return collect (false);
+  }
+
+
+  public List<Snapshot> snapshotAndReset () {
+    return collect (true);
+  }
+
+
+  private List<Snapshot> collect (boolean reset) {
+    List<Snapshot> res = new ArrayList<Snapshot> ();
+    long now = System.nanoTime (), elapsed = now - intervalStart;
+    LatencyHistogram.Snapshot s;
+    AtomicLongArray shedCounts, resumedCounts;
+    long n, r;
+    int i;
+
+    if (reset)
+      intervalStart = now;
+
+    // Shed operations are reported even for parameter sets that never completed one
+    for (String id : shed.keySet ())
+      histograms.computeIfAbsent (id, k -> newHistograms ());
+
+    for (Map.Entry<String, LatencyHistogram[]> e : histograms.entrySet ()) {
+      shedCounts = counts (shed, e.getKey ());
+      resumedCounts = counts (resumed, e.getKey ());
+      for (i = 0; i < e.getValue().length; i++) {
+        s = e.getValue()[i].snapshot (reset);
+        n = reset ? shedCounts.getAndSet (i, 0) : shedCounts.get (i);
+        r = reset ? resumedCounts.getAndSet (i, 0) : resumedCounts.get (i);
+        res.add (new Snapshot (e.getKey (), i / 2, i % 2, s, n, r, elapsed));
+      }
+    }
+
+    return res;
+  }
+
+
+  public static class Snapshot {
+    private final String parameterID;
+    private final int operation;
+    private final int party;
+    private final long count;
+    private final long shed;
+    private final long resumed;
+    private final double throughput;
+    private final double mean;
+    private final long p50;
+    private final long p99;
+    private final long p999;
+    private final long max;
+
+
+    Snapshot (String id, int op, int aOrB, LatencyHistogram.Snapshot s, long shedCount,
+              long resumedCount, long elapsedNanos) {
+      parameterID = id;
+      operation = op;
+      party = aOrB;
+      count = s.count;
+      shed = shedCount;
+      resumed = resumedCount;
+      throughput = (elapsedNanos > 0) ? s.count * 1e9 / elapsedNanos : 0;
+      mean = s.mean ();
+      p50 = s.percentile (0.50);
+      p99 = s.percentile (0.99);
+      p999 = s.percentile (0.999);
+      max = s.max;
+    }
+
+
+    public String getParameterID () {
+      return parameterID;
+    }
+
+
+    public int getOperation () {
+      return operation;
+    }
+
+
+    public int getParty () {
+      return party;
+    }
+
+
+    public long getCount () {
+      return count;
+    }
+
+
+    public long getShed () {
+      // Operations abandoned at their deadline; they are not in the count or the latencies
+      return shed;
+    }
+
+
+    public long getResumed () {
+      // Agreements served from the session cache; they are in the count and the latencies
+      return resumed;
+    }
+
+
+    public double getThroughput () {
+      // Operations per second over the interval since the last reset
+      return throughput;
+    }
+
+
+    public double getMeanNanos () {
+      return mean;
+    }
+
+
+    public long getP50Nanos () {
+      return p50;
+    }
+
+
+    public long getP99Nanos () {
+      return p99;
+    }
+
+
+    public long getP999Nanos () {
+      return p999;
+    }
+
+
+    public long getMaxNanos () {
+      return max;
+    }
+
+
+    public String toString () {
+      return String.format ("%s %s %s: count=%d shed=%d resumed=%d ops/s=%.1f mean=%.0fus " +
+                            "p50=%dus p99=%dus p999=%dus max=%dus", parameterID,
+                            (operation == KEYGEN) ? "keygen" : "agreement",
+                            (party == SidhKeyExchange.ALICE) ? "A" : "B", count, shed, resumed,
+                            throughput, mean / 1000, p50 / 1000, p99 / 1000, p999 / 1000,
+                            max / 1000);
+    }
+  }
+}
@@ -0,0 +1,154 @@
+
+package sidh;
+
+/**************************************************************************************************
+ *
+ * Lock-free log-bucketed latency histogram. Values are placed in buckets whose width doubles with
+ * every power of two and which are split into 16 linear sub-buckets, so quantiles are accurate to
+ * about 6%. Recording touches one stripe of an AtomicLongArray chosen by thread ID, which keeps
+ * concurrent recorders off each other's cache lines and never allocates.
+ *
+ **************************************************************************************************/
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+class LatencyHistogram {
+  private static final int SUB_BITS = 4;
+  private static final int SUB = 1 << SUB_BITS;
+  private static final int MAX_BITS = 44;                      // about 4.9 hours in nanoseconds
+  static final int BUCKETS = (MAX_BITS - SUB_BITS + 1) * SUB;
+
+  // Each stripe holds the bucket counts followed by the total count, the sum and the maximum.
+  // The stride is rounded up to whole 128 byte blocks so that stripes never share a cache line.
+
+  private static final int COUNT = BUCKETS;
+  private static final int SUM = BUCKETS + 1;
+  private static final int MAX = BUCKETS + 2;
+  private static final int STRIDE = (BUCKETS + 3 + 15) & ~15;
+
+  private final int stripeMask;
+  private final AtomicLongArray cells;
+
+
+  public LatencyHistogram () {
+    int stripes = 1;
+
+    while (stripes < Runtime.getRuntime().availableProcessors() && stripes < 16)
+      stripes <<= 1;
+
+    stripeMask = stripes - 1;
+    cells = new AtomicLongArray (stripes * STRIDE);
+  }
+
+
+  static int bucketIndex (long v) {
+    int exp;
+
+    if (v < SUB)
+      return (v < 0) ? 0 : (int) v;
+
+    exp = 63 - Long.numberOfLeadingZeros (v);
+    if (exp >= MAX_BITS)
+      return BUCKETS - 1;
+
+    return (exp - SUB_BITS + 1) * SUB + (int) ((v >>> (exp - SUB_BITS)) & (SUB - 1));
+  }
+
+
+  static long bucketLow (int idx) {
+    int exp;
+
+    if (idx < SUB)
+      return idx;
+
+    exp = idx / SUB + SUB_BITS - 1;
+    return (1L << exp) + ((long) (idx & (SUB - 1)) << (exp - SUB_BITS));
+  }
+
+
+  static long bucketHigh (int idx) {
+    // Largest value that falls into bucket idx
+
+    if (idx < SUB)
+      return idx;
+
+    return bucketLow (idx) + (1L << (idx / SUB - 1)) - 1;
+  }
+
+
+  public void record (long nanos) {
+    int base = ((int) Thread.currentThread().getId() & stripeMask) * STRIDE;
+    long max;
+
+    cells.getAndIncrement (base + bucketIndex (nanos));
+    cells.getAndIncrement (base + COUNT);
+    cells.getAndAdd (base + SUM, nanos);
+
+    max = cells.get (base + MAX);
+    while (nanos > max && !cells.compareAndSet (base + MAX, max, nanos))
+      max = cells.get (base + MAX);
+  }
+
+
+  public Snapshot snapshot (boolean reset) {
+    // Merges all stripes. If reset is set, every cell is cleared as it is read so that no
+    // concurrently recorded value is lost or counted twice.
+
+    Snapshot s = new Snapshot ();
+    long v;
+    int base, i;
+
+    for (base = 0; base < cells.length(); base += STRIDE) {
+      for (i = 0; i < BUCKETS; i++)
+        s.counts[i] += reset ? cells.getAndSet (base + i, 0) : cells.get (base + i);
+
+      s.count += reset ? cells.getAndSet (base + COUNT, 0) : cells.get (base + COUNT);
+      s.sum += reset ? cells.getAndSet (base + SUM, 0) : cells.get (base + SUM);
+      v = reset ? cells.getAndSet (base + MAX, 0) : cells.get (base + MAX);
+      if (v > s.max)
+        s.max = v;
+    }
+
+    return s;
+  }
+
+
+  static class Snapshot {
+    final long counts[] = new long[BUCKETS];
+    long count;
+    long sum;
+    long max;
+
+
+    public long percentile (double q) {
+      // Returns the upper bound of the bucket holding the q-th quantile, capped at the maximum
+
+      long total = 0, rank;
+      int i;
+
+      for (i = 0; i < BUCKETS; i++)
+        total += counts[i];
+
+      if (total == 0)
+        return 0;
+
+      rank = (long) Math.ceil (q * total);
+      if (rank < 1)
+        rank = 1;
+
+      for (i = 0; i < BUCKETS; i++) {
+        rank -= counts[i];
+        if (rank <= 0)
+          return Math.min (bucketHigh (i), max);
+      }
+
+      return max;
+    }
+
+
+    public double mean () {
+      return (count == 0) ? 0 : (double) sum / count;
+    }
+  }
+}
@@ -18,22 +18,23 @@ class F2Point {
   private F2elm x;
   private F2elm z;
 
-  public static final F2Point INFINITY = new F2Point (F2elm.ONE, F2elm.ZERO);
-
 
   public F2Point (F2elm xc, F2elm zc) {
+    OpCounter.count (OpCounter.POINT_NEW);
     x = new F2elm (xc);
     z = new F2elm (zc);
   }
 
 
   public F2Point (Felm x0, Felm x1, Felm z0, Felm z1) {
+    OpCounter.count (OpCounter.POINT_NEW);
     x = new F2elm (x0, x1);
     z = new F2elm (z0, z1);
   }
 
     
   public F2Point (F2Point p) {
+    OpCounter.count (OpCounter.POINT_NEW);
     x = new F2elm (p.x);
     z = new F2elm (p.z);
   }
@@ -68,7 +69,7 @@ class F2Point {
   public void normalize () {
     z.f2InverseInPlace ();
     x.f2MultInPlace (z);
-    z = new F2elm (F2elm.ONE);
+    z = F2elm.one (x.getField ());
   }
     
 
@@ -93,15 +94,21 @@ class MontCurve {
   protected F2elm aPlus2c;
 
   protected F2elm a24;              
+  protected F2elm c24;              // a24 is (a + 2c : c24) when set, (a + 2)/4 when null
   protected F2elm c4;              
         
 
   public MontCurve() {
+    // For subclasses that set a and c themselves
+  }
+
+
+  public MontCurve (FieldBackend f) {
     // Default curve: y^2 = x^3 + x, ie set a = 0, b = c = 1.
     // Precomputed values are set when needed
 
-    a = new F2elm (F2elm.ZERO);
-    c = new F2elm (F2elm.ONE);
+    a = F2elm.zero (f);
+    c = F2elm.one (f);
   }
 
 
@@ -112,8 +119,14 @@ class MontCurve {
 
 
   public MontCurve (MontCurve curveIn) {
+    // The precomputed values are only ever replaced, never updated in place, so can be shared
     a = new F2elm (curveIn.a);
     c = new F2elm (curveIn.c);
+    a24 = curveIn.a24;
+    c24 = curveIn.c24;
+    c4 = curveIn.c4;
+    aPlus2c = curveIn.aPlus2c;
+    aMinus2c = curveIn.aMinus2c;
   }
 
 
@@ -125,10 +138,20 @@ class MontCurve {
 
     
   public void updateA24 () {
-    a24 = F2elm.leftShift (F2elm.ONE, 1);
+    a24 = F2elm.one (a.getField ());
+    a24.f2LeftShiftInPlace (1);
     a24.f2AddInPlace (a);
     a24.f2Div2InPlace ();
     a24.f2Div2InPlace ();
+    c24 = null;
+  }
+
+
+  public void updateA24Projective () {
+    // a24 = (a + 2c : 4c), for curves whose c is not one, which avoids an inversion
+    c24 = F2elm.leftShift (c, 1);
+    a24 = F2elm.add (a, c24);
+    c24.f2LeftShiftInPlace (1);
   }
 
 
@@ -180,6 +203,19 @@ class MontCurve {
 
 
   public static F2elm recoverA (F2elm px, F2elm qx, F2elm dx) {
+    F2elm ac[] = recoverAC (px, qx, dx);
+
+    ac[1].f2InverseInPlace ();
+    ac[0].f2MultInPlace (ac[1]);
+
+    return ac[0];
+  }
+
+
+  public static F2elm[] recoverAC (F2elm px, F2elm qx, F2elm dx) {
+    // Projective (A:C) of the curve through x(P), x(Q) and x(Q-P):
+    // A = (1 - xPxQ - xPxD - xQxD)^2 - 4xPxQxD(xP + xQ + xD), C = 4xPxQxD
+
     F2elm t0, t1, ra;
 
     t1 = F2elm.add (px, qx);
@@ -187,21 +223,22 @@ class MontCurve {
     ra = F2elm.mult (dx, t1);
     ra.f2AddInPlace (t0);
     t0.f2MultInPlace (dx);
-    ra.f2SubInPlace (F2elm.ONE);
+    ra.f2SubInPlace (F2elm.one (px.getField ()));
     t0.f2LeftShiftInPlace (2);
     t1.f2AddInPlace (dx);
     ra.f2SqrInPlace ();
-    t0.f2InverseInPlace ();
-    ra.f2MultInPlace (t0);
+    t1.f2MultInPlace (t0);
     ra.f2SubInPlace (t1);
 
-    return ra;
+    return new F2elm[] { ra, t0 };
   }
     
 
   public F2Point xDbl (F2Point p) {
     F2elm t0, t1, qx, qz, px, pz;
 
+    OpCounter.count (OpCounter.XDBL);
+
     px = p.getX();
     pz = p.getZ();
 
@@ -224,11 +261,12 @@ class MontCurve {
     // Computes [2^e](px:pz) via e repeated doublings
 
     F2Point q = p;
-    int i;
+    int i, phase = OpCounter.enter (OpCounter.KERNEL);
 
     for (i = 0; i < e; i++)
       q = xDbl (q);
 
+    OpCounter.exit (phase);
     return q;
   }
 
@@ -240,6 +278,8 @@ class MontCurve {
 
     F2elm t0, t1, t2, t3, t4, t5, t6, px, pz, qx, qz;
 
+    OpCounter.count (OpCounter.XTPL);
+
     px = p.getX();
     pz = p.getZ();
 
@@ -273,13 +313,14 @@ class MontCurve {
   public F2Point xTple (F2Point p, int e) {
     // Computes [3^e](px:pz) via e repeated triplings
     
-    int i;
+    int i, phase = OpCounter.enter (OpCounter.KERNEL);
 
     F2Point q = p;
 
     for (i = 0; i < e; i++)
       q = xTpl (q);
 
+    OpCounter.exit (phase);
     return q;
   }
 
@@ -291,6 +332,8 @@ class MontCurve {
     F2elm t0, t1, t2, qx, qz, px, pz;
     F2Point pq[];
 
+    OpCounter.count (OpCounter.XDBLADD);
+
     px = new F2elm (p.getX());
     pz = new F2elm (p.getZ());
     qx = new F2elm (q.getX());
@@ -305,6 +348,8 @@ class MontCurve {
     pz = F2elm.sqr (t1);    
     t1.f2MultInPlace (qx);  
     t2 = F2elm.sub (px, pz);
+    if (c24 != null)
+      pz.f2MultInPlace (c24);
     px.f2MultInPlace (pz);
     qx = F2elm.mult (t2, a24);
     qz = F2elm.sub (t0, t1); 
@@ -327,15 +372,15 @@ class MontCurve {
     // Computes P + m[Q] via x-only arithmetic.
     
     F2Point rs[], r;
-    int i;
+    int i, phase = OpCounter.enter (OpCounter.LADDER);
     BigInteger swap, bit, prevbit = BigInteger.ZERO;
-    F2elm xval;
+    F2elm one = F2elm.one (xp.getField ());
     
     rs = new F2Point[2];
 
-    rs[0] = new F2Point (xq, F2elm.ONE);
-    rs[1] = new F2Point (xpq, F2elm.ONE);
-    r = new F2Point (xp, F2elm.ONE);
+    rs[0] = new F2Point (xq, one);
+    rs[1] = new F2Point (xpq, one);
+    r = new F2Point (xp, one);
 
     for (i = 0; i < obits; i++) {
       bit = m.testBit(i) ? BigInteger.ONE : BigInteger.ZERO;
@@ -347,6 +392,7 @@ class MontCurve {
       rs[1].setX (F2elm.mult (rs[1].getX(), r.getZ()));
     }
 
+    OpCounter.exit (phase);
     return r;
   }
     
@@ -355,6 +401,7 @@ class MontCurve {
     // Computes the j-invariant of a Montgomery curve
 
     F2elm t0, t1, jinv;
+    int phase = OpCounter.enter (OpCounter.JINV);
 
     jinv = F2elm.sqr (a);
     t1 = F2elm.sqr (c);
@@ -371,6 +418,7 @@ class MontCurve {
     jinv.f2InverseInPlace ();
     jinv.f2MultInPlace (t0);
 
+    OpCounter.exit (phase);
     return jinv;
   }
     
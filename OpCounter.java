@@ -0,0 +1,178 @@
+
+package sidh;
+
+/**************************************************************************************************
+ *
+ * Opt-in operation counters for the field, curve and isogeny layers. Counting is switched on by
+ * running with -Dsidh.countOps=true. When it is off, every hook is a test of a static final flag
+ * which the JIT folds away, so the disabled path costs nothing.
+ *
+ * Counts are kept per thread and attributed to the phase that is active when the operation is
+ * performed (ladder, kernel multiplications, isogeny construction, isogeny evaluation, jInv).
+ * Running this class prints the breakdown for key generation and agreement on each parameter set.
+ *
+ **************************************************************************************************/
+
+import java.util.Arrays;
+
+
+class OpCounter {
+  public static final boolean ENABLED = Boolean.getBoolean ("sidh.countOps");
+
+  // Operations that are counted
+
+  public static final int FP_MUL = 0;
+  public static final int FP_SQR = 1;
+  public static final int FP_ADD = 2;
+  public static final int FP_SUB = 3;
+  public static final int FP_INV = 4;
+  public static final int FP_OTHER = 5;          // negation, shifts and halving
+  public static final int FELM_NEW = 6;
+  public static final int F2ELM_NEW = 7;
+  public static final int POINT_NEW = 8;
+  public static final int XDBL = 9;
+  public static final int XTPL = 10;
+  public static final int XDBLADD = 11;
+  public static final int GET_ISOG = 12;
+  public static final int EVAL_ISOG = 13;
+  public static final int NUM_OPS = 14;
+
+  private static final String OP_NAMES[] = {
+    "fpMul", "fpSqr", "fpAdd", "fpSub", "fpInv", "fpOther", "Felm", "F2elm", "F2Point",
+    "xDbl", "xTpl", "xDblAdd", "getIsog", "evalIsog" };
+
+  // Phases that operations are attributed to
+
+  public static final int OTHER = 0;
+  public static final int LADDER = 1;
+  public static final int KERNEL = 2;
+  public static final int ISOG = 3;
+  public static final int EVAL = 4;
+  public static final int JINV = 5;
+  public static final int NUM_PHASES = 6;
+
+  private static final String PHASE_NAMES[] = {
+    "other", "ladder", "kernel", "getIsog", "evalIsog", "jInv" };
+
+  private static final ThreadLocal<OpCounter> local = new ThreadLocal<OpCounter>() {
+    protected OpCounter initialValue() {
+      return new OpCounter ();
+    }
+  };
+
+  private final long counts[][] = new long[NUM_PHASES][NUM_OPS];
+  private int phase = OTHER;
+
+
+  public static void count (int op) {
+    if (ENABLED) {
+      OpCounter c = local.get();
+      c.counts[c.phase][op]++;
+    }
+  }
+
+
+  public static int enter (int phase) {
+    // Switch to a new phase and return the previous one so that it can be restored by exit()
+
+    if (ENABLED) {
+      OpCounter c = local.get();
+      int prev = c.phase;
+      c.phase = phase;
+      return prev;
+    }
+    return OTHER;
+  }
+
+
+  public static void exit (int prev) {
+    if (ENABLED)
+      local.get().phase = prev;
+  }
+
+
+  public static void reset () {
+    if (ENABLED) {
+      OpCounter c = local.get();
+      for (int i = 0; i < NUM_PHASES; i++)
+        Arrays.fill (c.counts[i], 0);
+      c.phase = OTHER;
+    }
+  }
+
+
+  public static long[][] snapshot () {
+    // Returns a copy of the current thread's counts indexed by [phase][operation]
+
+    long res[][] = new long[NUM_PHASES][];
+    OpCounter c = local.get();
+
+    for (int i = 0; i < NUM_PHASES; i++)
+      res[i] = c.counts[i].clone();
+
+    return res;
+  }
+
+
+  public static String format (long counts[][]) {
+    StringBuilder sb = new StringBuilder();
+    long total[] = new long[NUM_OPS];
+    int i, j;
+
+    sb.append (String.format ("%-9s", "phase"));
+    for (j = 0; j < NUM_OPS; j++)
+      sb.append (String.format ("%10s", OP_NAMES[j]));
+    sb.append ("\n");
+
+    for (i = 0; i < NUM_PHASES; i++) {
+      sb.append (String.format ("%-9s", PHASE_NAMES[i]));
+      for (j = 0; j < NUM_OPS; j++) {
+        sb.append (String.format ("%10d", counts[i][j]));
+        total[j] += counts[i][j];
+      }
+      sb.append ("\n");
+    }
+
+    sb.append (String.format ("%-9s", "total"));
+    for (j = 0; j < NUM_OPS; j++)
+      sb.append (String.format ("%10d", total[j]));
+    sb.append ("\n");
+
+    return sb.toString();
+  }
+
+
+  public static void main (String[] args) {
+    String params[] = { "sidhP434", "sidhP503", "sidhP751" };
+    SidhKeyExchange kex;
+    SidhKeyPair keysA, keysB;
+
+    if (!ENABLED) {
+      System.out.println ("Operation counting is disabled, rerun with -Dsidh.countOps=true");
+      return;
+    }
+
+    if (args.length > 0)
+      params = args;
+
+    for (String id : params) {
+      kex = new SidhKeyExchange (id);
+
+      reset ();
+      keysA = kex.generateKeyPair (SidhKeyExchange.ALICE);
+      System.out.println ("\n" + id + " generateKeyPair (ALICE)\n" + format (snapshot ()));
+
+      reset ();
+      keysB = kex.generateKeyPair (SidhKeyExchange.BOB);
+      System.out.println (id + " generateKeyPair (BOB)\n" + format (snapshot ()));
+
+      reset ();
+      kex.calculateAgreementA (keysA.getPrivateKey(), keysB.getPublicKey());
+      System.out.println (id + " calculateAgreementA\n" + format (snapshot ()));
+
+      reset ();
+      kex.calculateAgreementB (keysB.getPrivateKey(), keysA.getPublicKey());
+      System.out.println (id + " calculateAgreementB\n" + format (snapshot ()));
+    }
+  }
+}
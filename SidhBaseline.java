@@ -0,0 +1,394 @@
+
+package sidh;
+
+/**************************************************************************************************
+ *
+ * Performance baseline store and regression gate. "record" times genPubKeyA/B (via
+ * generateKeyPair) and calculateAgreementA/B for each parameter set and stores the samples in a
+ * results file, tagged with the JVM and CPU they were taken on. "compare" takes a fresh set of
+ * samples, tests each benchmark against the stored baseline for the same JVM, CPU and parameter
+ * set with a one-sided Welch t-test, and prints per-benchmark deltas with a pass/fail verdict.
+ * A benchmark fails if it is slower by more than the threshold and the slowdown is significant.
+ * The exit status is 1 if any benchmark fails.
+ *
+ * Usage: SidhBaseline record|compare [-params sidhP434,sidhP503,sidhP751] [-samples 20]
+ *                                    [-warmup 5] [-file sidh-baseline.txt] [-threshold 5]
+ *                                    [-alpha 0.01]
+ *
+ **************************************************************************************************/
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+class SidhBaseline {
+  static final String BENCHMARKS[] = { "genPubKeyA", "genPubKeyB", "calculateAgreementA",
+                                       "calculateAgreementB" };
+
+  String params[] = { "sidhP434", "sidhP503", "sidhP751" };
+  int samples = 20;
+  int warmup = 5;
+  String file = "sidh-baseline.txt";
+  double threshold = 5;
+  double alpha = 0.01;
+
+
+  public static void main (String[] args) throws IOException {
+    SidhBaseline b = new SidhBaseline ();
+    boolean ok;
+
+    if (args.length < 1 || !(args[0].equals ("record") || args[0].equals ("compare"))) {
+      usage ();
+      return;
+    }
+
+    try {
+      b.parseArgs (Arrays.copyOfRange (args, 1, args.length));
+    } catch (IllegalArgumentException ex) {
+      System.err.println (ex.getMessage ());
+      usage ();
+      return;
+    }
+
+    if (args[0].equals ("record")) {
+      b.record ();
+    } else {
+      ok = b.compare ();
+      System.exit (ok ? 0 : 1);
+    }
+  }
+
+
+  static void usage () {
+    System.err.println ("Usage: SidhBaseline record|compare [-params id,...] [-samples n] " +
+                        "[-warmup n] [-file name] [-threshold percent] [-alpha p]");
+    System.exit (2);
+  }
+
+
+  void parseArgs (String[] args) {
+    for (int i = 0; i < args.length; i += 2) {
+      if (i + 1 >= args.length)
+        throw new IllegalArgumentException ("Missing value for " + args[i]);
+
+      String opt = args[i], val = args[i+1];
+
+      try {
+        if (opt.equals ("-params"))
+          params = val.split (",");
+        else if (opt.equals ("-samples"))
+          samples = Integer.parseInt (val);
+        else if (opt.equals ("-warmup"))
+          warmup = Integer.parseInt (val);
+        else if (opt.equals ("-file"))
+          file = val;
+        else if (opt.equals ("-threshold"))
+          threshold = Double.parseDouble (val);
+        else if (opt.equals ("-alpha"))
+          alpha = Double.parseDouble (val);
+        else
+          throw new IllegalArgumentException ("Unknown option " + opt);
+      } catch (NumberFormatException ex) {
+        throw new IllegalArgumentException ("Bad value for " + opt + ": " + val);
+      }
+    }
+
+    if (samples < 2)
+      throw new IllegalArgumentException ("At least two samples are needed");
+  }
+
+
+  static String environment () {
+    // Identifies the JVM and CPU the samples were taken on
+
+    String cpu = null;
+
+    try (BufferedReader in = new BufferedReader (new FileReader ("/proc/cpuinfo"))) {
+      String line;
+      while ((line = in.readLine ()) != null && cpu == null)
+        if (line.startsWith ("model name"))
+          cpu = line.substring (line.indexOf (':') + 1).trim ();
+    } catch (IOException ex) {
+    }
+
+    if (cpu == null)
+      cpu = System.getProperty ("os.arch");
+
+    return System.getProperty ("java.vm.name") + " " + System.getProperty ("java.version") +
+           " | " + cpu + " x" + Runtime.getRuntime().availableProcessors();
+  }
+
+
+  static String key (String env, String id, String benchmark) {
+    return env + "\t" + id + "\t" + benchmark;
+  }
+
+
+  long[][] measure (String id) {
+    // Returns samples[benchmark][i] in nanoseconds
+
+    SidhKeyExchange kex = new SidhKeyExchange (id);
+    SidhKeyPair keysA, keysB;
+    long res[][] = new long[BENCHMARKS.length][samples], t0, t1, t2, t3, t4;
+    int i;
+
+    System.err.println ("Benchmarking " + id);
+
+    for (i = -warmup; i < samples; i++) {
+      t0 = System.nanoTime ();
+      keysA = kex.generateKeyPair (SidhKeyExchange.ALICE);
+      t1 = System.nanoTime ();
+      keysB = kex.generateKeyPair (SidhKeyExchange.BOB);
+      t2 = System.nanoTime ();
+      kex.calculateAgreementA (keysA.getPrivateKey(), keysB.getPublicKey());
+      t3 = System.nanoTime ();
+      kex.calculateAgreementB (keysB.getPrivateKey(), keysA.getPublicKey());
+      t4 = System.nanoTime ();
+
+      if (i >= 0) {
+        res[0][i] = t1 - t0;
+        res[1][i] = t2 - t1;
+        res[2][i] = t3 - t2;
+        res[3][i] = t4 - t3;
+      }
+    }
+
+    return res;
+  }
+
+
+  Map<String, long[]> load () throws IOException {
+    Map<String, long[]> res = new LinkedHashMap<String, long[]> ();
+    File fh = new File (file);
+    String line, fields[], vals[];
+    long s[];
+
+    if (!fh.exists ())
+      return res;
+
+    try (BufferedReader in = new BufferedReader (new FileReader (fh))) {
+      while ((line = in.readLine ()) != null) {
+        if (line.startsWith ("#") || line.trim().isEmpty ())
+          continue;
+
+        fields = line.split ("\t");
+        if (fields.length != 4)
+          throw new IOException ("Malformed line in " + file + ": " + line);
+
+        vals = fields[3].split (",");
+        s = new long[vals.length];
+        for (int i = 0; i < vals.length; i++)
+          s[i] = Long.parseLong (vals[i]);
+
+        res.put (key (fields[0], fields[1], fields[2]), s);
+      }
+    }
+
+    return res;
+  }
+
+
+  void record () throws IOException {
+    Map<String, long[]> store = load ();
+    String env = environment ();
+    long res[][];
+
+    for (String id : params) {
+      res = measure (id);
+      for (int b = 0; b < BENCHMARKS.length; b++)
+        store.put (key (env, id, BENCHMARKS[b]), res[b]);
+    }
+
+    try (PrintWriter out = new PrintWriter (new FileWriter (file))) {
+      out.println ("# SIDH benchmark baseline: environment, parameter set, benchmark, samples (ns)");
+      for (Map.Entry<String, long[]> e : store.entrySet ()) {
+        StringBuilder sb = new StringBuilder (e.getKey ()).append ("\t");
+        for (int i = 0; i < e.getValue().length; i++)
+          sb.append ((i > 0) ? "," : "").append (e.getValue()[i]);
+        out.println (sb);
+      }
+    }
+
+    System.out.println ("Recorded baseline for " + env + " in " + file);
+  }
+
+
+  boolean compare () throws IOException {
+    Map<String, long[]> store = load ();
+    String env = environment (), verdict;
+    long base[], res[][];
+    double delta, p;
+    boolean ok = true, found = false;
+
+    System.out.println ("Environment: " + env);
+    System.out.println (String.format ("%-10s %-20s %12s %12s %9s %9s  %s", "params", "benchmark",
+                                       "base(us)", "new(us)", "delta", "p", "verdict"));
+
+    for (String id : params) {
+      res = measure (id);
+
+      for (int b = 0; b < BENCHMARKS.length; b++) {
+        base = store.get (key (env, id, BENCHMARKS[b]));
+        if (base == null) {
+          System.out.println (String.format ("%-10s %-20s %12s %12.0f %9s %9s  %s", id,
+                                             BENCHMARKS[b], "-", mean (res[b]) / 1000, "-", "-",
+                                             "NO BASELINE"));
+          continue;
+        }
+
+        found = true;
+        delta = 100 * (mean (res[b]) - mean (base)) / mean (base);
+        p = welchUpperP (base, res[b]);
+
+        if (delta > threshold && p < alpha) {
+          verdict = "FAIL";
+          ok = false;
+        } else if (delta < -threshold && 1 - p < alpha) {
+          verdict = "pass (faster)";
+        } else {
+          verdict = "pass";
+        }
+
+        System.out.println (String.format ("%-10s %-20s %12.0f %12.0f %+8.1f%% %9.4f  %s", id,
+                                           BENCHMARKS[b], mean (base) / 1000,
+                                           mean (res[b]) / 1000, delta, p, verdict));
+      }
+    }
+
+    if (!found) {
+      System.out.println ("\nNo baseline recorded for this environment in " + file);
+      return false;
+    }
+
+    System.out.println (ok ? "\nPASS" : "\nFAIL: significant slowdown over " + threshold + "%");
+    return ok;
+  }
+
+
+  static double mean (long x[]) {
+    double s = 0;
+    for (long v : x)
+      s += v;
+    return s / x.length;
+  }
+
+
+  static double variance (long x[]) {
+    double m = mean (x), s = 0;
+    for (long v : x)
+      s += (v - m) * (v - m);
+    return s / (x.length - 1);
+  }
+
+
+  static double welchUpperP (long base[], long cur[]) {
+    // One-sided Welch t-test: probability of a difference at least this large in favour of cur
+    // being slower, if the two means were equal.
+
+    double vb = variance (base) / base.length, vc = variance (cur) / cur.length, t, df;
+
+    if (vb + vc == 0)
+      return (mean (cur) > mean (base)) ? 0 : 1;
+
+    t = (mean (cur) - mean (base)) / Math.sqrt (vb + vc);
+    df = (vb + vc) * (vb + vc) /
+         (vb * vb / (base.length - 1) + vc * vc / (cur.length - 1));
+
+    return studentUpperTail (t, df);
+  }
+
+
+  static double studentUpperTail (double t, double df) {
+    // P(T > t) for Student's t distribution with df degrees of freedom
+    double tail = 0.5 * incompleteBeta (df / (df + t * t), df / 2, 0.5);
+    return (t > 0) ? tail : 1 - tail;
+  }
+
+
+  static double incompleteBeta (double x, double a, double b) {
+    // Regularized incomplete beta function I_x(a, b) by continued fraction (Numerical Recipes)
+
+    double bt;
+
+    if (x <= 0)
+      return 0;
+    if (x >= 1)
+      return 1;
+
+    bt = Math.exp (logGamma (a + b) - logGamma (a) - logGamma (b) + a * Math.log (x) +
+                   b * Math.log (1 - x));
+
+    if (x < (a + 1) / (a + b + 2))
+      return bt * betaContinuedFraction (x, a, b) / a;
+    else
+      return 1 - bt * betaContinuedFraction (1 - x, b, a) / b;
+  }
+
+
+  static double betaContinuedFraction (double x, double a, double b) {
+    double c = 1, d, h, del, aa, tiny = 1e-300;
+    int m, m2;
+
+    d = 1 - (a + b) * x / (a + 1);
+    if (Math.abs (d) < tiny)
+      d = tiny;
+    d = 1 / d;
+    h = d;
+
+    for (m = 1; m <= 300; m++) {
+      m2 = 2 * m;
+      aa = m * (b - m) * x / ((a + m2 - 1) * (a + m2));
+      d = 1 + aa * d;
+      if (Math.abs (d) < tiny)
+        d = tiny;
+      c = 1 + aa / c;
+      if (Math.abs (c) < tiny)
+        c = tiny;
+      d = 1 / d;
+      h *= d * c;
+
+      aa = -(a + m) * (a + b + m) * x / ((a + m2) * (a + m2 + 1));
+      d = 1 + aa * d;
+      if (Math.abs (d) < tiny)
+        d = tiny;
+      c = 1 + aa / c;
+      if (Math.abs (c) < tiny)
+        c = tiny;
+      d = 1 / d;
+      del = d * c;
+      h *= del;
+
+      if (Math.abs (del - 1) < 1e-12)
+        break;
+    }
+
+    return h;
+  }
+
+
+  static double logGamma (double x) {
+    // Lanczos approximation, accurate to about 1e-15 for x > 0
+
+    double g[] = { 676.5203681218851, -1259.1392167224028, 771.32342877765313,
+                   -176.61502916214059, 12.507343278686905, -0.13857109526572012,
+                   9.9843695780195716e-6, 1.5056327351493116e-7 };
+    double a = 0.99999999999980993, t;
+
+    if (x < 0.5)
+      return Math.log (Math.PI / Math.abs (Math.sin (Math.PI * x))) - logGamma (1 - x);
+
+    x -= 1;
+    t = x + 7.5;
+    for (int i = 0; i < g.length; i++)
+      a += g[i] / (x + i + 1);
+
+    return 0.5 * Math.log (2 * Math.PI) + (x + 0.5) * Math.log (t) - t + Math.log (a);
+  }
+}
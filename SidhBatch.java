@@ -0,0 +1,580 @@
+
+package sidh;
+
+/**************************************************************************************************
+ *
+ * Batched key generation and key agreement. Independent operations of the same kind follow
+ * exactly the same sequence of field operations (the same strategy and the same ladder length),
+ * so they are run in lockstep, one per lane of the multi-lane arithmetic in FpLanes. The only
+ * data-dependent step, the ladder's conditional swap, is done with a per-lane mask.
+ *
+ * Results are identical to those of SidhKeyExchange and SidhPublicKey. Inputs are processed in
+ * groups of as many operations as there are lanes; a short final group is padded by repeating
+ * its first input. A SidhBatch owns its working buffers and must only be used by one thread.
+ *
+ **************************************************************************************************/
+
+import java.math.BigInteger;
+
+
+class LanePoint {
+  /* Points in (x:z) coordinates, one per lane */
+
+  final long x[];
+  final long z[];
+
+
+  LanePoint (F2Lanes f2) {
+    x = f2.newElement ();
+    z = f2.newElement ();
+  }
+
+
+  void copy (LanePoint p) {
+    System.arraycopy (p.x, 0, x, 0, x.length);
+    System.arraycopy (p.z, 0, z, 0, z.length);
+  }
+}
+
+
+public class SidhBatch {
+  public static final int DEFAULT_LANES = Integer.getInteger ("sidh.batchLanes", 8);
+
+  private final SidhKeyExchange params;
+  private final FieldBackend field;             // for the keys and secrets handed back
+  private final int lanes;
+  private final FpLanes fp;
+  private final F2Lanes f2;
+
+  // Curve constants for the current group: (A:C) and the derived values used by the formulas
+
+  private final long a[], c[], a24[], c4[], aPlus2c[], aMinus2c[];
+  private final long coeff0[], coeff1[], coeff2[];
+  private final long one[], two[], quarter[];
+  private final long t0[], t1[], t2[], t3[], t4[], t5[], t6[];
+  private final long mask[];
+
+  private final LanePoint r, rs0, rs1, phiP, phiQ, phiD, pts[];
+  private final int ptsIdx[];
+
+
+  public SidhBatch (SidhKeyExchange kex) {
+    this (kex, DEFAULT_LANES);
+  }
+
+
+  public SidhBatch (SidhKeyExchange kex, int numLanes) {
+    int maxPts = Math.max (kex.getMIPA (), kex.getMIPB ());
+
+    params = kex;
+    field = kex.getField ();
+    lanes = numLanes;
+    fp = new FpLanes (kex.getPrime (), lanes);
+    f2 = new F2Lanes (fp);
+
+    a = f2.newElement ();
+    c = f2.newElement ();
+    a24 = f2.newElement ();
+    c4 = f2.newElement ();
+    aPlus2c = f2.newElement ();
+    aMinus2c = f2.newElement ();
+    coeff0 = f2.newElement ();
+    coeff1 = f2.newElement ();
+    coeff2 = f2.newElement ();
+    t0 = f2.newElement ();
+    t1 = f2.newElement ();
+    t2 = f2.newElement ();
+    t3 = f2.newElement ();
+    t4 = f2.newElement ();
+    t5 = f2.newElement ();
+    t6 = f2.newElement ();
+    mask = new long[lanes];
+
+    one = f2.newElement ();
+    two = f2.newElement ();
+    quarter = f2.newElement ();
+    f2.setAll (one, F2elm.one (field));
+    f2.setAll (two, new F2elm (field, 2, 0));
+    f2.setAll (quarter, new F2elm (field, BigInteger.valueOf (4).modInverse (kex.getPrime ()),
+                                   BigInteger.ZERO));
+
+    r = new LanePoint (f2);
+    rs0 = new LanePoint (f2);
+    rs1 = new LanePoint (f2);
+    phiP = new LanePoint (f2);
+    phiQ = new LanePoint (f2);
+    phiD = new LanePoint (f2);
+    pts = new LanePoint[maxPts];
+    for (int i = 0; i < maxPts; i++)
+      pts[i] = new LanePoint (f2);
+    ptsIdx = new int[maxPts];
+  }
+
+
+  public int getLanes () {
+    return lanes;
+  }
+
+
+  public SidhKeyPair[] generateKeyPairs (int aOrB, int count) {
+    SidhPrivateKey privKeys[] = new SidhPrivateKey[count];
+    SidhPublicKey pubKeys[];
+    SidhKeyPair res[] = new SidhKeyPair[count];
+    BigInteger order = (aOrB == SidhKeyExchange.ALICE) ? params.getOrderA () : params.getOrderB ();
+    int i;
+
+    for (i = 0; i < count; i++)
+      privKeys[i] = new SidhPrivateKey (aOrB, order);
+
+    pubKeys = genPubKeys (aOrB, privKeys);
+
+    for (i = 0; i < count; i++)
+      res[i] = new SidhKeyPair (pubKeys[i], privKeys[i]);
+
+    return res;
+  }
+
+
+  public SidhPublicKey[] genPubKeys (int aOrB, SidhPrivateKey privKeys[]) {
+    SidhPublicKey res[] = new SidhPublicKey[privKeys.length];
+    BigInteger keys[] = new BigInteger[lanes];
+    int start, l, n;
+
+    for (start = 0; start < privKeys.length; start += lanes) {
+      n = Math.min (lanes, privKeys.length - start);
+      for (l = 0; l < lanes; l++)
+        keys[l] = privKeys[start + (l < n ? l : 0)].getKey ();
+
+      if (aOrB == SidhKeyExchange.ALICE)
+        genPubKeyA (keys);
+      else
+        genPubKeyB (keys);
+
+      for (l = 0; l < n; l++)
+        res[start + l] = new SidhPublicKey (f2.get (field, phiP.x, l),
+                                            f2.get (field, phiQ.x, l),
+                                            f2.get (field, phiD.x, l));
+    }
+
+    return res;
+  }
+
+
+  public byte[][] calculateAgreementsA (SidhPrivateKey privKeys[], SidhPublicKey pubKeys[]) {
+    return calculateAgreements (SidhKeyExchange.ALICE, privKeys, pubKeys);
+  }
+
+
+  public byte[][] calculateAgreementsB (SidhPrivateKey privKeys[], SidhPublicKey pubKeys[]) {
+    return calculateAgreements (SidhKeyExchange.BOB, privKeys, pubKeys);
+  }
+
+
+  private byte[][] calculateAgreements (int aOrB, SidhPrivateKey privKeys[],
+                                        SidhPublicKey pubKeys[]) {
+    byte res[][] = new byte[privKeys.length][];
+    BigInteger keys[] = new BigInteger[lanes];
+    int start, l, n, k;
+
+    if (privKeys.length != pubKeys.length)
+      throw new IllegalArgumentException ("Private and public key arrays differ in length");
+
+    for (start = 0; start < privKeys.length; start += lanes) {
+      n = Math.min (lanes, privKeys.length - start);
+      for (l = 0; l < lanes; l++) {
+        k = start + (l < n ? l : 0);
+        keys[l] = privKeys[k].getKey ();
+        f2.set (phiP.x, l, pubKeys[k].getP ());
+        f2.set (phiQ.x, l, pubKeys[k].getQ ());
+        f2.set (phiD.x, l, pubKeys[k].getD ());
+      }
+
+      if (aOrB == SidhKeyExchange.ALICE)
+        agreementA (keys);
+      else
+        agreementB (keys);
+
+      for (l = 0; l < n; l++)
+        res[start + l] = f2.get (field, t0, l).toByteArray ();
+    }
+
+    return res;
+  }
+
+
+  private void setBaseCurve () {
+    f2.setAll (a, params.getCurve().a);
+    f2.setAll (c, params.getCurve().c);
+  }
+
+
+  private void updateA24 () {
+    // a24 = (a + 2)/4
+    f2.add (a, two, a24);
+    f2.mul (a24, quarter, a24);
+  }
+
+
+  private void updatePlusMinus () {
+    f2.add (c, c, t0);
+    f2.add (a, t0, aPlus2c);
+    f2.sub (a, t0, aMinus2c);
+  }
+
+
+  private void recoverA (long px[], long qx[], long dx[]) {
+    // Sets a to the curve coefficient recovered from x(P), x(Q) and x(Q-P), and c to one
+
+    f2.add (px, qx, t1);
+    f2.mul (px, qx, t0);
+    f2.mul (dx, t1, a);
+    f2.add (a, t0, a);
+    f2.mul (t0, dx, t0);
+    f2.sub (a, one, a);
+    f2.add (t0, t0, t0);
+    f2.add (t0, t0, t0);
+    f2.add (t1, dx, t1);
+    f2.sqr (a, a);
+    f2.inverse (t0, t0);
+    f2.mul (a, t0, a);
+    f2.sub (a, t1, a);
+    f2.copy (one, c);
+  }
+
+
+  private void jInv () {
+    // Leaves the j-invariant of the curve (a:c) in t0
+
+    f2.sqr (a, t2);
+    f2.sqr (c, t1);
+    f2.add (t1, t1, t0);
+    f2.sub (t2, t0, t0);
+    f2.sub (t0, t1, t0);
+    f2.sub (t0, t1, t2);
+    f2.sqr (t1, t1);
+    f2.mul (t2, t1, t2);
+    f2.add (t0, t0, t0);
+    f2.add (t0, t0, t0);
+    f2.sqr (t0, t1);
+    f2.mul (t0, t1, t0);
+    f2.add (t0, t0, t0);
+    f2.add (t0, t0, t0);
+    f2.inverse (t2, t2);
+    f2.mul (t2, t0, t0);
+  }
+
+
+  private void xDbl (LanePoint p) {
+    f2.sub (p.x, p.z, t0);
+    f2.add (p.x, p.z, t1);
+    f2.sqr (t0, t0);
+    f2.sqr (t1, t1);
+    f2.mul (c4, t0, p.z);
+    f2.mul (t1, p.z, p.x);
+    f2.sub (t1, t0, t1);
+    f2.mul (aPlus2c, t1, t0);
+    f2.add (p.z, t0, p.z);
+    f2.mul (p.z, t1, p.z);
+  }
+
+
+  private void xTpl (LanePoint p) {
+    f2.sub (p.x, p.z, t0);
+    f2.sqr (t0, t2);
+    f2.add (p.x, p.z, t1);
+    f2.sqr (t1, t3);
+    f2.add (p.x, p.x, t4);
+    f2.add (p.z, p.z, t0);
+    f2.sqr (t4, t1);
+    f2.sub (t1, t3, t1);
+    f2.sub (t1, t2, t1);
+    f2.mul (t3, aPlus2c, t5);
+    f2.mul (t3, t5, t3);
+    f2.mul (t2, aMinus2c, t6);
+    f2.mul (t2, t6, t2);
+    f2.sub (t2, t3, t3);
+    f2.sub (t5, t6, t2);
+    f2.mul (t1, t2, t1);
+    f2.add (t1, t3, t2);
+    f2.sqr (t2, t2);
+    f2.mul (t4, t2, p.x);
+    f2.sub (t3, t1, t1);
+    f2.sqr (t1, t1);
+    f2.mul (t0, t1, p.z);
+  }
+
+
+  private void xDblAdd (LanePoint p, LanePoint q, long xpq[]) {
+    // p <- 2p, q <- p + q where xpq is the x coordinate of q - p
+
+    f2.add (p.x, p.z, t0);
+    f2.sub (p.x, p.z, t1);
+    f2.sqr (t0, p.x);
+    f2.sub (q.x, q.z, t2);
+    f2.add (q.x, q.z, q.x);
+    f2.mul (t0, t2, t0);
+    f2.sqr (t1, p.z);
+    f2.mul (t1, q.x, t1);
+    f2.sub (p.x, p.z, t2);
+    f2.mul (p.x, p.z, p.x);
+    f2.mul (t2, a24, q.x);
+    f2.sub (t0, t1, q.z);
+    f2.add (p.z, q.x, p.z);
+    f2.add (t0, t1, q.x);
+    f2.mul (p.z, t2, p.z);
+    f2.sqr (q.z, q.z);
+    f2.sqr (q.x, q.x);
+    f2.mul (q.z, xpq, q.z);
+  }
+
+
+  private void ladder3pt (long xp[], long xq[], long xpq[], BigInteger m[], int obits) {
+    // Computes r = P + m[Q] in every lane. xp and xpq may be overwritten.
+
+    long bit, prevbit[] = new long[lanes];
+    int i, l;
+
+    f2.copy (xq, rs0.x);
+    f2.copy (one, rs0.z);
+    f2.copy (xpq, rs1.x);
+    f2.copy (one, rs1.z);
+    f2.copy (xp, r.x);
+    f2.copy (one, r.z);
+
+    for (i = 0; i < obits; i++) {
+      for (l = 0; l < lanes; l++) {
+        bit = m[l].testBit (i) ? 1 : 0;
+        mask[l] = -(bit ^ prevbit[l]);
+        prevbit[l] = bit;
+      }
+
+      f2.cswap (rs1.x, r.x, mask);
+      f2.cswap (rs1.z, r.z, mask);
+      xDblAdd (rs0, rs1, r.x);
+      f2.mul (rs1.x, r.z, rs1.x);
+    }
+  }
+
+
+  private void get4Isog (LanePoint p) {
+    f2.sub (p.x, p.z, coeff1);
+    f2.add (p.x, p.z, coeff2);
+    f2.sqr (p.z, coeff0);
+    f2.add (coeff0, coeff0, coeff0);
+    f2.sqr (coeff0, c4);
+    f2.add (coeff0, coeff0, coeff0);
+    f2.sqr (p.x, aPlus2c);
+    f2.add (aPlus2c, aPlus2c, aPlus2c);
+    f2.sqr (aPlus2c, aPlus2c);
+  }
+
+
+  private void eval4Isog (LanePoint p) {
+    f2.add (p.x, p.z, t0);
+    f2.sub (p.x, p.z, t1);
+    f2.mul (t0, coeff1, p.x);
+    f2.mul (t1, coeff2, p.z);
+    f2.mul (t0, t1, t0);
+    f2.mul (t0, coeff0, t0);
+    f2.add (p.x, p.z, t1);
+    f2.sub (p.x, p.z, p.z);
+    f2.sqr (t1, t1);
+    f2.sqr (p.z, p.z);
+    f2.add (t0, t1, p.x);
+    f2.sub (p.z, t0, t0);
+    f2.mul (p.x, t1, p.x);
+    f2.mul (p.z, t0, p.z);
+  }
+
+
+  private void get3Isog (LanePoint p) {
+    f2.sub (p.x, p.z, coeff0);
+    f2.sqr (coeff0, t0);
+    f2.add (p.x, p.z, coeff1);
+    f2.sqr (coeff1, t1);
+    f2.add (t0, t1, t2);
+    f2.add (coeff0, coeff1, t3);
+    f2.sqr (t3, t3);
+    f2.sub (t3, t2, t3);
+    f2.add (t1, t3, t2);
+    f2.add (t3, t0, t3);
+    f2.add (t0, t3, t4);
+    f2.add (t4, t4, t4);
+    f2.add (t4, t1, t4);
+    f2.mul (t2, t4, aMinus2c);
+    f2.add (t1, t2, t4);
+    f2.add (t4, t4, t4);
+    f2.add (t4, t0, t4);
+    f2.mul (t4, t3, t4);
+    f2.sub (t4, aMinus2c, t0);
+    f2.add (t0, aMinus2c, aPlus2c);
+  }
+
+
+  private void eval3Isog (LanePoint q) {
+    f2.add (q.x, q.z, t0);
+    f2.sub (q.x, q.z, t1);
+    f2.mul (t0, coeff0, t0);
+    f2.mul (t1, coeff1, t1);
+    f2.add (t1, t0, t2);
+    f2.sub (t1, t0, t0);
+    f2.sqr (t2, t2);
+    f2.sqr (t0, t0);
+    f2.mul (q.x, t2, q.x);
+    f2.mul (q.z, t0, q.z);
+  }
+
+
+  private void traverse (int aOrB, int max, int splits[], boolean evalPhi) {
+    // Walks the strategy from the kernel point in r, leaving the last kernel point in r
+
+    int row, index = 0, npts = 0, ii = 0, m, i, e;
+
+    for (row = 1; row < max; row++) {
+      while (index < max - row) {
+        pts[npts].copy (r);
+        ptsIdx[npts++] = index;
+        m = splits[ii++];
+        if (aOrB == SidhKeyExchange.ALICE) {
+          for (e = 0; e < 2*m; e++)
+            xDbl (r);
+        } else {
+          for (e = 0; e < m; e++)
+            xTpl (r);
+        }
+        index += m;
+      }
+
+      if (aOrB == SidhKeyExchange.ALICE) {
+        get4Isog (r);
+        for (i = 0; i < npts; i++)
+          eval4Isog (pts[i]);
+        if (evalPhi) {
+          eval4Isog (phiP);
+          eval4Isog (phiQ);
+          eval4Isog (phiD);
+        }
+      } else {
+        get3Isog (r);
+        for (i = 0; i < npts; i++)
+          eval3Isog (pts[i]);
+        if (evalPhi) {
+          eval3Isog (phiP);
+          eval3Isog (phiQ);
+          eval3Isog (phiD);
+        }
+      }
+
+      r.copy (pts[npts-1]);
+      index = ptsIdx[npts-1];
+      npts--;
+    }
+  }
+
+
+  private void normalizePhi () {
+    // Replace x(phiP), x(phiQ), x(phiD) by their affine values
+
+    f2.inverse (phiP.z, phiP.z);
+    f2.mul (phiP.x, phiP.z, phiP.x);
+    f2.inverse (phiQ.z, phiQ.z);
+    f2.mul (phiQ.x, phiQ.z, phiQ.x);
+    f2.inverse (phiD.z, phiD.z);
+    f2.mul (phiD.x, phiD.z, phiD.x);
+  }
+
+
+  private void loadGenerators (F2elm gen[], LanePoint p, LanePoint q, LanePoint d) {
+    f2.setAll (p.x, gen[0]);
+    f2.setAll (q.x, gen[1]);
+    f2.setAll (d.x, gen[2]);
+    f2.copy (one, p.z);
+    f2.copy (one, q.z);
+    f2.copy (one, d.z);
+  }
+
+
+  private void genPubKeyA (BigInteger keys[]) {
+    F2elm genA[] = params.getGenA (), genB[] = params.getGenB ();
+
+    setBaseCurve ();
+    updateA24 ();
+
+    loadGenerators (genA, phiP, phiQ, phiD);
+    ladder3pt (phiP.x, phiQ.x, phiD.x, keys, params.getObitsA ());
+    loadGenerators (genB, phiP, phiQ, phiD);
+
+    updatePlusMinus ();
+    f2.add (c, c, c4);
+    f2.add (c4, c4, c4);
+
+    traverse (SidhKeyExchange.ALICE, params.getMaxA (), params.getSplitsA (), true);
+
+    get4Isog (r);
+    eval4Isog (phiP);
+    eval4Isog (phiQ);
+    eval4Isog (phiD);
+    normalizePhi ();
+  }
+
+
+  private void genPubKeyB (BigInteger keys[]) {
+    F2elm genA[] = params.getGenA (), genB[] = params.getGenB ();
+
+    setBaseCurve ();
+    updateA24 ();
+
+    loadGenerators (genB, phiP, phiQ, phiD);
+    ladder3pt (phiP.x, phiQ.x, phiD.x, keys, params.getObitsB ());
+    loadGenerators (genA, phiP, phiQ, phiD);
+
+    updatePlusMinus ();
+
+    traverse (SidhKeyExchange.BOB, params.getMaxB (), params.getSplitsB (), true);
+
+    get3Isog (r);
+    eval3Isog (phiP);
+    eval3Isog (phiQ);
+    eval3Isog (phiD);
+    normalizePhi ();
+  }
+
+
+  private void agreementA (BigInteger keys[]) {
+    // The peer's x(P), x(Q), x(Q-P) have been loaded into phiP.x, phiQ.x and phiD.x
+
+    recoverA (phiP.x, phiQ.x, phiD.x);
+    updateA24 ();
+    f2.add (two, a, aPlus2c);
+    f2.add (two, two, c4);
+
+    ladder3pt (phiP.x, phiQ.x, phiD.x, keys, params.getObitsA ());
+    traverse (SidhKeyExchange.ALICE, params.getMaxA (), params.getSplitsA (), false);
+
+    // updateAC (4): c = c4/4, a = aPlus2c - c4/2
+
+    get4Isog (r);
+    f2.mul (c4, quarter, c);
+    f2.add (c, c, t0);
+    f2.sub (aPlus2c, t0, a);
+    jInv ();
+  }
+
+
+  private void agreementB (BigInteger keys[]) {
+    recoverA (phiP.x, phiQ.x, phiD.x);
+    updateA24 ();
+    updatePlusMinus ();
+
+    ladder3pt (phiP.x, phiQ.x, phiD.x, keys, params.getObitsB ());
+    traverse (SidhKeyExchange.BOB, params.getMaxB (), params.getSplitsB (), false);
+
+    // updateAC (3): a = 2*(aPlus2c + aMinus2c), c = aPlus2c - aMinus2c
+
+    get3Isog (r);
+    f2.add (aPlus2c, aMinus2c, a);
+    f2.add (a, a, a);
+    f2.sub (aPlus2c, aMinus2c, c);
+    jInv ();
+  }
+}
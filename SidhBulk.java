@@ -0,0 +1,359 @@
+
+package sidh;
+
+/**************************************************************************************************
+ *
+ * Offline bulk processing of fixed-width key files, for key rotation and re-agreement jobs.
+ *
+ * Usage: SidhBulk -op agreeA|agreeB|keygenA|keygenB -in file -out file [-key file]
+ *                 [-params sidhP503] [-threads n] [-chunk 1024] [-checkpoint file] [-progress 10]
+ *
+ *   agreeA, agreeB    The input holds the other party's public keys as written by
+ *                     SidhPublicKey.serialize(), 6*primesize bytes each. -key names a file with
+ *                     our private key as written by SidhPrivateKey.serialize(). The output holds
+ *                     the shared secrets, 2*primesize bytes each.
+ *   keygenA, keygenB  The input holds private scalars, big-endian and unsigned, as many bytes
+ *                     each as the party's order needs. The output holds the public keys.
+ *
+ * Records keep their order, and a record that fails (for instance an invalid peer key when
+ * -Dsidh.validateKeys=true) comes out as zeros. Both files are memory-mapped one chunk of records
+ * at a time, and the chunks are shared out over a fork-join pool. With -checkpoint, finished
+ * chunks are recorded once their output has been forced to disk, and a rerun with the same
+ * arguments skips them. The checkpoint also records the parameter set, the party and the input
+ * file's size and modification time, and a rerun against anything else is refused. Progress goes
+ * to stderr every -progress seconds.
+ *
+ **************************************************************************************************/
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+class SidhBulk {
+  public static final int KEYGEN_A = 0;
+  public static final int KEYGEN_B = 1;
+  public static final int AGREE_A = 2;
+  public static final int AGREE_B = 3;
+
+  static final String OP_NAMES[] = { "keygenA", "keygenB", "agreeA", "agreeB" };
+
+  // Checkpoint header: record count, operation, chunk size, party, input size and modification
+  // time in milliseconds, and the parameter set name zero-padded to 16 bytes, then spare bytes
+  static final int CHECKPOINT_HEADER = 64;
+
+  String parameterID = "sidhP503";
+  int op = -1;
+  String input;
+  String output;
+  String keyFile;
+  String checkpoint;
+  int threads = Runtime.getRuntime ().availableProcessors ();
+  int chunk = 1024;
+  double progress = 10;
+
+  // Results
+
+  final AtomicLong processed = new AtomicLong ();
+  final AtomicLong skipped = new AtomicLong ();
+  final AtomicLong failures = new AtomicLong ();
+  long records;
+  double elapsed;
+
+  private SidhKeyExchange kex;
+  private SidhPrivateKey privKey;
+  private int aOrB;
+  private int inWidth;
+  private int outWidth;
+  private FileChannel in;
+  private FileChannel out;
+  private MappedByteBuffer marks;
+
+
+  public static void main (String[] args) throws IOException {
+    SidhBulk job = new SidhBulk ();
+
+    try {
+      job.parseArgs (args);
+      job.run ();
+    } catch (IllegalArgumentException ex) {
+      System.err.println (ex.getMessage ());
+      System.err.println ("Usage: SidhBulk -op agreeA|agreeB|keygenA|keygenB -in file -out file " +
+                          "[-key file] [-params id] [-threads n] [-chunk records] " +
+                          "[-checkpoint file] [-progress sec]");
+      System.exit (1);
+    }
+
+    System.out.print (job.report ());
+  }
+
+
+  void parseArgs (String[] args) {
+    int i;
+
+    for (i = 0; i < args.length; i += 2) {
+      if (i + 1 >= args.length)
+        throw new IllegalArgumentException ("Missing value for " + args[i]);
+
+      String opt = args[i], val = args[i+1];
+
+      try {
+        if (opt.equals ("-op"))
+          op = Arrays.asList (OP_NAMES).indexOf (val);
+        else if (opt.equals ("-in"))
+          input = val;
+        else if (opt.equals ("-out"))
+          output = val;
+        else if (opt.equals ("-key"))
+          keyFile = val;
+        else if (opt.equals ("-params"))
+          parameterID = val;
+        else if (opt.equals ("-threads"))
+          threads = Integer.parseInt (val);
+        else if (opt.equals ("-chunk"))
+          chunk = Integer.parseInt (val);
+        else if (opt.equals ("-checkpoint"))
+          checkpoint = val;
+        else if (opt.equals ("-progress"))
+          progress = Double.parseDouble (val);
+        else
+          throw new IllegalArgumentException ("Unknown option " + opt);
+      } catch (NumberFormatException ex) {
+        throw new IllegalArgumentException ("Bad value for " + opt + ": " + val);
+      }
+    }
+
+    if (op < 0)
+      throw new IllegalArgumentException ("Missing or unknown -op");
+    if (input == null || output == null)
+      throw new IllegalArgumentException ("Input and output files are required");
+    if ((op == AGREE_A || op == AGREE_B) && keyFile == null)
+      throw new IllegalArgumentException ("Agreements need a private key file");
+    if (threads < 1 || chunk < 1 || progress <= 0)
+      throw new IllegalArgumentException ("Threads, chunk size and progress interval must be " +
+                                          "positive");
+  }
+
+
+  public void run () throws IOException {
+    long chunks, start;
+    Thread reporter;
+    ForkJoinPool pool;
+
+    kex = new SidhKeyExchange (parameterID);
+    aOrB = (op == KEYGEN_A || op == AGREE_A) ? SidhKeyExchange.ALICE : SidhKeyExchange.BOB;
+
+    if (op == KEYGEN_A || op == KEYGEN_B) {
+      inWidth = ((aOrB == SidhKeyExchange.ALICE ? kex.getOrderA () : kex.getOrderB ())
+                 .bitLength () + 7) / 8;
+      outWidth = 6 * kex.getPrimeSize ();
+    } else {
+      privKey = new SidhPrivateKey (Files.readAllBytes (Paths.get (keyFile)));
+      inWidth = 6 * kex.getPrimeSize ();
+      outWidth = 2 * kex.getPrimeSize ();
+    }
+
+    in = FileChannel.open (Paths.get (input), StandardOpenOption.READ);
+    out = FileChannel.open (Paths.get (output), StandardOpenOption.CREATE,
+                            StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+    try {
+      if (in.size () % inWidth != 0)
+        throw new IllegalArgumentException (input + " is not a whole number of " + inWidth +
+                                            "-byte records");
+
+      records = in.size () / inWidth;
+      chunks = (records + chunk - 1) / chunk;
+
+      openCheckpoint (chunks);
+      if (out.size () > records * outWidth)
+        out.truncate (records * outWidth);
+      else if (out.size () < records * outWidth)
+        out.write (ByteBuffer.wrap (new byte[1]), records * outWidth - 1);
+
+      reporter = startReporter ();
+      pool = new ForkJoinPool (threads);
+      start = System.nanoTime ();
+      try {
+        pool.invoke (new BulkChunks (this, 0, chunks));
+      } catch (UncheckedIOException ex) {
+        throw ex.getCause ();
+      } finally {
+        reporter.interrupt ();
+        pool.shutdown ();
+      }
+      elapsed = (System.nanoTime () - start) / 1e9;
+    } finally {
+      in.close ();
+      out.close ();
+    }
+  }
+
+
+  private void openCheckpoint (long chunks) throws IOException {
+    // Map one byte per chunk after the header, checking that an existing file is for this job
+
+    ByteBuffer header = ByteBuffer.allocate (CHECKPOINT_HEADER);
+    byte have[] = new byte[CHECKPOINT_HEADER];
+    FileChannel cp;
+    boolean fresh;
+
+    if (checkpoint == null)
+      return;
+
+    header.putLong (records).putInt (op).putInt (chunk).putInt (aOrB);
+    header.putLong (in.size ());
+    header.putLong (Files.getLastModifiedTime (Paths.get (input)).toMillis ());
+    header.put (Arrays.copyOf (parameterID.getBytes (StandardCharsets.US_ASCII), 16));
+
+    cp = FileChannel.open (Paths.get (checkpoint), StandardOpenOption.CREATE,
+                           StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      fresh = cp.size () == 0;
+      marks = cp.map (FileChannel.MapMode.READ_WRITE, 0, CHECKPOINT_HEADER + chunks);
+    } finally {
+      cp.close ();
+    }
+
+    if (fresh) {
+      marks.put (0, header.array ());
+      marks.force ();
+      return;
+    }
+
+    marks.get (0, have);
+    if (!Arrays.equals (have, header.array ()))
+      throw new IllegalArgumentException (checkpoint + " belongs to a different job");
+  }
+
+
+  private Thread startReporter () {
+    Thread t = new Thread (() -> {
+      long last = 0, now;
+
+      try {
+        while (true) {
+          Thread.sleep ((long) (progress * 1000));
+          now = processed.get ();
+          System.err.printf ("%d/%d records (%.1f%%), %.1f records/s%n",
+                             now + skipped.get (), records,
+                             100.0 * (now + skipped.get ()) / Math.max (records, 1),
+                             (now - last) / progress);
+          last = now;
+        }
+      } catch (InterruptedException ex) {
+      }
+    }, "sidh-bulk-progress");
+
+    t.setDaemon (true);
+    t.start ();
+    return t;
+  }
+
+
+  void processChunk (long c) throws IOException {
+    long lo = c * chunk;
+    int n = (int) Math.min (chunk, records - lo), i;
+    MappedByteBuffer src, dst;
+    byte rec[] = new byte[inWidth], zero[] = new byte[outWidth], res[];
+
+    if (marks != null && marks.get ((int) (CHECKPOINT_HEADER + c)) != 0) {
+      skipped.addAndGet (n);
+      return;
+    }
+
+    src = in.map (FileChannel.MapMode.READ_ONLY, lo * inWidth, (long) n * inWidth);
+    dst = out.map (FileChannel.MapMode.READ_WRITE, lo * outWidth, (long) n * outWidth);
+
+    for (i = 0; i < n; i++) {
+      src.get (i * inWidth, rec);
+      res = process (rec);
+      if (res == null || res.length != outWidth) {
+        failures.incrementAndGet ();
+        res = zero;
+      }
+      dst.put (i * outWidth, res);
+      processed.incrementAndGet ();
+    }
+
+    if (marks != null) {
+      dst.force ();
+      synchronized (marks) {
+        marks.put ((int) (CHECKPOINT_HEADER + c), (byte) 1);
+        marks.force ();
+      }
+    }
+  }
+
+
+  private byte[] process (byte[] rec) {
+    try {
+      if (op == KEYGEN_A || op == KEYGEN_B)
+        return kex.generateKeyPair (aOrB, new SidhPrivateKey (new BigInteger (1, rec)))
+          .getPublicKey ().serialize ();
+      else if (aOrB == SidhKeyExchange.ALICE)
+        return kex.calculateAgreementA (privKey, new SidhPublicKey (rec, kex));
+      else
+        return kex.calculateAgreementB (privKey, new SidhPublicKey (rec, kex));
+    } catch (RuntimeException ex) {
+      return null;
+    }
+  }
+
+
+  public String report () {
+    long n = processed.get ();
+
+    return String.format ("%s %s: %d records, %d processed, %d skipped from checkpoint, " +
+                          "%d failed, %.1f s, %.1f records/s%n", parameterID, OP_NAMES[op],
+                          records, n, skipped.get (), failures.get (), elapsed,
+                          (elapsed > 0) ? n / elapsed : 0.0);
+  }
+}
+
+
+class BulkChunks extends RecursiveAction {
+  /* Chunks [lo, hi) of a bulk job, split in halves down to single chunks */
+
+  private static final long serialVersionUID = 1L;
+
+  private final SidhBulk job;
+  private final long lo, hi;
+
+
+  BulkChunks (SidhBulk j, long l, long h) {
+    job = j;
+    lo = l;
+    hi = h;
+  }
+
+
+  protected void compute () {
+    long mid;
+
+    if (hi - lo <= 1) {
+      if (hi > lo) {
+        try {
+          job.processChunk (lo);
+        } catch (IOException ex) {
+          throw new UncheckedIOException (ex);
+        }
+      }
+      return;
+    }
+
+    mid = (lo + hi) >>> 1;
+    invokeAll (new BulkChunks (job, lo, mid), new BulkChunks (job, mid, hi));
+  }
+}
@@ -0,0 +1,27 @@
+
+package sidh;
+
+/**************************************************************************************************
+ *
+ * Thrown when a key generation or agreement is abandoned because its SidhDeadline expired or was
+ * cancelled. No result or partial state escapes an abandoned operation.
+ *
+ **************************************************************************************************/
+
+public class SidhCancelledException extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+
+  private final boolean expired;
+
+
+  SidhCancelledException (boolean deadlineExpired) {
+    super (deadlineExpired ? "SIDH operation deadline expired" : "SIDH operation cancelled");
+    expired = deadlineExpired;
+  }
+
+
+  public boolean isDeadlineExpired () {
+    // False when the operation was cancelled explicitly
+    return expired;
+  }
+}
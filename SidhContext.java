@@ -0,0 +1,1144 @@
+
+package sidh;
+
+/**************************************************************************************************
+ *
+ * Reusable working state for key generation and key agreement. The object layers (F2elm,
+ * F2Point, MontCurve, the isogeny classes) create new elements for nearly every operation; a
+ * SidhContext instead owns every buffer that one operation needs, the strategy's intermediate
+ * points included, and works on the backend's word arrays in place. Once a context exists an
+ * operation allocates only its result. Inversions use Fermat's little theorem rather than
+ * BigInteger so that they do not allocate either, and agreements keep the peer's curve
+ * projective so that jInv is their only inversion.
+ *
+ * Contexts are kept in a pool per parameter set and field backend and are lent out for the
+ * duration of a single operation. An operation never blocks while it holds a context, so at most
+ * one context per carrier thread is in use at any time, however many virtual threads are
+ * running, and the pool keeps a couple per processor. Nothing is tied to a thread. The exception
+ * is a step-wise SidhOperation, which keeps its context between steps; the pool then creates
+ * more, and drops the extras when they come back.
+ *
+ * Operations with an off-heap key (see SidhSecretArena) read the scalar from the arena and wipe
+ * the context before it goes back to the pool.
+ *
+ * Results are identical to the object path, which is still used when operations are counted
+ * (-Dsidh.countOps=true) or when -Dsidh.reuseContext=false.
+ *
+ **************************************************************************************************/
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+class F2Words {
+  /* An element of GF(p^2) as the backend encodings of its two halves */
+
+  final long x0[];
+  final long x1[];
+
+
+  F2Words (FieldBackend f) {
+    x0 = f.newElement ();
+    x1 = f.newElement ();
+  }
+
+
+  void copy (F2Words a) {
+    System.arraycopy (a.x0, 0, x0, 0, x0.length);
+    System.arraycopy (a.x1, 0, x1, 0, x1.length);
+  }
+
+
+  void load (F2elm a) {
+    System.arraycopy (a.f2Get0().getWords (), 0, x0, 0, x0.length);
+    System.arraycopy (a.f2Get1().getWords (), 0, x1, 0, x1.length);
+  }
+
+
+  F2elm toF2elm (FieldBackend f) {
+    return new F2elm (f, x0, x1);
+  }
+}
+
+
+class WordPoint {
+  /* Points in (x:z) coordinates */
+
+  final F2Words x;
+  final F2Words z;
+
+
+  WordPoint (FieldBackend f) {
+    x = new F2Words (f);
+    z = new F2Words (f);
+  }
+
+
+  void copy (WordPoint p) {
+    x.copy (p.x);
+    z.copy (p.z);
+  }
+}
+
+
+class SidhContextPool {
+  /* Lock-free pool of contexts for one parameter set and field backend */
+
+  private final FieldBackend field;
+  private final int maxPts;
+  private final AtomicReferenceArray<SidhContext> slots;
+
+
+  SidhContextPool (FieldBackend f, int maxIntPoints) {
+    field = f;
+    maxPts = maxIntPoints;
+    slots = new AtomicReferenceArray<SidhContext> (2 * Runtime.getRuntime ().availableProcessors ());
+  }
+
+
+  SidhContext acquire () {
+    // Take any pooled context, or build a new one if they are all in use
+
+    int n = slots.length (), start = (int) (Thread.currentThread ().getId () % n);
+    SidhContext ctx;
+
+    for (int i = 0; i < n; i++) {
+      ctx = slots.getAndSet ((start + i) % n, null);
+      if (ctx != null)
+        return ctx;
+    }
+
+    return new SidhContext (field, maxPts);
+  }
+
+
+  void release (SidhContext ctx) {
+    // Return ctx to the pool, dropping it if the pool is full
+
+    int n = slots.length (), start = (int) (Thread.currentThread ().getId () % n);
+
+    for (int i = 0; i < n; i++) {
+      if (slots.compareAndSet ((start + i) % n, null, ctx))
+        return;
+    }
+  }
+}
+
+
+class SidhContext {
+  public static final boolean ENABLED =
+    !OpCounter.ENABLED && !"false".equals (System.getProperty ("sidh.reuseContext"));
+
+  private final FieldBackend f;
+  private final BigInteger pMinus2;
+
+  // Curve constants: (A:C) and the derived values used by the formulas
+
+  private final F2Words a, c, a24, c24, c4, aPlus2c, aMinus2c;
+  private final F2Words coeff0, coeff1, coeff2;
+  private final F2Words kerY[], kerZ[];           // X-Z and X+Z of K, 2K, 3K, 4K for 9-isogenies
+  private final F2Words one, two;
+  private final F2Words t0, t1, t2, t3, t4, t5, t6;
+  private final long u0[], u1[], u2[], u3[], w0[], w1[];       // GF(p) scratch
+
+  private final long coeffSum[][], kerYSum[][], kerZSum[][];   // x0 + x1 of each, see evalMany
+
+  // The points an isogeny is evaluated at sit together in pts: the images of the other party's
+  // generators in the first PHI slots, then the strategy's stack of intermediate points
+
+  private static final int PHI = 3;
+
+  private final WordPoint r, rs0, rs1, phiP, phiQ, phiD, kp, pts[];
+  private final int ptsIdx[];
+  private boolean projectiveA24;                // a24 is (a + 2c : c24) rather than (a + 2)/4
+
+  // The operation in progress, which step advances a unit at a time
+
+  private static final int LADDER = 0;
+  private static final int STRATEGY = 1;
+  private static final int FINAL = 2;
+  private static final int JINV = 3;
+  private static final int DONE = 4;
+
+  private int phase = DONE;
+  private int opAOrB;
+  private boolean evalPhi;                      // key generation: carry the other generators
+  private boolean nine, first3;                 // B walks in 9-isogenies, the first maybe a 3
+  private String opName;
+  private SidhKeyExchange params;
+  private SidhPrivateKey key;
+  private SidhPublicKey out;
+  private SidhPreparedKey fixed;                // peer with a table of 2^i Q, or null
+  private SidhDeadline deadline;
+  private SidhOperationEvent opEvent;
+  private SidhPhaseEvent phEvent;
+  private byte shared[];
+  private int obits, bit;                       // ladder position
+  private long prevbit;
+  private int max, splits[], row, index, npts, ii, mult;    // strategy position
+
+
+  SidhContext (FieldBackend field, int maxPts) {
+    f = field;
+    pMinus2 = f.getPrime ().subtract (BigInteger.valueOf (2));
+
+    a = new F2Words (f);
+    c = new F2Words (f);
+    a24 = new F2Words (f);
+    c24 = new F2Words (f);
+    c4 = new F2Words (f);
+    aPlus2c = new F2Words (f);
+    aMinus2c = new F2Words (f);
+    coeff0 = new F2Words (f);
+    coeff1 = new F2Words (f);
+    coeff2 = new F2Words (f);
+    kerY = new F2Words[4];
+    kerZ = new F2Words[4];
+    for (int i = 0; i < 4; i++) {
+      kerY[i] = new F2Words (f);
+      kerZ[i] = new F2Words (f);
+    }
+    coeffSum = new long[3][];
+    kerYSum = new long[4][];
+    kerZSum = new long[4][];
+    for (int i = 0; i < 4; i++) {
+      if (i < 3)
+        coeffSum[i] = f.newElement ();
+      kerYSum[i] = f.newElement ();
+      kerZSum[i] = f.newElement ();
+    }
+    t0 = new F2Words (f);
+    t1 = new F2Words (f);
+    t2 = new F2Words (f);
+    t3 = new F2Words (f);
+    t4 = new F2Words (f);
+    t5 = new F2Words (f);
+    t6 = new F2Words (f);
+
+    u0 = f.newElement ();
+    u1 = f.newElement ();
+    u2 = f.newElement ();
+    u3 = f.newElement ();
+    w0 = f.newElement ();
+    w1 = f.newElement ();
+
+    one = new F2Words (f);
+    two = new F2Words (f);
+    f.fromBigInteger (BigInteger.ONE, one.x0);
+    f.fromBigInteger (BigInteger.valueOf (2), two.x0);
+
+    r = new WordPoint (f);
+    rs0 = new WordPoint (f);
+    rs1 = new WordPoint (f);
+    kp = new WordPoint (f);
+    pts = new WordPoint[PHI + maxPts];
+    for (int i = 0; i < pts.length; i++)
+      pts[i] = new WordPoint (f);
+    phiP = pts[0];
+    phiQ = pts[1];
+    phiD = pts[2];
+    ptsIdx = new int[maxPts];
+  }
+
+
+  void wipe () {
+    // Zero everything that can hold secret-dependent values; one and two are constants
+
+    F2Words all[] = { a, c, a24, c24, c4, aPlus2c, aMinus2c, coeff0, coeff1, coeff2,
+                      t0, t1, t2, t3, t4, t5, t6 };
+    WordPoint points[] = { r, rs0, rs1, kp };
+
+    for (F2Words x : all)
+      clear (x);
+    for (int i = 0; i < 4; i++) {
+      clear (kerY[i]);
+      clear (kerZ[i]);
+    }
+    for (WordPoint q : points) {
+      clear (q.x);
+      clear (q.z);
+    }
+    for (WordPoint q : pts) {
+      clear (q.x);
+      clear (q.z);
+    }
+    for (int i = 0; i < 4; i++) {
+      if (i < 3)
+        Arrays.fill (coeffSum[i], 0);
+      Arrays.fill (kerYSum[i], 0);
+      Arrays.fill (kerZSum[i], 0);
+    }
+    Arrays.fill (u0, 0);
+    Arrays.fill (u1, 0);
+    Arrays.fill (u2, 0);
+    Arrays.fill (u3, 0);
+    Arrays.fill (w0, 0);
+    Arrays.fill (w1, 0);
+  }
+
+
+  private static void clear (F2Words x) {
+    Arrays.fill (x.x0, 0);
+    Arrays.fill (x.x1, 0);
+  }
+
+
+  // Arithmetic in GF(p^2). The output may alias any input.
+
+  private void add (F2Words x, F2Words y, F2Words z) {
+    f.add (x.x0, y.x0, z.x0);
+    f.add (x.x1, y.x1, z.x1);
+  }
+
+
+  private void sub (F2Words x, F2Words y, F2Words z) {
+    f.sub (x.x0, y.x0, z.x0);
+    f.sub (x.x1, y.x1, z.x1);
+  }
+
+
+  private void mul (F2Words x, F2Words y, F2Words z) {
+    // (x0 + i*x1)(y0 + i*y1) = x0y0 - x1y1 + i*((x0+x1)(y0+y1) - x0y0 - x1y1)
+
+    f.mul (x.x0, y.x0, u0);
+    f.mul (x.x1, y.x1, u1);
+    f.add (x.x0, x.x1, u2);
+    f.add (y.x0, y.x1, u3);
+    f.mul (u2, u3, z.x1);
+    f.sub (z.x1, u0, z.x1);
+    f.sub (z.x1, u1, z.x1);
+    f.sub (u0, u1, z.x0);
+  }
+
+
+  private void mulPre (F2Words x, F2Words y, long ySum[], F2Words z) {
+    // mul with y0 + y1 computed beforehand, for an isogeny's coefficients
+
+    f.mul (x.x0, y.x0, u0);
+    f.mul (x.x1, y.x1, u1);
+    f.add (x.x0, x.x1, u2);
+    f.mul (u2, ySum, z.x1);
+    f.sub (z.x1, u0, z.x1);
+    f.sub (z.x1, u1, z.x1);
+    f.sub (u0, u1, z.x0);
+  }
+
+
+  private void sqr (F2Words x, F2Words z) {
+    // (x0 + i*x1)^2 = (x0+x1)(x0-x1) + i*2*x0*x1
+
+    f.add (x.x0, x.x1, u0);
+    f.sub (x.x0, x.x1, u1);
+    f.add (x.x0, x.x0, u2);
+    f.mul (x.x1, u2, u3);
+    f.mul (u0, u1, z.x0);
+    System.arraycopy (u3, 0, z.x1, 0, u3.length);
+  }
+
+
+  private void inverse (F2Words x, F2Words z) {
+    // 1/(x0 + i*x1) = (x0 - i*x1)/(x0^2 + x1^2)
+
+    f.sqr (x.x0, u0);
+    f.sqr (x.x1, u1);
+    f.add (u0, u1, u0);
+    fpInverse (u0, u1);
+    f.mul (x.x0, u1, u2);
+    f.mul (x.x1, u1, u3);
+    f.neg (u3, z.x1);
+    System.arraycopy (u2, 0, z.x0, 0, u2.length);
+  }
+
+
+  private void fpInverse (long x[], long z[]) {
+    // z = x^(p-2). The exponent is public, so the branches do not matter.
+
+    long s[] = w0, t[] = w1, tmp[];
+
+    System.arraycopy (x, 0, s, 0, x.length);
+    for (int i = pMinus2.bitLength () - 2; i >= 0; i--) {
+      f.sqr (s, t);
+      tmp = s; s = t; t = tmp;
+      if (pMinus2.testBit (i)) {
+        f.mul (s, x, t);
+        tmp = s; s = t; t = tmp;
+      }
+    }
+
+    System.arraycopy (s, 0, z, 0, s.length);
+  }
+
+
+  private void div4 (F2Words x, F2Words z) {
+    f.div2 (x.x0, z.x0);
+    f.div2 (z.x0, z.x0);
+    f.div2 (x.x1, z.x1);
+    f.div2 (z.x1, z.x1);
+  }
+
+
+  private void cswap (F2Words x, F2Words y, long mask) {
+    FieldBackend.cswap (x.x0, y.x0, mask);
+    FieldBackend.cswap (x.x1, y.x1, mask);
+  }
+
+
+  // Curves
+
+  private void updateA24 () {
+    // a24 = (a + 2)/4
+    add (a, two, a24);
+    div4 (a24, a24);
+    projectiveA24 = false;
+  }
+
+
+  private void updateA24Projective () {
+    // a24 = (a + 2c : 4c)
+    add (c, c, c24);
+    add (a, c24, a24);
+    add (c24, c24, c24);
+    projectiveA24 = true;
+  }
+
+
+  private void updatePlusMinus () {
+    add (c, c, t0);
+    add (a, t0, aPlus2c);
+    sub (a, t0, aMinus2c);
+  }
+
+
+  private void recoverAC (F2Words px, F2Words qx, F2Words dx) {
+    // Sets (a:c) to the curve recovered from x(P), x(Q) and x(Q-P) without inverting
+
+    add (px, qx, t1);
+    mul (px, qx, t0);
+    mul (dx, t1, a);
+    add (a, t0, a);
+    mul (t0, dx, t0);
+    sub (a, one, a);
+    add (t0, t0, t0);
+    add (t0, t0, t0);
+    add (t1, dx, t1);
+    sqr (a, a);
+    mul (t1, t0, t1);
+    sub (a, t1, a);
+    c.copy (t0);
+  }
+
+
+  private void jInv () {
+    // Leaves the j-invariant of the curve (a:c) in t0
+
+    sqr (a, t2);
+    sqr (c, t1);
+    add (t1, t1, t0);
+    sub (t2, t0, t0);
+    sub (t0, t1, t0);
+    sub (t0, t1, t2);
+    sqr (t1, t1);
+    mul (t2, t1, t2);
+    add (t0, t0, t0);
+    add (t0, t0, t0);
+    sqr (t0, t1);
+    mul (t0, t1, t0);
+    add (t0, t0, t0);
+    add (t0, t0, t0);
+    inverse (t2, t2);
+    mul (t2, t0, t0);
+  }
+
+
+  private void xDbl (WordPoint p) {
+    sub (p.x, p.z, t0);
+    add (p.x, p.z, t1);
+    sqr (t0, t0);
+    sqr (t1, t1);
+    mul (c4, t0, p.z);
+    mul (t1, p.z, p.x);
+    sub (t1, t0, t1);
+    mul (aPlus2c, t1, t0);
+    add (p.z, t0, p.z);
+    mul (p.z, t1, p.z);
+  }
+
+
+  private void xTpl (WordPoint p) {
+    sub (p.x, p.z, t0);
+    sqr (t0, t2);
+    add (p.x, p.z, t1);
+    sqr (t1, t3);
+    add (p.x, p.x, t4);
+    add (p.z, p.z, t0);
+    sqr (t4, t1);
+    sub (t1, t3, t1);
+    sub (t1, t2, t1);
+    mul (t3, aPlus2c, t5);
+    mul (t3, t5, t3);
+    mul (t2, aMinus2c, t6);
+    mul (t2, t6, t2);
+    sub (t2, t3, t3);
+    sub (t5, t6, t2);
+    mul (t1, t2, t1);
+    add (t1, t3, t2);
+    sqr (t2, t2);
+    mul (t4, t2, p.x);
+    sub (t3, t1, t1);
+    sqr (t1, t1);
+    mul (t0, t1, p.z);
+  }
+
+
+  private void xDblAdd (WordPoint p, WordPoint q, F2Words xpq) {
+    // p <- 2p, q <- p + q where xpq is the x coordinate of q - p
+
+    add (p.x, p.z, t0);
+    sub (p.x, p.z, t1);
+    sqr (t0, p.x);
+    sub (q.x, q.z, t2);
+    add (q.x, q.z, q.x);
+    mul (t0, t2, t0);
+    sqr (t1, p.z);
+    mul (t1, q.x, t1);
+    sub (p.x, p.z, t2);
+    if (projectiveA24)
+      mul (p.z, c24, p.z);
+    mul (p.x, p.z, p.x);
+    mul (t2, a24, q.x);
+    sub (t0, t1, q.z);
+    add (p.z, q.x, p.z);
+    add (t0, t1, q.x);
+    mul (p.z, t2, p.z);
+    sqr (q.z, q.z);
+    sqr (q.x, q.x);
+    mul (q.z, xpq, q.z);
+  }
+
+
+  private void ladderStart (F2Words xp, F2Words xq, F2Words xpq) {
+    // Sets up r = P + m[Q], which ladderBit computes one bit of the key at a time. xp, xq and xpq
+    // must not be r, rs0 or rs1's coordinates.
+
+    prevbit = 0;
+    bit = 0;
+
+    rs0.x.copy (xq);
+    rs0.z.copy (one);
+    rs1.x.copy (xpq);
+    rs1.z.copy (one);
+    r.x.copy (xp);
+    r.z.copy (one);
+  }
+
+
+  private void ladderBitFixed () {
+    // ladderBit with the multiples of Q taken from the prepared peer key: rs1 <- 2^i Q + rs1,
+    // whose difference is r, using x(2^i Q) + 1 and x(2^i Q) - 1 in place of (X+Z) and (X-Z)
+
+    long b = key.bit (bit);
+
+    cswap (rs1.x, r.x, -(b ^ prevbit));
+    cswap (rs1.z, r.z, -(b ^ prevbit));
+    prevbit = b;
+
+    sub (rs1.x, rs1.z, t2);
+    add (rs1.x, rs1.z, t3);
+    mul (fixed.plus[bit], t2, t0);
+    mul (fixed.minus[bit], t3, t1);
+    sub (t0, t1, rs1.z);
+    add (t0, t1, rs1.x);
+    sqr (rs1.z, rs1.z);
+    sqr (rs1.x, rs1.x);
+    mul (rs1.z, r.x, rs1.z);
+    mul (rs1.x, r.z, rs1.x);
+    bit++;
+  }
+
+
+  private void ladderBit () {
+    long b = key.bit (bit++);
+
+    cswap (rs1.x, r.x, -(b ^ prevbit));
+    cswap (rs1.z, r.z, -(b ^ prevbit));
+    prevbit = b;
+
+    xDblAdd (rs0, rs1, r.x);
+    mul (rs1.x, r.z, rs1.x);
+  }
+
+
+  private void get4Isog (WordPoint p) {
+    sub (p.x, p.z, coeff1);
+    add (p.x, p.z, coeff2);
+    sqr (p.z, coeff0);
+    add (coeff0, coeff0, coeff0);
+    sqr (coeff0, c4);
+    add (coeff0, coeff0, coeff0);
+    sqr (p.x, aPlus2c);
+    add (aPlus2c, aPlus2c, aPlus2c);
+    sqr (aPlus2c, aPlus2c);
+  }
+
+
+  private void eval4Isog (WordPoint p) {
+    add (p.x, p.z, t0);
+    sub (p.x, p.z, t1);
+    mulPre (t0, coeff1, coeffSum[1], p.x);
+    mulPre (t1, coeff2, coeffSum[2], p.z);
+    mul (t0, t1, t0);
+    mulPre (t0, coeff0, coeffSum[0], t0);
+    add (p.x, p.z, t1);
+    sub (p.x, p.z, p.z);
+    sqr (t1, t1);
+    sqr (p.z, p.z);
+    add (t0, t1, p.x);
+    sub (p.z, t0, t0);
+    mul (p.x, t1, p.x);
+    mul (p.z, t0, p.z);
+  }
+
+
+  private void get3Isog (WordPoint p) {
+    sub (p.x, p.z, coeff0);
+    sqr (coeff0, t0);
+    add (p.x, p.z, coeff1);
+    sqr (coeff1, t1);
+    add (t0, t1, t2);
+    add (coeff0, coeff1, t3);
+    sqr (t3, t3);
+    sub (t3, t2, t3);
+    add (t1, t3, t2);
+    add (t3, t0, t3);
+    add (t0, t3, t4);
+    add (t4, t4, t4);
+    add (t4, t1, t4);
+    mul (t2, t4, aMinus2c);
+    add (t1, t2, t4);
+    add (t4, t4, t4);
+    add (t4, t0, t4);
+    mul (t4, t3, t4);
+    sub (t4, aMinus2c, t0);
+    add (t0, aMinus2c, aPlus2c);
+  }
+
+
+  private void eval3Isog (WordPoint q) {
+    add (q.x, q.z, t0);
+    sub (q.x, q.z, t1);
+    mulPre (t0, coeff0, coeffSum[0], t0);
+    mulPre (t1, coeff1, coeffSum[1], t1);
+    add (t1, t0, t2);
+    sub (t1, t0, t0);
+    sqr (t2, t2);
+    sqr (t0, t0);
+    mul (q.x, t2, q.x);
+    mul (q.z, t0, q.z);
+  }
+
+
+  private void setKernel (int i, WordPoint p) {
+    sub (p.x, p.z, kerY[i]);
+    add (p.x, p.z, kerZ[i]);
+  }
+
+
+  private void get9Isog (WordPoint k) {
+    // 9-isogeny with kernel generated by k, using the Costello-Hisil evaluation and the
+    // Meyer-Reith image curve: A+2C becomes (A+2C)^9 * prod(X+Z)^8 and A-2C becomes
+    // (A-2C)^9 * prod(X-Z)^8, the products running over K, 2K, 3K and 4K
+
+    int i;
+
+    sub (aPlus2c, aMinus2c, c4);                // xDbl works with (A+2C : 4C)
+    kp.copy (k);
+    setKernel (0, kp);
+    xDbl (kp);
+    setKernel (1, kp);
+    xDbl (kp);
+    setKernel (3, kp);
+    kp.copy (k);
+    xTpl (kp);
+    setKernel (2, kp);
+
+    mul (kerZ[0], kerZ[1], t0);
+    mul (kerY[0], kerY[1], t1);
+    for (i = 2; i < 4; i++) {
+      mul (t0, kerZ[i], t0);
+      mul (t1, kerY[i], t1);
+    }
+
+    for (i = 0; i < 3; i++) {
+      sqr (t0, t0);
+      sqr (t1, t1);
+    }
+
+    sqr (aPlus2c, t2);
+    sqr (aMinus2c, t3);
+    for (i = 0; i < 2; i++) {
+      sqr (t2, t2);
+      sqr (t3, t3);
+    }
+    mul (t2, aPlus2c, t2);
+    mul (t3, aMinus2c, t3);
+
+    mul (t2, t0, aPlus2c);
+    mul (t3, t1, aMinus2c);
+  }
+
+
+  private void eval9Isog (WordPoint q) {
+    // (X : Z) -> (X * prod((X+Z)(Xi-Zi) + (X-Z)(Xi+Zi))^2 : Z * prod((X+Z)(Xi-Zi) - (X-Z)(Xi+Zi))^2)
+
+    add (q.x, q.z, t0);
+    sub (q.x, q.z, t1);
+
+    mulPre (t0, kerY[0], kerYSum[0], t2);
+    mulPre (t1, kerZ[0], kerZSum[0], t3);
+    add (t3, t2, t4);
+    sub (t3, t2, t5);
+
+    for (int i = 1; i < 4; i++) {
+      mulPre (t0, kerY[i], kerYSum[i], t2);
+      mulPre (t1, kerZ[i], kerZSum[i], t3);
+      add (t3, t2, t6);
+      mul (t4, t6, t4);
+      sub (t3, t2, t6);
+      mul (t5, t6, t5);
+    }
+
+    sqr (t4, t4);
+    sqr (t5, t5);
+    mul (q.x, t4, q.x);
+    mul (q.z, t5, q.z);
+  }
+
+
+  private int degree (int row) {
+    // Degree of the isogeny at the end of a strategy row. B's 9-isogeny walk starts with a
+    // 3-isogeny when eB is odd.
+
+    if (opAOrB == SidhKeyExchange.ALICE)
+      return 4;
+    if (nine && !(row == 1 && first3))
+      return 9;
+    return 3;
+  }
+
+
+  private void getIsog (int deg, WordPoint k) {
+    if (deg == 4)
+      get4Isog (k);
+    else if (deg == 9)
+      get9Isog (k);
+    else
+      get3Isog (k);
+  }
+
+
+  private void evalMany (int deg, int from, int to) {
+    // Evaluate the isogeny from the last getIsog at pts[from..to). The sums x0 + x1 of the
+    // coefficients, which every product with them needs, are worked out once for all the points.
+
+    int i;
+
+    if (deg == 9) {
+      for (i = 0; i < 4; i++) {
+        f.add (kerY[i].x0, kerY[i].x1, kerYSum[i]);
+        f.add (kerZ[i].x0, kerZ[i].x1, kerZSum[i]);
+      }
+      for (i = from; i < to; i++)
+        eval9Isog (pts[i]);
+    } else if (deg == 4) {
+      f.add (coeff0.x0, coeff0.x1, coeffSum[0]);
+      f.add (coeff1.x0, coeff1.x1, coeffSum[1]);
+      f.add (coeff2.x0, coeff2.x1, coeffSum[2]);
+      for (i = from; i < to; i++)
+        eval4Isog (pts[i]);
+    } else {
+      f.add (coeff0.x0, coeff0.x1, coeffSum[0]);
+      f.add (coeff1.x0, coeff1.x1, coeffSum[1]);
+      for (i = from; i < to; i++)
+        eval3Isog (pts[i]);
+    }
+  }
+
+
+  private void strategyStart (int m, int s[]) {
+    max = m;
+    splits = s;
+    row = 1;
+    index = 0;
+    npts = 0;
+    ii = 0;
+    mult = 0;
+  }
+
+
+  private void strategyUnit () {
+    // One multiplication by the isogeny's degree, or the isogeny that ends a row, of the walk
+    // from the kernel point in r. The walk leaves the last kernel point in r.
+
+    int deg;
+
+    if (mult > 0) {
+      if (opAOrB == SidhKeyExchange.ALICE) {
+        xDbl (r);
+        xDbl (r);
+      } else if (nine) {
+        xTpl (r);
+        xTpl (r);
+      } else
+        xTpl (r);
+      mult--;
+      return;
+    }
+
+    if (index < max - row) {
+      pts[PHI + npts].copy (r);
+      ptsIdx[npts++] = index;
+      mult = splits[ii++];
+      index += mult;
+      return;
+    }
+
+    deg = degree (row);
+    getIsog (deg, r);
+    evalMany (deg, evalPhi ? 0 : PHI, PHI + npts);
+
+    r.copy (pts[PHI + npts - 1]);
+    index = ptsIdx[npts-1];
+    npts--;
+    row++;
+    if (deadline != null && row < max)
+      deadline.check ();
+  }
+
+
+  private void normalizePhi () {
+    // Replace x(phiP), x(phiQ), x(phiD) by their affine values with one shared inversion
+
+    mul (phiP.z, phiQ.z, t4);
+    mul (t4, phiD.z, t5);
+    inverse (t5, t5);                       // 1/(zP*zQ*zD)
+    mul (t5, t4, t6);                       // 1/zD
+    mul (t5, phiD.z, t5);                   // 1/(zP*zQ)
+    mul (phiD.x, t6, phiD.x);
+    mul (t5, phiQ.z, t6);                   // 1/zP
+    mul (t5, phiP.z, t5);                   // 1/zQ
+    mul (phiP.x, t6, phiP.x);
+    mul (phiQ.x, t5, phiQ.x);
+  }
+
+
+  private void loadGenerators (F2elm gen[], WordPoint p, WordPoint q, WordPoint d) {
+    p.x.load (gen[0]);
+    q.x.load (gen[1]);
+    d.x.load (gen[2]);
+    p.z.copy (one);
+    q.z.copy (one);
+    d.z.copy (one);
+  }
+
+
+  // Key operations. begin sets up an operation and step runs it in units of a ladder bit, a
+  // strategy multiplication or isogeny, or a final step, so that a caller can interleave it with
+  // other work; genPubKey and agreement run one to the end. Phase events cover the wall time
+  // between their first and last units.
+
+  private void begin (String name, int aOrB, SidhPrivateKey k, SidhKeyExchange kex,
+                      SidhDeadline d) {
+    opName = name;
+    opAOrB = aOrB;
+    key = k;
+    params = kex;
+    deadline = d;
+    nine = (aOrB == SidhKeyExchange.BOB && kex.getBobStep () == 9);
+    first3 = nine && (kex.parameters.eB & 1) != 0;
+    obits = (aOrB == SidhKeyExchange.ALICE) ? kex.getObitsA () : kex.getObitsB ();
+    shared = null;
+    fixed = null;
+    opEvent = SidhOperationEvent.start (name, kex, aOrB);
+  }
+
+
+  void beginPubKey (int aOrB, SidhPrivateKey k, SidhKeyExchange kex, SidhPublicKey o,
+                    SidhDeadline d) {
+    begin ((aOrB == SidhKeyExchange.ALICE) ? "genPubKeyA" : "genPubKeyB", aOrB, k, kex, d);
+    out = o;
+    evalPhi = true;
+
+    a.load (kex.getCurve ().a);
+    c.load (kex.getCurve ().c);
+    updateA24 ();
+    updatePlusMinus ();
+    add (c, c, c4);
+    add (c4, c4, c4);
+
+    // The own generators give the kernel; the other party's are carried through the walk
+    phEvent = SidhPhaseEvent.start (opName, SidhPhaseEvent.LADDER, kex, aOrB);
+    if (aOrB == SidhKeyExchange.ALICE)
+      loadGenerators (kex.getGenA (), phiP, phiQ, phiD);
+    else
+      loadGenerators (kex.getGenB (), phiP, phiQ, phiD);
+    ladderStart (phiP.x, phiQ.x, phiD.x);
+    phase = LADDER;
+  }
+
+
+  void beginAgreement (int aOrB, SidhPrivateKey k, SidhPublicKey peer, SidhKeyExchange kex,
+                       SidhDeadline d) {
+    begin ((aOrB == SidhKeyExchange.ALICE) ? "calculateAgreementA" : "calculateAgreementB", aOrB,
+           k, kex, d);
+    out = null;
+    evalPhi = false;
+    peer = peer.forField (f);
+
+    phiP.x.load (peer.getP ());
+    phiQ.x.load (peer.getQ ());
+    phiD.x.load (peer.getD ());
+
+    // The peer's curve is kept projective, so the only inversion is in jInv
+
+    recoverAC (phiP.x, phiQ.x, phiD.x);
+    updateA24Projective ();
+    updatePlusMinus ();
+    c4.copy (c24);
+
+    phEvent = SidhPhaseEvent.start (opName, SidhPhaseEvent.LADDER, kex, aOrB);
+    ladderStart (phiP.x, phiQ.x, phiD.x);
+    phase = LADDER;
+  }
+
+
+  void beginAgreement (int aOrB, SidhPrivateKey k, SidhPreparedKey peer, SidhKeyExchange kex,
+                       SidhDeadline d) {
+    // As above, with the peer's curve and the multiples of its Q point from peer
+    begin ((aOrB == SidhKeyExchange.ALICE) ? "calculateAgreementA" : "calculateAgreementB", aOrB,
+           k, kex, d);
+    out = null;
+    evalPhi = false;
+    fixed = peer;
+
+    phiP.x.load (peer.key.getP ());
+    phiQ.x.load (peer.key.getQ ());
+    phiD.x.load (peer.key.getD ());
+    a.copy (peer.a);
+    c.copy (peer.c);
+    updateA24Projective ();
+    updatePlusMinus ();
+    c4.copy (c24);
+
+    phEvent = SidhPhaseEvent.start (opName, SidhPhaseEvent.LADDER, kex, aOrB);
+    ladderStart (phiP.x, phiQ.x, phiD.x);
+    phase = LADDER;
+  }
+
+
+  void preparePeer (SidhPreparedKey peer) {
+    // Fill in peer's curve and its table of x(2^i Q) +- 1. The projective multiples are kept in
+    // plus (X) and minus (Z) until one inversion of the product of the Zs makes them affine.
+    // Throws IllegalArgumentException if some 2^i Q is at infinity.
+
+    int n = peer.plus.length, i;
+    F2Words prod[] = new F2Words[n];              // Z_0 * ... * Z_i
+
+    phiP.x.load (peer.key.getP ());
+    phiQ.x.load (peer.key.getQ ());
+    phiD.x.load (peer.key.getD ());
+    recoverAC (phiP.x, phiQ.x, phiD.x);
+    peer.a.copy (a);
+    peer.c.copy (c);
+    updateA24Projective ();
+    updatePlusMinus ();
+    c4.copy (c24);
+
+    kp.x.copy (phiQ.x);
+    kp.z.copy (one);
+    for (i = 0; i < n; i++) {
+      peer.plus[i].copy (kp.x);
+      peer.minus[i].copy (kp.z);
+      prod[i] = new F2Words (f);
+      if (i == 0)
+        prod[i].copy (kp.z);
+      else
+        mul (prod[i-1], kp.z, prod[i]);
+      xDbl (kp);
+    }
+
+    if (f.toBigInteger (prod[n-1].x0).signum () == 0 &&
+        f.toBigInteger (prod[n-1].x1).signum () == 0)
+      throw new IllegalArgumentException ("Invalid SIDH public key");
+
+    inverse (prod[n-1], t3);                      // 1/(Z_0 * ... * Z_i), going down
+    for (i = n - 1; i >= 0; i--) {
+      if (i > 0) {
+        mul (t3, prod[i-1], t4);                  // 1/Z_i
+        mul (t3, peer.minus[i], t3);
+      } else
+        t4.copy (t3);
+      mul (peer.plus[i], t4, t4);
+      add (t4, one, peer.plus[i]);
+      sub (t4, one, peer.minus[i]);
+    }
+  }
+
+
+  boolean step (long budgetNanos) {
+    // Runs units of the operation until it is done (true) or has used up budgetNanos. At least
+    // one unit runs. Long.MAX_VALUE runs to the end without reading the clock.
+
+    long start = (budgetNanos == Long.MAX_VALUE) ? 0 : System.nanoTime ();
+
+    while (phase != DONE) {
+      if (phase == LADDER) {
+        if (fixed != null)
+          ladderBitFixed ();
+        else
+          ladderBit ();
+        if (bit == obits)
+          endLadder ();
+      } else if (phase == STRATEGY) {
+        if (row < max)
+          strategyUnit ();
+        else
+          endStrategy ();
+      } else if (phase == FINAL)
+        finalIsogeny ();
+      else
+        jInvStep ();
+
+      if (budgetNanos != Long.MAX_VALUE && System.nanoTime () - start >= budgetNanos)
+        break;
+    }
+
+    return phase == DONE;
+  }
+
+
+  private void endLadder () {
+    phEvent.commit ();
+
+    if (evalPhi) {
+      if (opAOrB == SidhKeyExchange.ALICE)
+        loadGenerators (params.getGenB (), phiP, phiQ, phiD);
+      else
+        loadGenerators (params.getGenA (), phiP, phiQ, phiD);
+    }
+
+    phEvent = SidhPhaseEvent.start (opName, SidhPhaseEvent.STRATEGY, params, opAOrB);
+    if (opAOrB == SidhKeyExchange.ALICE)
+      strategyStart (params.getMaxA (), params.getSplitsA ());
+    else if (nine)
+      strategyStart (params.parameters.stepsB9, params.parameters.splitsB9);
+    else
+      strategyStart (params.getMaxB (), params.getSplitsB ());
+    if (deadline != null)
+      deadline.check ();
+    phase = STRATEGY;
+  }
+
+
+  private void endStrategy () {
+    phEvent.commit ();
+    phEvent = SidhPhaseEvent.start (opName, SidhPhaseEvent.FINAL_ISOGENY, params, opAOrB);
+    phase = FINAL;
+  }
+
+
+  private void finalIsogeny () {
+    int deg = (opAOrB == SidhKeyExchange.ALICE) ? 4 : nine ? 9 : 3;
+
+    getIsog (deg, r);
+
+    if (evalPhi) {
+      evalMany (deg, 0, PHI);
+      normalizePhi ();
+      phEvent.commit ();
+
+      out.phiPx = phiP.x.toF2elm (f);
+      out.phiQx = phiQ.x.toF2elm (f);
+      out.phiDx = phiD.x.toF2elm (f);
+      finish ();
+      return;
+    }
+
+    if (opAOrB == SidhKeyExchange.ALICE) {
+      // updateAC (4): c = c4/4, a = aPlus2c - c4/2
+      div4 (c4, c);
+      add (c, c, t0);
+      sub (aPlus2c, t0, a);
+    } else {
+      // updateAC (3): a = 2*(aPlus2c + aMinus2c), c = aPlus2c - aMinus2c
+      add (aPlus2c, aMinus2c, a);
+      add (a, a, a);
+      sub (aPlus2c, aMinus2c, c);
+    }
+    phEvent.commit ();
+
+    phEvent = SidhPhaseEvent.start (opName, SidhPhaseEvent.JINV, params, opAOrB);
+    phase = JINV;
+  }
+
+
+  private void jInvStep () {
+    jInv ();
+    shared = t0.toF2elm (f).toByteArray ();
+    phEvent.commit ();
+    finish ();
+  }
+
+
+  private void finish () {
+    opEvent.commit ();
+    phase = DONE;
+    end ();
+  }
+
+
+  void end () {
+    // Forget the operation, finished or not, so that a pooled context holds no references to keys
+    // or results. The shared secret stays until takeShared.
+
+    phase = DONE;
+    params = null;
+    key = null;
+    out = null;
+    fixed = null;
+    deadline = null;
+    opEvent = null;
+    phEvent = null;
+  }
+
+
+  byte[] takeShared () {
+    byte s[] = shared;
+
+    shared = null;
+    return s;
+  }
+
+
+  void genPubKey (int aOrB, SidhPrivateKey key, SidhKeyExchange params, SidhPublicKey out,
+                 SidhDeadline d) {
+    beginPubKey (aOrB, key, params, out, d);
+    step (Long.MAX_VALUE);
+  }
+
+
+  byte[] agreement (int aOrB, SidhPrivateKey key, SidhPublicKey peer, SidhKeyExchange params,
+                   SidhDeadline d) {
+    beginAgreement (aOrB, key, peer, params, d);
+    step (Long.MAX_VALUE);
+    return takeShared ();
+  }
+
+
+  byte[] agreement (int aOrB, SidhPrivateKey key, SidhPreparedKey peer, SidhKeyExchange params,
+                   SidhDeadline d) {
+    beginAgreement (aOrB, key, peer, params, d);
+    step (Long.MAX_VALUE);
+    return takeShared ();
+  }
+}
@@ -0,0 +1,75 @@
+
+package sidh;
+
+/**************************************************************************************************
+ *
+ * Deadline and cancellation token for key generation and agreement. Operations that are given a
+ * token check it before the ladder and between the rows of the isogeny strategy, which is every
+ * few hundred microseconds, and abandon the work with a SidhCancelledException once the deadline
+ * has passed or cancel() has been called. Abandoned operations are reported to the metrics
+ * listener through SidhMetrics.shed().
+ *
+ * A token may be shared by several operations, for instance all the work of one handshake, and
+ * cancelled from any thread.
+ *
+ **************************************************************************************************/
+
+import java.util.concurrent.TimeUnit;
+
+
+public class SidhDeadline {
+  private final long deadline;          // System.nanoTime() value
+  private final boolean timed;
+  private volatile boolean cancelled;
+
+
+  private SidhDeadline (long d, boolean t) {
+    deadline = d;
+    timed = t;
+  }
+
+
+  public static SidhDeadline after (long timeout, TimeUnit unit) {
+    return new SidhDeadline (System.nanoTime () + unit.toNanos (timeout), true);
+  }
+
+
+  public static SidhDeadline at (long nanoTime) {
+    // nanoTime is a System.nanoTime() value
+    return new SidhDeadline (nanoTime, true);
+  }
+
+
+  public static SidhDeadline cancellable () {
+    // No deadline, only cancel()
+    return new SidhDeadline (0, false);
+  }
+
+
+  public void cancel () {
+    cancelled = true;
+  }
+
+
+  public boolean isCancelled () {
+    return cancelled;
+  }
+
+
+  public boolean isExpired () {
+    return timed && System.nanoTime () - deadline >= 0;
+  }
+
+
+  public long remainingNanos () {
+    return timed ? deadline - System.nanoTime () : Long.MAX_VALUE;
+  }
+
+
+  void check () {
+    if (cancelled)
+      throw new SidhCancelledException (false);
+    if (isExpired ())
+      throw new SidhCancelledException (true);
+  }
+}
@@ -0,0 +1,90 @@
+
+package sidh;
+
+/**************************************************************************************************
+ *
+ * JDK Flight Recorder events for SIDH operations. An operation event covers a whole public key
+ * generation or key agreement, and phase events cover its ladder, strategy traversal, final
+ * isogeny and j-invariant computations. Each event carries the parameter set and party, and JFR
+ * records its duration and thread so that handshake latency can be related to GC activity.
+ *
+ * The events are cheap when recording is off: begin() and commit() do nothing unless the event
+ * type is enabled, and only a handful of events are emitted per operation.
+ *
+ **************************************************************************************************/
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+
+@Name ("sidh.Operation")
+@Label ("SIDH Operation")
+@Category ({ "SIDH" })
+@Description ("Public key generation or key agreement")
+class SidhOperationEvent extends Event {
+  @Label ("Operation")
+  String operation;
+
+  @Label ("Parameter Set")
+  String parameterSet;
+
+  @Label ("Party")
+  String party;
+
+
+  public static SidhOperationEvent start (String operation, SidhKeyExchange params, int aOrB) {
+    SidhOperationEvent ev = new SidhOperationEvent ();
+
+    if (ev.isEnabled ()) {
+      ev.operation = operation;
+      ev.parameterSet = params.getParameterID ();
+      ev.party = (aOrB == SidhKeyExchange.ALICE) ? "A" : "B";
+      ev.begin ();
+    }
+
+    return ev;
+  }
+}
+
+
+@Name ("sidh.Phase")
+@Label ("SIDH Phase")
+@Category ({ "SIDH" })
+@Description ("Phase of a public key generation or key agreement")
+class SidhPhaseEvent extends Event {
+  public static final String LADDER = "ladder3pt";
+  public static final String STRATEGY = "strategy";
+  public static final String FINAL_ISOGENY = "finalIsogeny";
+  public static final String JINV = "jInv";
+
+  @Label ("Operation")
+  String operation;
+
+  @Label ("Phase")
+  String phase;
+
+  @Label ("Parameter Set")
+  String parameterSet;
+
+  @Label ("Party")
+  String party;
+
+
+  public static SidhPhaseEvent start (String operation, String phase, SidhKeyExchange params,
+                                      int aOrB) {
+    SidhPhaseEvent ev = new SidhPhaseEvent ();
+
+    if (ev.isEnabled ()) {
+      ev.operation = operation;
+      ev.phase = phase;
+      ev.parameterSet = params.getParameterID ();
+      ev.party = (aOrB == SidhKeyExchange.ALICE) ? "A" : "B";
+      ev.begin ();
+    }
+
+    return ev;
+  }
+}
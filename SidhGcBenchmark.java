@@ -0,0 +1,260 @@
+
+package sidh;
+
+/**************************************************************************************************
+ *
+ * Compares garbage collectors under sustained handshake load. For every parameter set and
+ * collector it starts a fresh JVM running SidhLoadTest with JSON output, then tabulates
+ * throughput, allocation rate, GC pauses and the latency of complete exchanges side by side.
+ *
+ * Usage: SidhGcBenchmark [-params sidhP434,sidhP503,sidhP751]
+ *                        [-gcs g1,parallel,z,shenandoah,epsilon] [-threads 1] [-duration 30]
+ *                        [-warmup 10] [-heap 1g] [-mix keygenA:1,...] [-format text|json]
+ *
+ * Every child JVM gets the same fixed heap (-Xms = -Xmx) so that the collectors are compared at
+ * equal footprint. Epsilon never collects, so the heap has to hold everything a run allocates;
+ * a run that runs out is reported as failed, as are collectors the JVM does not include (for
+ * instance Shenandoah on some builds). The JSON format prints the child reports as an array,
+ * each with the collector added, for tracking results over time.
+ *
+ **************************************************************************************************/
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+class SidhGcBenchmark {
+  static final String GC_NAMES[] = { "g1", "parallel", "z", "shenandoah", "epsilon" };
+  static final String GC_FLAGS[][] = {
+    { "-XX:+UseG1GC" },
+    { "-XX:+UseParallelGC" },
+    { "-XX:+UseZGC" },
+    { "-XX:+UseShenandoahGC" },
+    { "-XX:+UnlockExperimentalVMOptions", "-XX:+UseEpsilonGC" }
+  };
+
+  String parameterIDs[] = { "sidhP434", "sidhP503", "sidhP751" };
+  String gcs[] = GC_NAMES;
+  int threads = 1;
+  double duration = 30;
+  double warmup = 10;
+  String heap = "1g";
+  String mix = "keygenA:1,keygenB:1,agreeA:1,agreeB:1,exchange:1";
+  String format = "text";
+
+  // One entry per run: parameter set, collector, and the child's JSON report or error message
+  final List<String[]> results = new ArrayList<String[]> ();
+
+
+  public static void main (String[] args) throws IOException, InterruptedException {
+    SidhGcBenchmark bench = new SidhGcBenchmark ();
+
+    try {
+      bench.parseArgs (args);
+    } catch (IllegalArgumentException ex) {
+      System.err.println (ex.getMessage ());
+      System.err.println ("Usage: SidhGcBenchmark [-params id,...] [-gcs gc,...] [-threads n] " +
+                          "[-duration sec] [-warmup sec] [-heap size] [-mix op:weight,...] " +
+                          "[-format text|json]");
+      System.exit (1);
+    }
+
+    bench.run ();
+    System.out.print (bench.report ());
+  }
+
+
+  void parseArgs (String[] args) {
+    int i;
+
+    for (i = 0; i < args.length; i += 2) {
+      if (i + 1 >= args.length)
+        throw new IllegalArgumentException ("Missing value for " + args[i]);
+
+      String opt = args[i], val = args[i+1];
+
+      try {
+        if (opt.equals ("-params"))
+          parameterIDs = val.split (",");
+        else if (opt.equals ("-gcs"))
+          gcs = val.split (",");
+        else if (opt.equals ("-threads"))
+          threads = Integer.parseInt (val);
+        else if (opt.equals ("-duration"))
+          duration = Double.parseDouble (val);
+        else if (opt.equals ("-warmup"))
+          warmup = Double.parseDouble (val);
+        else if (opt.equals ("-heap"))
+          heap = val;
+        else if (opt.equals ("-mix"))
+          mix = val;
+        else if (opt.equals ("-format"))
+          format = val;
+        else
+          throw new IllegalArgumentException ("Unknown option " + opt);
+      } catch (NumberFormatException ex) {
+        throw new IllegalArgumentException ("Bad value for " + opt + ": " + val);
+      }
+    }
+
+    for (String id : parameterIDs)
+      SidhParameters.get (id);
+    for (String gc : gcs)
+      if (!Arrays.asList (GC_NAMES).contains (gc))
+        throw new IllegalArgumentException ("Unknown collector " + gc);
+    SidhLoadTest.parseMix (mix);
+    if (threads < 1 || duration <= 0 || warmup < 0)
+      throw new IllegalArgumentException ("Thread count and duration must be positive");
+    if (!format.equals ("text") && !format.equals ("json"))
+      throw new IllegalArgumentException ("Unknown format " + format);
+  }
+
+
+  public void run () throws IOException, InterruptedException {
+    for (String id : parameterIDs) {
+      for (String gc : gcs) {
+        System.err.println ("Running " + id + " under " + gc);
+        results.add (new String[] { id, gc, runChild (id, gc) });
+      }
+    }
+  }
+
+
+  String[] command (String parameterID, String gc) {
+    List<String> cmd = new ArrayList<String> ();
+
+    cmd.add (System.getProperty ("java.home") + File.separator + "bin" + File.separator + "java");
+    cmd.add ("-Xms" + heap);
+    cmd.add ("-Xmx" + heap);
+    cmd.add ("-Xlog:disable");                  // JVM warnings would otherwise go to stdout
+    cmd.add ("-Xlog:all=warning:stderr");
+    cmd.addAll (Arrays.asList (GC_FLAGS[Arrays.asList (GC_NAMES).indexOf (gc)]));
+    cmd.add ("-cp");
+    cmd.add (System.getProperty ("java.class.path"));
+    cmd.add (SidhLoadTest.class.getName ());
+    cmd.addAll (Arrays.asList ("-params", parameterID, "-threads", String.valueOf (threads),
+                               "-duration", String.valueOf (duration), "-warmup",
+                               String.valueOf (warmup), "-mix", mix, "-format", "json"));
+
+    return cmd.toArray (new String[0]);
+  }
+
+
+  private String runChild (String parameterID, String gc)
+    throws IOException, InterruptedException {
+    // The child's JSON report, or an error message starting with "!". stderr is only looked at
+    // when the run fails.
+
+    File err = File.createTempFile ("sidhgc", ".err");
+    Process proc;
+    String out, lines[];
+    int status;
+
+    try {
+      proc = new ProcessBuilder (command (parameterID, gc))
+        .redirectError (ProcessBuilder.Redirect.to (err)).start ();
+      out = readAll (proc.getInputStream ()).trim ();
+      status = proc.waitFor ();
+
+      if (status != 0 || !out.startsWith ("{")) {
+        // The JVM reports fatal errors such as running out of heap on stdout
+        if (out.isEmpty ())
+          out = new String (Files.readAllBytes (err.toPath ())).trim ();
+        lines = out.split ("\n");
+        return "!" + (out.isEmpty () ? "exit status " + status : lines[lines.length - 1]);
+      }
+    } finally {
+      err.delete ();
+    }
+
+    return out;
+  }
+
+
+  private static String readAll (InputStream in) throws IOException {
+    ByteArrayOutputStream buf = new ByteArrayOutputStream ();
+    byte b[] = new byte[8192];
+    int n;
+
+    while ((n = in.read (b)) > 0)
+      buf.write (b, 0, n);
+
+    return buf.toString ();
+  }
+
+
+  static double field (String json, String name) {
+    // First numeric value called name in json, or NaN
+
+    Pattern pat = Pattern.compile ("\"" + name + "\": (-?[0-9.Ee+-]+|NaN|Infinity)");
+    Matcher m = pat.matcher (json);
+
+    return m.find () ? Double.parseDouble (m.group (1)) : Double.NaN;
+  }
+
+
+  static String operation (String json, String op) {
+    // The entry for op in the operations array, or ""
+
+    int i = json.indexOf ("{ \"op\": \"" + op + "\"");
+
+    return (i < 0) ? "" : json.substring (i, json.indexOf ('}', i) + 1);
+  }
+
+
+  public String report () {
+    StringBuilder sb = new StringBuilder ();
+    String json, exchange, pauses;
+    boolean first = true;
+
+    if (format.equals ("json")) {
+      sb.append ("[");
+      for (String r[] : results) {
+        sb.append (first ? "\n" : ",\n");
+        first = false;
+        if (r[2].startsWith ("!"))
+          sb.append ("{ \"params\": \"" + r[0] + "\", \"collector\": \"" + r[1] + "\", " +
+                     "\"error\": \"" + r[2].substring (1).replace ("\"", "'") + "\" }");
+        else
+          sb.append (r[2].replaceFirst ("\\{", "{\n  \"collector\": \"" + r[1] + "\","));
+      }
+      sb.append ("\n]\n");
+      return sb.toString ();
+    }
+
+    sb.append (String.format ("\n%d threads, %.0f s (after %.0f s warmup), heap %s, mix %s\n\n",
+                              threads, duration, warmup, heap, mix));
+    sb.append (String.format ("%-9s %-10s %9s %9s %7s %9s %9s %10s %10s %10s\n", "params", "gc",
+                              "ops/s", "alloc MB/s", "pauses", "p99 (ms)", "max (ms)",
+                              "xchg p50", "xchg p99", "xchg p999"));
+
+    for (String r[] : results) {
+      if (r[2].startsWith ("!")) {
+        sb.append (String.format ("%-9s %-10s failed: %s\n", r[0], r[1], r[2].substring (1)));
+        continue;
+      }
+
+      json = r[2];
+      exchange = operation (json, "exchange");
+      pauses = json.substring (Math.max (json.indexOf ("\"gcPauses\""), 0));
+      sb.append (String.format ("%-9s %-10s %9.2f %9.1f %7.0f %9.1f %9.1f %9.0fms %9.0fms " +
+                                "%9.0fms\n", r[0], r[1], field (json, "opsPerSec"),
+                                field (json, "allocBytesPerSec") / 1e6, field (pauses, "count"),
+                                field (pauses, "p99Nanos") / 1e6, field (pauses, "maxNanos") / 1e6,
+                                field (exchange, "p50Nanos") / 1e6,
+                                field (exchange, "p99Nanos") / 1e6,
+                                field (exchange, "p999Nanos") / 1e6));
+    }
+
+    sb.append ("\nxchg is a complete exchange: two key generations and two agreements\n");
+    return sb.toString ();
+  }
+}
@@ -0,0 +1,214 @@
+
+package sidh;
+
+/**************************************************************************************************
+ *
+ * Hybrid key exchange: X25519 from the JDK's XDH provider together with SIDH, combined into one
+ * secret. The X25519 leg takes a fraction of a millisecond, so it is handed to an executor (the
+ * common fork-join pool by default) while the caller's thread does the SIDH work, and its
+ * latency disappears behind the SIDH computation.
+ *
+ * A hybrid public key is the 32-byte X25519 public key (the u-coordinate, little-endian, as in
+ * RFC 7748) followed by the SIDH public key as written by SidhPublicKey.serialize(). It is
+ * encoded once into a single buffer when the key pair is made, and a peer's key is decoded in
+ * place from the received bytes.
+ *
+ * The combined secret is HKDF-SHA256 (RFC 5869) with an all-zero salt over the X25519 secret
+ * followed by the SIDH secret, expanded to 32 bytes with the info string "SIDH-X25519 " and the
+ * parameter set name. It is secure as long as either leg is. Both raw secrets are overwritten
+ * once combined. Bind the handshake transcript in a later key schedule if the protocol needs it.
+ *
+ **************************************************************************************************/
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.interfaces.XECPublicKey;
+import java.security.spec.NamedParameterSpec;
+import java.security.spec.XECPublicKeySpec;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+
+public class SidhHybridKeyExchange {
+  public static final int X25519_LENGTH = 32;
+  public static final int SECRET_LENGTH = 32;
+  static final String INFO = "SIDH-X25519 ";
+
+  private final SidhKeyExchange kex;
+  private final Executor executor;
+
+
+  public SidhHybridKeyExchange (SidhKeyExchange k) {
+    this (k, ForkJoinPool.commonPool ());
+  }
+
+
+  public SidhHybridKeyExchange (SidhKeyExchange k, Executor e) {
+    kex = k;
+    executor = e;
+  }
+
+
+  public int getPublicKeyLength () {
+    return X25519_LENGTH + 6 * kex.getPrimeSize ();
+  }
+
+
+  public SidhHybridKeyPair generateKeyPair (int aOrB) {
+    CompletableFuture<KeyPair> classical;
+    SidhKeyPair sidh;
+    KeyPair x25519;
+    byte pub[];
+
+    classical = CompletableFuture.supplyAsync (SidhHybridKeyExchange::x25519KeyPair, executor);
+    sidh = kex.generateKeyPair (aOrB);
+    x25519 = join (classical);
+
+    pub = new byte[getPublicKeyLength ()];
+    encodeU (((XECPublicKey) x25519.getPublic ()).getU (), pub);
+    sidh.getPublicKey ().serialize (pub, X25519_LENGTH);
+
+    return new SidhHybridKeyPair (aOrB, x25519, sidh, pub);
+  }
+
+
+  public byte[] calculateAgreement (SidhHybridKeyPair own, byte[] peerKey) {
+    // Combined secret of own and the other party's encoded hybrid public key. Throws
+    // IllegalArgumentException for a malformed or invalid peer key.
+
+    CompletableFuture<byte[]> classical;
+    SidhPublicKey sidhPeer;
+    SidhPrivateKey priv = own.getSidhKeyPair ().getPrivateKey ();
+    byte sidh[], x25519[];
+
+    if (peerKey.length != getPublicKeyLength ())
+      throw new IllegalArgumentException ("Hybrid public key must be " + getPublicKeyLength () +
+                                          " bytes");
+
+    classical = CompletableFuture.supplyAsync (
+      () -> x25519Agreement (own.getX25519KeyPair ().getPrivate (), peerKey), executor);
+
+    try {
+      sidhPeer = new SidhPublicKey (peerKey, X25519_LENGTH, peerKey.length - X25519_LENGTH,
+                                    kex.getField ());
+      if (own.getParty () == SidhKeyExchange.ALICE)
+        sidh = kex.calculateAgreementA (priv, sidhPeer);
+      else
+        sidh = kex.calculateAgreementB (priv, sidhPeer);
+    } catch (RuntimeException ex) {
+      // Do not leave the classical secret lying around
+      classical.thenAccept (s -> Arrays.fill (s, (byte) 0));
+      throw ex;
+    }
+
+    try {
+      x25519 = join (classical);
+      try {
+        return combine (x25519, sidh);
+      } finally {
+        Arrays.fill (x25519, (byte) 0);
+      }
+    } finally {
+      Arrays.fill (sidh, (byte) 0);
+    }
+  }
+
+
+  private byte[] combine (byte[] x25519, byte[] sidh) {
+    // HKDF-SHA256: extract with a zero salt, then one block of expand
+
+    byte prk[] = null;
+    Mac mac;
+
+    try {
+      mac = Mac.getInstance ("HmacSHA256");
+      mac.init (new SecretKeySpec (new byte[32], "HmacSHA256"));
+      mac.update (x25519);
+      prk = mac.doFinal (sidh);
+
+      mac.init (new SecretKeySpec (prk, "HmacSHA256"));
+      mac.update ((INFO + kex.getParameterID ()).getBytes (StandardCharsets.US_ASCII));
+      mac.update ((byte) 1);
+      return Arrays.copyOf (mac.doFinal (), SECRET_LENGTH);
+    } catch (GeneralSecurityException ex) {
+      throw new IllegalStateException (ex);
+    } finally {
+      if (prk != null)
+        Arrays.fill (prk, (byte) 0);
+    }
+  }
+
+
+  private static KeyPair x25519KeyPair () {
+    try {
+      return KeyPairGenerator.getInstance ("X25519").generateKeyPair ();
+    } catch (GeneralSecurityException ex) {
+      throw new IllegalStateException (ex);
+    }
+  }
+
+
+  private static byte[] x25519Agreement (PrivateKey priv, byte[] peerKey) {
+    KeyAgreement ka;
+    PublicKey pub;
+
+    try {
+      pub = KeyFactory.getInstance ("XDH").generatePublic (
+        new XECPublicKeySpec (NamedParameterSpec.X25519, decodeU (peerKey)));
+      ka = KeyAgreement.getInstance ("X25519");
+      ka.init (priv);
+      ka.doPhase (pub, true);
+      return ka.generateSecret ();
+    } catch (InvalidKeyException ex) {
+      // Includes peer keys of small order, whose shared secret is all zeros
+      throw new IllegalArgumentException ("Invalid X25519 public key", ex);
+    } catch (GeneralSecurityException ex) {
+      throw new IllegalStateException (ex);
+    }
+  }
+
+
+  static void encodeU (BigInteger u, byte[] out) {
+    // u as X25519_LENGTH bytes, little-endian, at the start of out
+    byte be[] = u.toByteArray ();
+
+    for (int i = 0; i < X25519_LENGTH; i++)
+      out[i] = (i < be.length) ? be[be.length - 1 - i] : 0;
+  }
+
+
+  static BigInteger decodeU (byte[] in) {
+    // The first X25519_LENGTH bytes of in, with the top bit masked as RFC 7748 asks
+    byte be[] = new byte[X25519_LENGTH];
+
+    for (int i = 0; i < X25519_LENGTH; i++)
+      be[X25519_LENGTH - 1 - i] = in[i];
+    be[0] &= 0x7f;
+
+    return new BigInteger (1, be);
+  }
+
+
+  private static <T> T join (CompletableFuture<T> f) {
+    try {
+      return f.join ();
+    } catch (CompletionException ex) {
+      if (ex.getCause () instanceof RuntimeException)
+        throw (RuntimeException) ex.getCause ();
+      throw ex;
+    }
+  }
+}
@@ -0,0 +1,48 @@
+
+package sidh;
+
+/**************************************************************************************************
+ *
+ * Key pair for hybrid X25519 + SIDH key exchange: an X25519 key pair and a SIDH key pair for one
+ * party, with the combined public key already encoded. See SidhHybridKeyExchange.
+ *
+ **************************************************************************************************/
+
+import java.security.KeyPair;
+
+
+public class SidhHybridKeyPair {
+  private final int aOrB;
+  private final KeyPair classical;
+  private final SidhKeyPair sidh;
+  private final byte encoded[];
+
+
+  SidhHybridKeyPair (int party, KeyPair x25519, SidhKeyPair sidhKeys, byte[] pub) {
+    aOrB = party;
+    classical = x25519;
+    sidh = sidhKeys;
+    encoded = pub;
+  }
+
+
+  public int getParty () {
+    return aOrB;
+  }
+
+
+  public KeyPair getX25519KeyPair () {
+    return classical;
+  }
+
+
+  public SidhKeyPair getSidhKeyPair () {
+    return sidh;
+  }
+
+
+  public byte[] getPublicKey () {
+    // The X25519 public key followed by the SIDH public key, as sent to the peer
+    return encoded.clone ();
+  }
+}
@@ -0,0 +1,287 @@
+
+package sidh;
+
+/**************************************************************************************************
+ *
+ * Validation of peer public keys. A key from party A carries the images of B's torsion basis and
+ * so must consist of points of order 3^eB, and a key from B points of order 2^eA. A key passes
+ * if
+ *
+ *   - every coordinate is encoded as an integer in [0, p) and none of them is zero,
+ *   - the curve recovered from it is non-singular (A != +-2) and supersingular, and
+ *   - P and Q have exact order l^e and generate different subgroups of order l.
+ *
+ * Supersingularity is tested by checking that a random point on the curve is killed by p+1,
+ * which holds for every point of a supersingular curve with (p+1)^2 points and, for an ordinary
+ * curve, only for a negligible fraction of them. All scalar multiplications are x-only, and the
+ * whole test costs about two thirds of an agreement.
+ *
+ * Verdicts are cached under the SHA-256 hash of the encoded key so that a static peer key is
+ * only checked once. The cache is bounded and evicts the least recently used entries.
+ *
+ **************************************************************************************************/
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+public class SidhKeyValidator {
+  public static final int DEFAULT_CACHE_SIZE = Integer.getInteger ("sidh.validationCache", 1024);
+
+  private final SidhKeyExchange params;
+  private final Map<ByteBuffer, Boolean> cache;
+  private final SecureRandom rnd;
+
+  private long validations;
+  private long cacheHits;
+
+
+  public SidhKeyValidator (SidhKeyExchange kex) {
+    this (kex, DEFAULT_CACHE_SIZE);
+  }
+
+
+  public SidhKeyValidator (SidhKeyExchange kex, final int cacheSize) {
+    params = kex;
+    rnd = new SecureRandom ();
+    cache = new LinkedHashMap<ByteBuffer, Boolean> (16, 0.75f, true) {
+      protected boolean removeEldestEntry (Map.Entry<ByteBuffer, Boolean> eldest) {
+        return size () > cacheSize;
+      }
+    };
+  }
+
+
+  public SidhPublicKey parse (int aOrB, byte[] encoded) throws InvalidKeyException {
+    // Decode a public key generated by party aOrB, rejecting it unless it is valid
+
+    if (!isValid (aOrB, encoded))
+      throw new InvalidKeyException ("Invalid SIDH public key");
+
+    return new SidhPublicKey (encoded, params);
+  }
+
+
+  public boolean isValid (int aOrB, SidhPublicKey key) {
+    return isValid (aOrB, key.serialize ());
+  }
+
+
+  public boolean isValid (int aOrB, byte[] encoded) {
+    // Check a public key generated by party aOrB
+
+    ByteBuffer hash = ByteBuffer.wrap (digest (aOrB, encoded));
+    Boolean verdict;
+
+    synchronized (cache) {
+      verdict = cache.get (hash);
+      if (verdict != null) {
+        cacheHits++;
+        return verdict;
+      }
+    }
+
+    verdict = check (aOrB, encoded);
+
+    synchronized (cache) {
+      validations++;
+      cache.put (hash, verdict);
+    }
+
+    return verdict;
+  }
+
+
+  public long getValidations () {
+    synchronized (cache) {
+      return validations;
+    }
+  }
+
+
+  public long getCacheHits () {
+    synchronized (cache) {
+      return cacheHits;
+    }
+  }
+
+
+  private byte[] digest (int aOrB, byte[] encoded) {
+    MessageDigest md;
+
+    try {
+      md = MessageDigest.getInstance ("SHA-256");
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException (ex);
+    }
+
+    md.update (params.getParameterID ().getBytes ());
+    md.update ((byte) aOrB);
+    return md.digest (encoded);
+  }
+
+
+  private boolean check (int aOrB, byte[] encoded) {
+    FieldBackend f = params.getField ();
+    F2elm x[] = new F2elm[3], aCoeff, t;
+    MontCurve curve;
+    int i;
+
+    if (encoded.length != 6 * params.getPrimeSize ())
+      return false;
+
+    for (i = 0; i < 3; i++) {
+      x[i] = decode (encoded, 2 * i * params.getPrimeSize ());
+      if (x[i] == null || x[i].f2Equals (F2elm.zero (f)))
+        return false;
+    }
+
+    aCoeff = MontCurve.recoverA (x[0], x[1], x[2]);
+
+    t = F2elm.one (f);
+    t.f2LeftShiftInPlace (1);
+    if (aCoeff.f2Equals (t) || aCoeff.f2Equals (F2elm.negate (t)))
+      return false;
+
+    curve = new MontCurve (aCoeff, F2elm.one (f));
+    curve.initializeConstants ();
+
+    if (aOrB == SidhKeyExchange.ALICE) {
+      if (!hasFullTorsion (curve, x[0], x[1], 3, params.getEB ()))
+        return false;
+    } else {
+      if (!hasFullTorsion (curve, x[0], x[1], 2, params.getEA ()))
+        return false;
+    }
+
+    return isSupersingular (curve, aCoeff);
+  }
+
+
+  private F2elm decode (byte[] encoded, int offset) {
+    // Both halves must be the canonical encoding of an element of GF(p)
+
+    BigInteger v0, v1, p = params.getPrime ();
+    int len = params.getPrimeSize ();
+
+    v0 = new BigInteger (Arrays.copyOfRange (encoded, offset, offset + len));
+    v1 = new BigInteger (Arrays.copyOfRange (encoded, offset + len, offset + 2*len));
+
+    if (v0.signum () < 0 || v0.compareTo (p) >= 0 ||
+        v1.signum () < 0 || v1.compareTo (p) >= 0)
+      return null;
+
+    return new F2elm (params.getField (), v0, v1);
+  }
+
+
+  private static boolean hasFullTorsion (MontCurve curve, F2elm xp, F2elm xq, int l, int e) {
+    // P and Q must have exact order l^e, and [l^(e-1)]P and [l^(e-1)]Q must differ in x so
+    // that they span different subgroups of order l
+
+    F2elm one = F2elm.one (xp.getField ());
+    F2Point p, q;
+
+    p = new F2Point (xp, one);
+    q = new F2Point (xq, one);
+
+    if (l == 2) {
+      p = curve.xDble (p, e - 1);
+      q = curve.xDble (q, e - 1);
+    } else {
+      p = curve.xTple (p, e - 1);
+      q = curve.xTple (q, e - 1);
+    }
+
+    if (isInfinity (p) || isInfinity (q))
+      return false;
+
+    if (F2elm.mult (p.getX (), q.getZ ()).f2Equals (F2elm.mult (q.getX (), p.getZ ())))
+      return false;
+
+    if (l == 2)
+      return isInfinity (curve.xDbl (p)) && isInfinity (curve.xDbl (q));
+    else
+      return isInfinity (curve.xTpl (p)) && isInfinity (curve.xTpl (q));
+  }
+
+
+  private boolean isSupersingular (MontCurve curve, F2elm aCoeff) {
+    // Pick a random x on the curve rather than its twist and check that [p+1]x is the point at
+    // infinity. p+1 = 2^eA * h is handled as a ladder over h followed by eA doublings.
+
+    BigInteger h = params.getPrime ().add (BigInteger.ONE).shiftRight (params.getEA ());
+    F2elm x;
+
+    do {
+      x = new F2elm (params.getField (), rnd);
+    } while (!isOnCurve (aCoeff, x));
+
+    return isInfinity (curve.xDble (ladder (curve, x, h), params.getEA ()));
+  }
+
+
+  private static boolean isOnCurve (F2elm aCoeff, F2elm x) {
+    // x is the x-coordinate of a point on y^2 = x^3 + Ax^2 + x over GF(p^2) if the right hand
+    // side is a non-zero square, which is the case if its norm is a square in GF(p)
+
+    BigInteger e = x.getField ().getPrime ().shiftRight (1);     // (p-1)/2
+    F2elm f;
+    Felm n, r, one = new Felm (x.getField (), 1);
+
+    f = F2elm.add (x, aCoeff);
+    f.f2MultInPlace (x);
+    f.f2AddInPlace (F2elm.one (x.getField ()));
+    f.f2MultInPlace (x);
+
+    n = Felm.sqr (f.f2Get0 ());
+    n.fpAddInPlace (Felm.sqr (f.f2Get1 ()));
+    if (n.fpIsZero ())
+      return false;
+
+    r = new Felm (one);
+    for (int i = e.bitLength () - 1; i >= 0; i--) {
+      r.fpSqrInPlace ();
+      if (e.testBit (i))
+        r.fpMultInPlace (n);
+    }
+
+    return r.fpEquals (one);
+  }
+
+
+  private static F2Point ladder (MontCurve curve, F2elm x, BigInteger k) {
+    // Montgomery ladder for [k](x:1). Scalars here are public, so the branches do not matter.
+
+    F2Point r0, r1, rs[];
+
+    r0 = new F2Point (F2elm.one (x.getField ()), F2elm.zero (x.getField ()));
+    r1 = new F2Point (x, F2elm.one (x.getField ()));
+
+    for (int i = k.bitLength () - 1; i >= 0; i--) {
+      if (k.testBit (i)) {
+        rs = curve.xDblAdd (r1, r0, x);
+        r1 = rs[0];
+        r0 = rs[1];
+      } else {
+        rs = curve.xDblAdd (r0, r1, x);
+        r0 = rs[0];
+        r1 = rs[1];
+      }
+    }
+
+    return r0;
+  }
+
+
+  private static boolean isInfinity (F2Point p) {
+    return p.getZ ().f2Equals (F2elm.zero (p.getZ ().getField ()));
+  }
+}
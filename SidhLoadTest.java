@@ -0,0 +1,497 @@
+
+package sidh;
+
+/**************************************************************************************************
+ *
+ * Multi-threaded load tester for the key exchange. Runs a weighted mix of key generations,
+ * agreements and full exchanges on a number of threads for a fixed duration after a warmup, and
+ * reports throughput, latency percentiles, allocation per operation and per second, GC time and
+ * the distribution of GC pauses as text, JSON or CSV. SidhGcBenchmark runs it under each collector.
+ *
+ * Usage: SidhLoadTest [-params sidhP503] [-threads 1] [-duration 10] [-warmup 3]
+ *                     [-mix keygenA:1,keygenB:1,agreeA:1,agreeB:1,exchange:1] [-format text]
+ *
+ * Durations are in seconds. The mix lists operations with relative weights; operations that are
+ * left out are not run. The format is one of text, json or csv.
+ *
+ **************************************************************************************************/
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import com.sun.management.GarbageCollectionNotificationInfo;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+class SidhLoadTest {
+  public static final int KEYGEN_A = 0;
+  public static final int KEYGEN_B = 1;
+  public static final int AGREE_A = 2;
+  public static final int AGREE_B = 3;
+  public static final int EXCHANGE = 4;
+  public static final int NUM_OPS = 5;
+
+  static final String OP_NAMES[] = { "keygenA", "keygenB", "agreeA", "agreeB", "exchange" };
+
+  String parameterID = "sidhP503";
+  int threads = 1;
+  double duration = 10;
+  double warmup = 3;
+  int weights[] = { 1, 1, 1, 1, 1 };
+  String format = "text";
+
+  // Results
+
+  final LatencyHistogram histograms[] = new LatencyHistogram[NUM_OPS];
+  final AtomicLong failures = new AtomicLong ();
+  final AtomicLong errors = new AtomicLong ();                  // operations that threw
+  final AtomicReference<RuntimeException> firstError = new AtomicReference<RuntimeException> ();
+  final LatencyHistogram gcPauses = new LatencyHistogram ();     // millisecond resolution
+  double elapsed;
+  long allocatedBytes = -1;
+  long gcCount;
+  long gcMillis;
+
+  private volatile boolean measuring;
+  private volatile boolean stopped;
+
+
+  public SidhLoadTest () {
+    for (int i = 0; i < NUM_OPS; i++)
+      histograms[i] = new LatencyHistogram ();
+  }
+
+
+  public static void main (String[] args) throws InterruptedException {
+    SidhLoadTest test = new SidhLoadTest ();
+
+    try {
+      test.parseArgs (args);
+    } catch (IllegalArgumentException ex) {
+      System.err.println (ex.getMessage ());
+      System.err.println ("Usage: SidhLoadTest [-params id] [-threads n] [-duration sec] " +
+                          "[-warmup sec] [-mix op:weight,...] [-format text|json|csv]");
+      System.exit (1);
+    }
+
+    test.run ();
+    System.out.print (test.report ());
+  }
+
+
+  void parseArgs (String[] args) {
+    int i;
+
+    for (i = 0; i < args.length; i += 2) {
+      if (i + 1 >= args.length)
+        throw new IllegalArgumentException ("Missing value for " + args[i]);
+
+      String opt = args[i], val = args[i+1];
+
+      try {
+        if (opt.equals ("-params"))
+          parameterID = val;
+        else if (opt.equals ("-threads"))
+          threads = Integer.parseInt (val);
+        else if (opt.equals ("-duration"))
+          duration = Double.parseDouble (val);
+        else if (opt.equals ("-warmup"))
+          warmup = Double.parseDouble (val);
+        else if (opt.equals ("-mix"))
+          weights = parseMix (val);
+        else if (opt.equals ("-format"))
+          format = val;
+        else
+          throw new IllegalArgumentException ("Unknown option " + opt);
+      } catch (NumberFormatException ex) {
+        throw new IllegalArgumentException ("Bad value for " + opt + ": " + val);
+      }
+    }
+
+    if (threads < 1 || duration <= 0 || warmup < 0)
+      throw new IllegalArgumentException ("Thread count and duration must be positive");
+    if (!format.equals ("text") && !format.equals ("json") && !format.equals ("csv"))
+      throw new IllegalArgumentException ("Unknown format " + format);
+  }
+
+
+  static int[] parseMix (String mix) {
+    int res[] = new int[NUM_OPS], i, total = 0;
+
+    for (String item : mix.split (",")) {
+      String parts[] = item.trim().split (":");
+      int w = (parts.length > 1) ? Integer.parseInt (parts[1]) : 1;
+
+      for (i = 0; i < NUM_OPS; i++)
+        if (OP_NAMES[i].equals (parts[0]))
+          break;
+
+      if (i == NUM_OPS || w < 0)
+        throw new IllegalArgumentException ("Bad operation in mix: " + item);
+
+      res[i] = w;
+      total += w;
+    }
+
+    if (total == 0)
+      throw new IllegalArgumentException ("Mix has no operations");
+
+    return res;
+  }
+
+
+  public void run () throws InterruptedException {
+    final SidhKeyExchange kex = new SidhKeyExchange (parameterID);
+    final CountDownLatch ready = new CountDownLatch (threads);
+    Thread workers[] = new Thread[threads];
+    long ids[] = new long[threads], alloc0[] = null, alloc1[], start, gc0[], gc1[];
+    List<NotificationEmitter> emitters;
+    NotificationListener pauseListener = this::gcNotification;
+    int i;
+
+    for (i = 0; i < threads; i++) {
+      workers[i] = new Thread ("sidh-load-" + i) {
+        public void run () {
+          work (kex, ready);
+        }
+      };
+      workers[i].setDaemon (true);
+      workers[i].start ();
+      ids[i] = workers[i].getId ();
+    }
+
+    // Workers build their peer keys before the clock starts
+
+    ready.await ();
+    Thread.sleep ((long) (warmup * 1000));
+
+    emitters = new ArrayList<NotificationEmitter> ();
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans ()) {
+      if (gc instanceof NotificationEmitter) {
+        ((NotificationEmitter) gc).addNotificationListener (pauseListener, null, null);
+        emitters.add ((NotificationEmitter) gc);
+      }
+    }
+
+    alloc0 = allocatedBytes (ids);
+    gc0 = gcTotals ();
+    start = System.nanoTime ();
+    measuring = true;
+
+    Thread.sleep ((long) (duration * 1000));
+
+    measuring = false;
+    elapsed = (System.nanoTime () - start) / 1e9;
+    alloc1 = allocatedBytes (ids);
+    gc1 = gcTotals ();
+    stopped = true;
+
+    for (NotificationEmitter e : emitters) {
+      try {
+        e.removeNotificationListener (pauseListener);
+      } catch (javax.management.ListenerNotFoundException ex) {
+      }
+    }
+
+    for (i = 0; i < threads; i++)
+      workers[i].join ();
+
+    if (alloc0 != null && alloc1 != null) {
+      allocatedBytes = 0;
+      for (i = 0; i < threads; i++)
+        allocatedBytes += alloc1[i] - alloc0[i];
+    }
+
+    gcCount = gc1[0] - gc0[0];
+    gcMillis = gc1[1] - gc0[1];
+  }
+
+
+  private void gcNotification (Notification n, Object handback) {
+    // Record the pauses of each collection. ZGC and Shenandoah also report their concurrent
+    // cycles, which are not pauses.
+
+    GarbageCollectionNotificationInfo info;
+
+    if (!measuring ||
+        !n.getType ().equals (GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION))
+      return;
+
+    info = GarbageCollectionNotificationInfo.from ((CompositeData) n.getUserData ());
+    if (!info.getGcName ().endsWith ("Cycles"))
+      gcPauses.record (info.getGcInfo ().getDuration () * 1000000);
+  }
+
+
+  private void work (SidhKeyExchange kex, CountDownLatch ready) {
+    SidhKeyPair keysA, keysB, tmpA, tmpB;
+    byte[] sharedA, sharedB;
+    long t0, t1;
+    int op, total = 0, i;
+
+    for (i = 0; i < NUM_OPS; i++)
+      total += weights[i];
+
+    // A worker that cannot set up must still release run(); it then has nothing to measure
+    try {
+      keysA = kex.generateKeyPair (SidhKeyExchange.ALICE);
+      keysB = kex.generateKeyPair (SidhKeyExchange.BOB);
+    } catch (RuntimeException ex) {
+      error (ex);
+      return;
+    } finally {
+      ready.countDown ();
+    }
+
+    while (!stopped) {
+      op = pick (ThreadLocalRandom.current().nextInt (total));
+      t0 = System.nanoTime ();
+
+      try {
+        switch (op) {
+        case KEYGEN_A:
+          kex.generateKeyPair (SidhKeyExchange.ALICE);
+          break;
+        case KEYGEN_B:
+          kex.generateKeyPair (SidhKeyExchange.BOB);
+          break;
+        case AGREE_A:
+          kex.calculateAgreementA (keysA.getPrivateKey(), keysB.getPublicKey());
+          break;
+        case AGREE_B:
+          kex.calculateAgreementB (keysB.getPrivateKey(), keysA.getPublicKey());
+          break;
+        default:
+          tmpA = kex.generateKeyPair (SidhKeyExchange.ALICE);
+          tmpB = kex.generateKeyPair (SidhKeyExchange.BOB);
+          sharedA = kex.calculateAgreementA (tmpA.getPrivateKey(), tmpB.getPublicKey());
+          sharedB = kex.calculateAgreementB (tmpB.getPrivateKey(), tmpA.getPublicKey());
+          if (!Arrays.equals (sharedA, sharedB))
+            failures.incrementAndGet ();
+        }
+      } catch (RuntimeException ex) {
+        // Counted and reported, and left out of the latencies
+        error (ex);
+        continue;
+      }
+
+      t1 = System.nanoTime ();
+      if (measuring)
+        histograms[op].record (t1 - t0);
+    }
+  }
+
+
+  private void error (RuntimeException ex) {
+    errors.incrementAndGet ();
+    firstError.compareAndSet (null, ex);
+  }
+
+
+  private int pick (int r) {
+    int i;
+
+    for (i = 0; i < NUM_OPS - 1; i++) {
+      r -= weights[i];
+      if (r < 0)
+        break;
+    }
+
+    return i;
+  }
+
+
+  static long[] allocatedBytes (long ids[]) {
+    // Per-thread allocation counters are a HotSpot extension; returns null where unsupported
+
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean ();
+
+    if (!(bean instanceof com.sun.management.ThreadMXBean))
+      return null;
+
+    com.sun.management.ThreadMXBean hsBean = (com.sun.management.ThreadMXBean) bean;
+    if (!hsBean.isThreadAllocatedMemorySupported () || !hsBean.isThreadAllocatedMemoryEnabled ())
+      return null;
+
+    return hsBean.getThreadAllocatedBytes (ids);
+  }
+
+
+  static long[] gcTotals () {
+    // Returns { collection count, collection time in ms } summed over all collectors
+
+    long res[] = new long[2];
+
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans ()) {
+      res[0] += Math.max (gc.getCollectionCount (), 0);
+      res[1] += Math.max (gc.getCollectionTime (), 0);
+    }
+
+    return res;
+  }
+
+
+  static String gcNames () {
+    StringBuilder sb = new StringBuilder ();
+
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans ()) {
+      if (sb.length () > 0)
+        sb.append ("+");
+      sb.append (gc.getName ());
+    }
+
+    return sb.toString ();
+  }
+
+
+  public String report () {
+    LatencyHistogram.Snapshot snaps[] = new LatencyHistogram.Snapshot[NUM_OPS], pauses;
+    long totalOps = 0;
+    double allocPerOp;
+    int i;
+
+    for (i = 0; i < NUM_OPS; i++) {
+      snaps[i] = histograms[i].snapshot (false);
+      totalOps += snaps[i].count;
+    }
+    pauses = gcPauses.snapshot (false);
+
+    allocPerOp = (allocatedBytes < 0 || totalOps == 0) ? -1 : (double) allocatedBytes / totalOps;
+
+    if (format.equals ("json"))
+      return jsonReport (snaps, totalOps, allocPerOp, pauses);
+    else if (format.equals ("csv"))
+      return csvReport (snaps, allocPerOp, pauses);
+    else
+      return textReport (snaps, totalOps, allocPerOp, pauses);
+  }
+
+
+  private double allocPerSec () {
+    return (allocatedBytes < 0) ? -1 : allocatedBytes / elapsed;
+  }
+
+
+  private String textReport (LatencyHistogram.Snapshot snaps[], long totalOps, double allocPerOp,
+                             LatencyHistogram.Snapshot pauses) {
+    StringBuilder sb = new StringBuilder ();
+
+    sb.append (String.format ("\n%s, %d threads, %.1f s (after %.1f s warmup), %s %s, GC %s\n\n",
+                              parameterID, threads, elapsed, warmup,
+                              System.getProperty ("java.vm.name"),
+                              System.getProperty ("java.version"), gcNames ()));
+    sb.append (String.format ("%-10s %8s %10s %10s %10s %10s %10s %10s\n", "operation", "count",
+                              "ops/s", "mean(us)", "p50(us)", "p99(us)", "p999(us)", "max(us)"));
+
+    for (int i = 0; i < NUM_OPS; i++) {
+      if (snaps[i].count == 0)
+        continue;
+      sb.append (String.format ("%-10s %8d %10.2f %10.0f %10d %10d %10d %10d\n", OP_NAMES[i],
+                                snaps[i].count, snaps[i].count / elapsed, snaps[i].mean () / 1000,
+                                snaps[i].percentile (0.50) / 1000,
+                                snaps[i].percentile (0.99) / 1000,
+                                snaps[i].percentile (0.999) / 1000, snaps[i].max / 1000));
+    }
+
+    sb.append (String.format ("\nTotal %d operations, %.2f ops/s\n", totalOps, totalOps / elapsed));
+    if (allocPerOp >= 0)
+      sb.append (String.format ("Allocated %.0f bytes per operation, %.1f MB/s\n", allocPerOp,
+                                allocPerSec () / 1e6));
+    sb.append (String.format ("GC: %d collections, %d ms (%.2f%% of wall time)\n", gcCount,
+                              gcMillis, 100.0 * gcMillis / (elapsed * 1000)));
+    if (pauses.count > 0)
+      sb.append (String.format ("GC pauses: %d, p50 %d ms, p99 %d ms, max %d ms\n", pauses.count,
+                                pauses.percentile (0.50) / 1000000,
+                                pauses.percentile (0.99) / 1000000, pauses.max / 1000000));
+    if (failures.get () > 0)
+      sb.append ("FAILED: " + failures.get () + " exchanges produced mismatched secrets\n");
+    if (errors.get () > 0)
+      sb.append ("FAILED: " + errors.get () + " operations threw, first " + firstError.get () +
+                 "\n");
+
+    return sb.toString ();
+  }
+
+
+  private String jsonReport (LatencyHistogram.Snapshot snaps[], long totalOps, double allocPerOp,
+                             LatencyHistogram.Snapshot pauses) {
+    StringBuilder sb = new StringBuilder ();
+    boolean first = true;
+
+    sb.append ("{\n");
+    sb.append ("  \"params\": \"" + parameterID + "\",\n");
+    sb.append ("  \"threads\": " + threads + ",\n");
+    sb.append ("  \"durationSec\": " + elapsed + ",\n");
+    sb.append ("  \"warmupSec\": " + warmup + ",\n");
+    sb.append ("  \"jvm\": \"" + System.getProperty ("java.vm.name") + " " +
+               System.getProperty ("java.version") + "\",\n");
+    sb.append ("  \"processors\": " + Runtime.getRuntime().availableProcessors() + ",\n");
+    sb.append ("  \"gc\": \"" + gcNames () + "\",\n");
+    sb.append ("  \"totalOps\": " + totalOps + ",\n");
+    sb.append ("  \"opsPerSec\": " + (totalOps / elapsed) + ",\n");
+    sb.append ("  \"allocBytesPerOp\": " + allocPerOp + ",\n");
+    sb.append ("  \"allocBytesPerSec\": " + allocPerSec () + ",\n");
+    sb.append ("  \"gcCount\": " + gcCount + ",\n");
+    sb.append ("  \"gcMillis\": " + gcMillis + ",\n");
+    sb.append ("  \"gcPauses\": { \"count\": " + pauses.count +
+               ", \"p50Nanos\": " + pauses.percentile (0.50) +
+               ", \"p99Nanos\": " + pauses.percentile (0.99) +
+               ", \"p999Nanos\": " + pauses.percentile (0.999) +
+               ", \"maxNanos\": " + pauses.max + " },\n");
+    sb.append ("  \"failures\": " + failures.get () + ",\n");
+    sb.append ("  \"errors\": " + errors.get () + ",\n");
+    sb.append ("  \"operations\": [");
+
+    for (int i = 0; i < NUM_OPS; i++) {
+      if (snaps[i].count == 0)
+        continue;
+      sb.append (first ? "\n" : ",\n");
+      first = false;
+      sb.append ("    { \"op\": \"" + OP_NAMES[i] + "\", \"count\": " + snaps[i].count +
+                 ", \"opsPerSec\": " + (snaps[i].count / elapsed) +
+                 ", \"meanNanos\": " + snaps[i].mean () +
+                 ", \"p50Nanos\": " + snaps[i].percentile (0.50) +
+                 ", \"p99Nanos\": " + snaps[i].percentile (0.99) +
+                 ", \"p999Nanos\": " + snaps[i].percentile (0.999) +
+                 ", \"maxNanos\": " + snaps[i].max + " }");
+    }
+
+    sb.append ("\n  ]\n}\n");
+    return sb.toString ();
+  }
+
+
+  private String csvReport (LatencyHistogram.Snapshot snaps[], double allocPerOp,
+                            LatencyHistogram.Snapshot pauses) {
+    StringBuilder sb = new StringBuilder ();
+    String jvm = System.getProperty ("java.vm.name") + " " + System.getProperty ("java.version");
+
+    sb.append ("params,threads,jvm,gc,op,count,opsPerSec,meanNanos,p50Nanos,p99Nanos,p999Nanos," +
+               "maxNanos,allocBytesPerOp,gcCount,gcMillis,allocBytesPerSec,gcPauses," +
+               "gcPauseP99Nanos,gcPauseMaxNanos\n");
+
+    for (int i = 0; i < NUM_OPS; i++) {
+      if (snaps[i].count == 0)
+        continue;
+      sb.append (parameterID + "," + threads + ",\"" + jvm + "\"," + gcNames () + "," +
+                 OP_NAMES[i] + "," + snaps[i].count + "," + (snaps[i].count / elapsed) + "," +
+                 snaps[i].mean () + "," + snaps[i].percentile (0.50) + "," +
+                 snaps[i].percentile (0.99) + "," + snaps[i].percentile (0.999) + "," +
+                 snaps[i].max + "," + allocPerOp + "," + gcCount + "," + gcMillis + "," +
+                 allocPerSec () + "," + pauses.count + "," + pauses.percentile (0.99) + "," +
+                 pauses.max + "\n");
+    }
+
+    return sb.toString ();
+  }
+}
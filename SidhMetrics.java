@@ -0,0 +1,38 @@
+
+package sidh;
+
+/**************************************************************************************************
+ *
+ * Listener interface for operational metrics. An implementation can be attached to a
+ * SidhKeyExchange with setMetrics(), after which every key generation and key agreement reports
+ * its latency, every operation abandoned at its SidhDeadline is reported as shed, and every
+ * agreement served from the SidhSessionCache is reported as resumed as well.
+ * Implementations are called on the thread that performed the operation and must be thread safe.
+ * HistogramMetrics is the default implementation.
+ *
+ **************************************************************************************************/
+
+public interface SidhMetrics {
+  public static final int KEYGEN = 0;
+  public static final int AGREEMENT = 1;
+
+
+  // Called after each operation. operation is KEYGEN or AGREEMENT, aOrB is ALICE or BOB and
+  // nanos is the elapsed wall clock time of the operation.
+
+  public void record (int operation, String parameterID, int aOrB, long nanos);
+
+
+  // Called instead of record() when an operation is abandoned because its SidhDeadline expired
+  // or was cancelled. nanos is the time spent before giving up.
+
+  public default void shed (int operation, String parameterID, int aOrB, long nanos) {
+  }
+
+
+  // Called after record() for an agreement whose secret came from the session cache, so that
+  // resumed agreements count towards throughput and latency and the hit rate can be worked out.
+
+  public default void resumed (String parameterID, int aOrB, long nanos) {
+  }
+}
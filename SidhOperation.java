@@ -0,0 +1,160 @@
+
+package sidh;
+
+/**************************************************************************************************
+ *
+ * Key generation or agreement as a state machine that runs a slice at a time, for event loops
+ * that have to interleave SIDH work with I/O on the same thread. Get one from
+ * SidhKeyExchange.startKeyPair, startAgreementA or startAgreementB, then call step(budget) from
+ * the loop until it returns true:
+ *
+ *   SidhOperation op = kex.startAgreementB (privKeyB, pubKeyA);
+ *   while (!op.step (100000))       // 100 us at a time
+ *     runPendingIo ();
+ *   secret = op.getSharedSecret ();
+ *
+ * A step runs ladder bits, strategy multiplications and isogenies, each a few microseconds to
+ * some tens of microseconds, until the budget is used up, so it overruns by at most one of them
+ * (the final inversion is the longest). Peer key validation and the session cache lookup happen
+ * in the first step, which validation makes much longer than the rest.
+ *
+ * An operation holds one of the key exchange's working contexts from its first step to its last,
+ * or until close() abandons it. Results are the same as from the blocking calls, and metrics are
+ * recorded when the operation finishes with the time since its first step. When contexts are
+ * turned off (-Dsidh.reuseContext=false or -Dsidh.countOps=true) the first step does all the
+ * work. An operation belongs to one thread at a time.
+ *
+ **************************************************************************************************/
+
+
+public class SidhOperation implements AutoCloseable {
+  private final SidhKeyExchange kex;
+  private final int operation;                  // SidhMetrics.KEYGEN or AGREEMENT
+  private final int aOrB;
+  private final SidhPrivateKey privKey;
+  private final SidhPublicKey peer;
+
+  private SidhContext ctx;
+  private SidhPublicKey pubKey;
+  private byte shared[];
+  private long startTime;
+  private boolean started, done, closed;
+
+
+  SidhOperation (SidhKeyExchange k, int op, int party, SidhPrivateKey priv, SidhPublicKey p) {
+    kex = k;
+    operation = op;
+    aOrB = party;
+    privKey = priv;
+    peer = p;
+  }
+
+
+  public boolean step (long budgetNanos) {
+    // Advance by about budgetNanos; true once the result is ready
+
+    if (done)
+      return true;
+    if (closed)
+      throw new IllegalStateException ("Operation was closed");
+
+    try {
+      if (!started) {
+        started = true;
+        startTime = System.nanoTime ();
+        if (start ())
+          return true;
+      }
+
+      if (!ctx.step (budgetNanos))
+        return false;
+    } catch (RuntimeException ex) {
+      // A failed operation is over; later steps report it closed
+      close ();
+      throw ex;
+    }
+
+    if (operation == SidhMetrics.AGREEMENT) {
+      shared = ctx.takeShared ();
+      if (kex.sessionCache != null)
+        kex.sessionCache.put (kex.getParameterID (), aOrB, privKey, peer, shared);
+    }
+    kex.releaseContext (ctx, privKey);
+    ctx = null;
+    done = true;
+
+    kex.recordMetrics (operation, aOrB, startTime);
+    return true;
+  }
+
+
+  private boolean start () {
+    // First step: finish at once if there is nothing to step through, otherwise take a context
+
+    SidhSessionCache sc;
+
+    if (!SidhContext.ENABLED) {
+      if (operation == SidhMetrics.KEYGEN)
+        pubKey = kex.generateKeyPair (aOrB, privKey).getPublicKey ();
+      else if (aOrB == SidhKeyExchange.ALICE)
+        shared = kex.calculateAgreementA (privKey, peer);
+      else
+        shared = kex.calculateAgreementB (privKey, peer);
+      done = true;
+      return true;
+    }
+
+    if (operation == SidhMetrics.AGREEMENT) {
+      kex.checkPeerKey (1 - aOrB, peer);
+      sc = kex.sessionCache;
+      if (sc != null && (shared = sc.get (kex.getParameterID (), aOrB, privKey, peer)) != null) {
+        kex.recordResumed (aOrB, startTime);
+        done = true;
+        return true;
+      }
+    }
+
+    ctx = kex.acquireContext ();
+    if (operation == SidhMetrics.KEYGEN) {
+      pubKey = new SidhPublicKey (null, null, null);
+      ctx.beginPubKey (aOrB, privKey, kex, pubKey, null);
+    } else
+      ctx.beginAgreement (aOrB, privKey, peer, kex, null);
+
+    return false;
+  }
+
+
+  public boolean isDone () {
+    return done;
+  }
+
+
+  public SidhKeyPair getKeyPair () {
+    if (operation != SidhMetrics.KEYGEN)
+      throw new IllegalStateException ("Not a key generation");
+    if (!done)
+      throw new IllegalStateException ("Key generation has not finished");
+    return new SidhKeyPair (pubKey, privKey);
+  }
+
+
+  public byte[] getSharedSecret () {
+    if (operation != SidhMetrics.AGREEMENT)
+      throw new IllegalStateException ("Not a key agreement");
+    if (!done)
+      throw new IllegalStateException ("Key agreement has not finished");
+    return shared;
+  }
+
+
+  public void close () {
+    // Abandon an unfinished operation and give back its context; harmless once done
+
+    closed = true;
+    if (ctx != null) {
+      kex.releaseContext (ctx, privKey);
+      ctx = null;
+    }
+  }
+}
@@ -0,0 +1,62 @@
+
+package sidh;
+
+/**************************************************************************************************
+ *
+ * Algorithm parameters for the SIDH provider: the parameter set and the party (ALICE or BOB) a
+ * key belongs to. Keys of the two parties live in different torsion subgroups, so a key pair
+ * generator has to be told which side it is generating for, and an agreement needs one key of
+ * each.
+ *
+ **************************************************************************************************/
+
+import java.io.Serializable;
+import java.security.spec.AlgorithmParameterSpec;
+
+
+public class SidhParameterSpec implements AlgorithmParameterSpec, Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private final String parameterID;
+  private final int party;
+
+
+  public SidhParameterSpec (String parameterID, int party) {
+    // Throws IllegalArgumentException for an unknown parameter set or party
+    SidhParameters.get (parameterID);
+    if (party != SidhKeyExchange.ALICE && party != SidhKeyExchange.BOB)
+      throw new IllegalArgumentException ("Unknown party " + party);
+
+    this.parameterID = parameterID;
+    this.party = party;
+  }
+
+
+  public String getParameterID () {
+    return parameterID;
+  }
+
+
+  public int getParty () {
+    return party;
+  }
+
+
+  public boolean equals (Object o) {
+    if (!(o instanceof SidhParameterSpec))
+      return false;
+
+    SidhParameterSpec s = (SidhParameterSpec) o;
+    return parameterID.equals (s.parameterID) && party == s.party;
+  }
+
+
+  public int hashCode () {
+    return 2 * parameterID.hashCode () + party;
+  }
+
+
+  public String toString () {
+    return parameterID + (party == SidhKeyExchange.ALICE ? " A" : " B");
+  }
+}
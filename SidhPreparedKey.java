@@ -0,0 +1,65 @@
+
+package sidh;
+
+/**************************************************************************************************
+ *
+ * A peer's public key prepared for repeated agreements, for static keys that many of our
+ * ephemeral keys agree with. The three-point ladder doubles the peer's Q once per bit of our key
+ * whatever the key is, so the multiples 2^i Q are worked out once here, normalized with a single
+ * shared inversion, and each ladder step of a later agreement is one differential addition
+ * against the table instead of a doubling and an addition. The peer's curve (A:C) is kept too.
+ * This roughly halves the cost of the ladder.
+ *
+ * Make one with SidhKeyExchange.preparePeerKey for the party that will do the agreements, and
+ * pass it to calculateAgreementA or calculateAgreementB in place of the public key. The key is
+ * validated once, when it is prepared, whether or not the exchange has a SidhKeyValidator. A
+ * prepared key is immutable and may be shared between threads. The table takes two GF(p^2)
+ * elements per bit of the party's key, about 140 KB for P751. When contexts are turned off
+ * nothing is precomputed and agreements use the public key.
+ *
+ **************************************************************************************************/
+
+
+public class SidhPreparedKey {
+  final SidhPublicKey key;
+  final int aOrB;
+  final FieldBackend field;
+
+  // Filled in by SidhContext.preparePeer; null when contexts are off
+  final F2Words a, c;
+  final F2Words plus[];                         // x(2^i Q) + 1
+  final F2Words minus[];                        // x(2^i Q) - 1
+
+
+  SidhPreparedKey (SidhPublicKey k, int party, FieldBackend f, int obits) {
+    key = k;
+    aOrB = party;
+    field = f;
+
+    if (!SidhContext.ENABLED) {
+      a = c = null;
+      plus = minus = null;
+      return;
+    }
+
+    a = new F2Words (f);
+    c = new F2Words (f);
+    plus = new F2Words[obits];
+    minus = new F2Words[obits];
+    for (int i = 0; i < obits; i++) {
+      plus[i] = new F2Words (f);
+      minus[i] = new F2Words (f);
+    }
+  }
+
+
+  public SidhPublicKey getPublicKey () {
+    return key;
+  }
+
+
+  public int getParty () {
+    // The party whose agreements this key was prepared for
+    return aOrB;
+  }
+}
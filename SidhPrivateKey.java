@@ -13,29 +13,56 @@ import java.util.Arrays;
 
 public class SidhPrivateKey {
   private final BigInteger m;           
+  private final SidhSecretArena arena;  // Off-heap keys: m is null and the scalar is in arena
+  private final int offset, length;
 
 
   public SidhPrivateKey (BigInteger mIn) {
     m = mIn;
+    arena = null;
+    offset = length = 0;
   }
 
 
   public SidhPrivateKey (SidhPrivateKey kIn) {
-    m = kIn.getKey ();
+    this (kIn.getKey ());
   }
 
 
   public SidhPrivateKey (byte[] bytesIn) {
-    m = new BigInteger (bytesIn);
+    this (new BigInteger (bytesIn));
+  }
+
+
+  public SidhPrivateKey (SidhSecretArena a, byte[] bytesIn) {
+    // An off-heap copy of a serialized key. Clearing bytesIn is up to the caller.
+    m = null;
+    arena = a;
+    length = bytesIn.length;
+    offset = a.store (bytesIn);
+  }
+
+
+  public SidhPrivateKey (SidhSecretArena a, int aOrB, BigInteger order, SecureRandom rnd) {
+    // Generate a random private key directly in the arena
+    m = null;
+    arena = a;
+    length = (order.bitLength () + 7) / 8;
+    offset = a.random (order, aOrB, rnd);
   }
 
 
   public SidhPrivateKey (int aOrB, BigInteger order) {
+    this (aOrB, order, new SecureRandom ());
+  }
+
+
+  public SidhPrivateKey (int aOrB, BigInteger order, SecureRandom rnd) {
     // Generate a random private key
     BigInteger temp, randmod, three = BigInteger.valueOf(3);
     boolean condition;
 
-    temp = Felm.genRandom (order);
+    temp = Felm.genRandom (order, rnd);
     if (aOrB == SidhKeyExchange.ALICE) 
       condition = temp.testBit(0);
     else { 
@@ -44,7 +71,7 @@ public class SidhPrivateKey {
     }
 
     while (temp.equals(BigInteger.ZERO) || condition) {
-        temp = Felm.genRandom (order);
+        temp = Felm.genRandom (order, rnd);
         if (aOrB == SidhKeyExchange.ALICE) 
           condition = temp.testBit(0);
         else { 
@@ -54,25 +81,62 @@ public class SidhPrivateKey {
     }
 
     m = temp;
+    arena = null;
+    offset = length = 0;
+  }
+
+
+  public boolean isOffHeap () {
+    return arena != null;
+  }
+
+
+  int bit (int i) {
+    // Bit i of the scalar, read from wherever it lives
+    if (arena == null)
+      return m.testBit (i) ? 1 : 0;
+    return arena.bit (offset, length, i);
   }
 
 
   public BigInteger getKey() {
-    return m;
+    // For off-heap keys this makes an on-heap copy
+    if (arena == null)
+      return m;
+    return new BigInteger (arena.load (offset, length));
   }    
 
 
   public boolean privateKeyEquals (SidhPrivateKey otherKey) {
-    return m.compareTo (otherKey.getKey ()) == 0;
+    return getKey ().compareTo (otherKey.getKey ()) == 0;
   }
     
 
   public byte[] serialize() {
-    return m.toByteArray();
+    // Big-endian two's complement in as few bytes as possible, the form of
+    // BigInteger.toByteArray(), whether the key is on-heap or off-heap
+
+    byte full[];
+    int i = 0;
+
+    if (arena == null)
+      return m.toByteArray();
+
+    full = arena.load (offset, length);
+    while (i < full.length - 1 && full[i] == 0 && full[i + 1] >= 0)
+      i++;
+
+    try {
+      return Arrays.copyOfRange (full, i, full.length);
+    } finally {
+      Arrays.fill (full, (byte) 0);
+    }
   }
 
 
   public String toString() {
-    return m.toString();
+    if (arena == null)
+      return m.toString();
+    return "off-heap private key";
   }
 }
@@ -0,0 +1,33 @@
+
+package sidh;
+
+/**************************************************************************************************
+ *
+ * Key specification for SIDH private keys: the parameters the key was generated under and the
+ * encoding produced by SidhPrivateKey.serialize().
+ *
+ **************************************************************************************************/
+
+import java.security.spec.KeySpec;
+
+
+public class SidhPrivateKeySpec implements KeySpec {
+  private final SidhParameterSpec params;
+  private final byte encoded[];
+
+
+  public SidhPrivateKeySpec (SidhParameterSpec params, byte[] encoded) {
+    this.params = params;
+    this.encoded = encoded.clone ();
+  }
+
+
+  public SidhParameterSpec getParams () {
+    return params;
+  }
+
+
+  public byte[] getEncoded () {
+    return encoded.clone ();
+  }
+}
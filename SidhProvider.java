@@ -0,0 +1,410 @@
+
+package sidh;
+
+/**************************************************************************************************
+ *
+ * JCA provider for SIDH. It registers the algorithm "SIDH" for KeyPairGenerator, KeyAgreement
+ * and KeyFactory:
+ *
+ *   KeyPairGenerator  initialize with a SidhParameterSpec, or with a key size of 434, 503 or 751
+ *                     for party A. The default is sidhP503 for party A.
+ *   KeyAgreement      init with one party's private key, doPhase with the other party's public
+ *                     key (lastPhase true), then generateSecret for the shared j-invariant.
+ *   KeyFactory        converts between keys and SidhPublicKeySpec / SidhPrivateKeySpec. Keys use
+ *                     the raw encodings of SidhPublicKey and SidhPrivateKey.
+ *
+ * Nothing on the handshake path is built per call. Services create their SPI objects directly
+ * instead of through reflection. There is one SidhKeyExchange per parameter set, shared by all
+ * SPIs, and its pooled contexts provide the working buffers. Key pairs are generated from a
+ * fixed set of SecureRandoms striped by thread. Peer public keys are decoded once and the result
+ * is kept with the key object.
+ *
+ * Peer keys are validated when the shared engine has a SidhKeyValidator, as with
+ * -Dsidh.validateKeys=true.
+ *
+ **************************************************************************************************/
+
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.InvalidParameterException;
+import java.security.Key;
+import java.security.KeyFactorySpi;
+import java.security.KeyPair;
+import java.security.KeyPairGeneratorSpi;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.KeySpec;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.KeyAgreementSpi;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+
+public final class SidhProvider extends Provider {
+  public static final String NAME = "SIDH";
+  public static final String ALGORITHM = "SIDH";
+
+  private static final long serialVersionUID = 1L;
+
+  private static final ConcurrentHashMap<String, SidhKeyExchange> engines =
+    new ConcurrentHashMap<String, SidhKeyExchange> ();
+  private static final SecureRandom randoms[] = new SecureRandom[8];
+
+
+  public SidhProvider () {
+    super (NAME, "1.0", "SIDH key exchange (KeyPairGenerator, KeyAgreement, KeyFactory)");
+
+    putService (new SidhService (this, "KeyPairGenerator"));
+    putService (new SidhService (this, "KeyAgreement"));
+    putService (new SidhService (this, "KeyFactory"));
+  }
+
+
+  static SidhKeyExchange engine (String parameterID) {
+    // The shared exchange object for a parameter set
+
+    SidhKeyExchange kex = engines.get (parameterID);
+
+    if (kex == null)
+      kex = engines.computeIfAbsent (parameterID, k -> new SidhKeyExchange (k));
+
+    return kex;
+  }
+
+
+  static SecureRandom random () {
+    // SecureRandom is thread safe; striping only spreads the contention
+
+    int i = (int) (Thread.currentThread ().getId () % randoms.length);
+    SecureRandom rnd = randoms[i];
+
+    if (rnd == null) {
+      synchronized (randoms) {
+        if (randoms[i] == null)
+          randoms[i] = new SecureRandom ();
+        rnd = randoms[i];
+      }
+    }
+
+    return rnd;
+  }
+
+
+  private static final class SidhService extends Provider.Service {
+    SidhService (Provider p, String type) {
+      super (p, type, ALGORITHM, SidhProvider.class.getName () + "$" + type, null, null);
+    }
+
+
+    public Object newInstance (Object param) throws NoSuchAlgorithmException {
+      String type = getType ();
+
+      if (type.equals ("KeyPairGenerator"))
+        return new SidhKeyPairGeneratorSpi ();
+      else if (type.equals ("KeyAgreement"))
+        return new SidhKeyAgreementSpi ();
+      else if (type.equals ("KeyFactory"))
+        return new SidhKeyFactorySpi ();
+
+      throw new NoSuchAlgorithmException ("No " + type + " for " + ALGORITHM);
+    }
+  }
+}
+
+
+class SidhJcaPublicKey implements PublicKey {
+  /* A SidhPublicKey as a java.security key. Only the parameters and the encoding are
+     serialized; the decoded key is rebuilt on first use. */
+
+  private static final long serialVersionUID = 1L;
+
+  final SidhParameterSpec params;
+  private final byte encoded[];
+  private transient volatile SidhPublicKey key;
+
+
+  SidhJcaPublicKey (SidhParameterSpec p, SidhPublicKey k, byte[] enc) {
+    params = p;
+    key = k;
+    encoded = enc;
+  }
+
+
+  SidhPublicKey getKey (SidhKeyExchange kex) {
+    // Decoded on first use after deserialization
+
+    SidhPublicKey k = key;
+
+    if (k == null)
+      key = k = new SidhPublicKey (encoded, kex);
+
+    return k;
+  }
+
+
+  public String getAlgorithm () {
+    return SidhProvider.ALGORITHM;
+  }
+
+
+  public String getFormat () {
+    return "RAW";
+  }
+
+
+  public byte[] getEncoded () {
+    return encoded.clone ();
+  }
+}
+
+
+class SidhJcaPrivateKey implements PrivateKey {
+  /* A SidhPrivateKey as a java.security key. It is not serializable, so that the scalar is never
+     written out by accident; export it with getEncoded or the KeyFactory instead. */
+
+  private static final long serialVersionUID = 1L;
+
+  final SidhParameterSpec params;
+  final transient SidhPrivateKey key;
+
+
+  SidhJcaPrivateKey (SidhParameterSpec p, SidhPrivateKey k) {
+    params = p;
+    key = k;
+  }
+
+
+  private void writeObject (ObjectOutputStream out) throws IOException {
+    throw new NotSerializableException ("SIDH private keys are not serializable");
+  }
+
+
+  private void readObject (ObjectInputStream in) throws IOException {
+    throw new NotSerializableException ("SIDH private keys are not serializable");
+  }
+
+
+  public String getAlgorithm () {
+    return SidhProvider.ALGORITHM;
+  }
+
+
+  public String getFormat () {
+    return "RAW";
+  }
+
+
+  public byte[] getEncoded () {
+    return key.serialize ();
+  }
+}
+
+
+class SidhKeyPairGeneratorSpi extends KeyPairGeneratorSpi {
+  private SidhParameterSpec params = new SidhParameterSpec ("sidhP503", SidhKeyExchange.ALICE);
+  private SecureRandom random;
+
+
+  public void initialize (int keysize, SecureRandom rnd) {
+    String id;
+
+    if (keysize == 434)
+      id = "sidhP434";
+    else if (keysize == 503)
+      id = "sidhP503";
+    else if (keysize == 751)
+      id = "sidhP751";
+    else
+      throw new InvalidParameterException ("Unsupported key size " + keysize);
+
+    params = new SidhParameterSpec (id, SidhKeyExchange.ALICE);
+    random = rnd;
+  }
+
+
+  public void initialize (AlgorithmParameterSpec spec, SecureRandom rnd)
+    throws InvalidAlgorithmParameterException {
+    if (!(spec instanceof SidhParameterSpec))
+      throw new InvalidAlgorithmParameterException ("SidhParameterSpec required");
+
+    params = (SidhParameterSpec) spec;
+    random = rnd;
+  }
+
+
+  public KeyPair generateKeyPair () {
+    SidhKeyExchange kex = SidhProvider.engine (params.getParameterID ());
+    int party = params.getParty ();
+    SecureRandom rnd = (random != null) ? random : SidhProvider.random ();
+    SidhPrivateKey priv;
+    SidhKeyPair keys;
+    byte enc[];
+
+    priv = new SidhPrivateKey (party, party == SidhKeyExchange.ALICE ? kex.getOrderA ()
+                                                                      : kex.getOrderB (), rnd);
+    keys = kex.generateKeyPair (party, priv);
+
+    enc = keys.getPublicKey ().serialize ();
+
+    return new KeyPair (new SidhJcaPublicKey (params, keys.getPublicKey (), enc),
+                        new SidhJcaPrivateKey (params, keys.getPrivateKey ()));
+  }
+}
+
+
+class SidhKeyAgreementSpi extends KeyAgreementSpi {
+  private SidhJcaPrivateKey privKey;
+  private SidhKeyExchange kex;
+  private byte secret[];
+
+
+  protected void engineInit (Key key, SecureRandom rnd) throws InvalidKeyException {
+    if (!(key instanceof SidhJcaPrivateKey))
+      throw new InvalidKeyException ("SIDH private key required");
+
+    privKey = (SidhJcaPrivateKey) key;
+    kex = SidhProvider.engine (privKey.params.getParameterID ());
+    secret = null;
+  }
+
+
+  protected void engineInit (Key key, AlgorithmParameterSpec spec, SecureRandom rnd)
+    throws InvalidKeyException, InvalidAlgorithmParameterException {
+    // The parameters come with the key
+    if (!(key instanceof SidhJcaPrivateKey))
+      throw new InvalidKeyException ("SIDH private key required");
+    if (spec != null && !spec.equals (((SidhJcaPrivateKey) key).params))
+      throw new InvalidAlgorithmParameterException ("Parameters do not match the key");
+
+    engineInit (key, rnd);
+  }
+
+
+  protected Key engineDoPhase (Key key, boolean lastPhase) throws InvalidKeyException {
+    SidhJcaPublicKey peer;
+    SidhPublicKey peerKey;
+
+    if (privKey == null)
+      throw new IllegalStateException ("Not initialized");
+    if (!lastPhase)
+      throw new IllegalStateException ("SIDH agreement has a single phase");
+    if (!(key instanceof SidhJcaPublicKey))
+      throw new InvalidKeyException ("SIDH public key required");
+
+    peer = (SidhJcaPublicKey) key;
+    if (!peer.params.getParameterID ().equals (privKey.params.getParameterID ()) ||
+        peer.params.getParty () == privKey.params.getParty ())
+      throw new InvalidKeyException ("Public key is not from the other party of " +
+                                     privKey.params);
+
+    try {
+      peerKey = peer.getKey (kex);
+      if (privKey.params.getParty () == SidhKeyExchange.ALICE)
+        secret = kex.calculateAgreementA (privKey.key, peerKey);
+      else
+        secret = kex.calculateAgreementB (privKey.key, peerKey);
+    } catch (IllegalArgumentException ex) {
+      throw new InvalidKeyException (ex.getMessage (), ex);
+    }
+
+    return null;
+  }
+
+
+  protected byte[] engineGenerateSecret () {
+    byte res[] = secret;
+
+    if (res == null)
+      throw new IllegalStateException ("doPhase has not been called");
+
+    secret = null;
+    return res;
+  }
+
+
+  protected int engineGenerateSecret (byte[] sharedSecret, int offset)
+    throws ShortBufferException {
+    if (secret == null)
+      throw new IllegalStateException ("doPhase has not been called");
+    if (sharedSecret.length - offset < secret.length)
+      throw new ShortBufferException ("Need " + secret.length + " bytes");
+
+    System.arraycopy (secret, 0, sharedSecret, offset, secret.length);
+    return engineGenerateSecret ().length;
+  }
+
+
+  protected SecretKey engineGenerateSecret (String algorithm) {
+    return new SecretKeySpec (engineGenerateSecret (), algorithm);
+  }
+}
+
+
+class SidhKeyFactorySpi extends KeyFactorySpi {
+  protected PublicKey engineGeneratePublic (KeySpec spec) throws InvalidKeySpecException {
+    SidhPublicKeySpec s;
+    SidhKeyExchange kex;
+    SidhPublicKey key;
+    byte enc[];
+
+    if (!(spec instanceof SidhPublicKeySpec))
+      throw new InvalidKeySpecException ("SidhPublicKeySpec required");
+
+    s = (SidhPublicKeySpec) spec;
+    kex = SidhProvider.engine (s.getParams ().getParameterID ());
+    enc = s.getEncoded ();
+
+    if (enc.length != 6 * kex.getPrimeSize ())
+      throw new InvalidKeySpecException ("Wrong length for " + s.getParams ());
+    try {
+      key = new SidhPublicKey (enc, kex);
+    } catch (IllegalArgumentException ex) {
+      throw new InvalidKeySpecException (ex.getMessage (), ex);
+    }
+
+    return new SidhJcaPublicKey (s.getParams (), key, enc);
+  }
+
+
+  protected PrivateKey engineGeneratePrivate (KeySpec spec) throws InvalidKeySpecException {
+    SidhPrivateKeySpec s;
+
+    if (!(spec instanceof SidhPrivateKeySpec))
+      throw new InvalidKeySpecException ("SidhPrivateKeySpec required");
+
+    s = (SidhPrivateKeySpec) spec;
+    return new SidhJcaPrivateKey (s.getParams (), new SidhPrivateKey (s.getEncoded ()));
+  }
+
+
+  protected <T extends KeySpec> T engineGetKeySpec (Key key, Class<T> type)
+    throws InvalidKeySpecException {
+    if (key instanceof SidhJcaPublicKey && type.isAssignableFrom (SidhPublicKeySpec.class))
+      return type.cast (new SidhPublicKeySpec (((SidhJcaPublicKey) key).params,
+                                               key.getEncoded ()));
+    if (key instanceof SidhJcaPrivateKey && type.isAssignableFrom (SidhPrivateKeySpec.class))
+      return type.cast (new SidhPrivateKeySpec (((SidhJcaPrivateKey) key).params,
+                                                key.getEncoded ()));
+
+    throw new InvalidKeySpecException ("Cannot convert " + key.getClass ().getName () + " to " +
+                                       type.getName ());
+  }
+
+
+  protected Key engineTranslateKey (Key key) throws InvalidKeyException {
+    if (key instanceof SidhJcaPublicKey || key instanceof SidhJcaPrivateKey)
+      return key;
+
+    throw new InvalidKeyException ("Not a SIDH key");
+  }
+}
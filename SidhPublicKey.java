@@ -16,13 +16,39 @@ public class SidhPublicKey {
 
 
   public SidhPublicKey (int aOrB, SidhPrivateKey k, SidhKeyExchange params) {
-    if (aOrB == SidhKeyExchange.ALICE) 
-      genPubKeyA (k, params);
+    this (aOrB, k, params, null);
+  }
+
+
+  public SidhPublicKey (int aOrB, SidhPrivateKey k, SidhKeyExchange params, SidhDeadline d) {
+    // Throws SidhCancelledException if d expires or is cancelled first; d may be null
+    SidhContext ctx;
+
+    if (d != null)
+      d.check ();
+
+    if (SidhContext.ENABLED) {
+      ctx = params.acquireContext ();
+      try {
+        ctx.genPubKey (aOrB, k, params, this, d);
+      } finally {
+        params.releaseContext (ctx, k);
+      }
+    }
+    else if (aOrB == SidhKeyExchange.ALICE) 
+      genPubKeyA (k, params, d);
     else 
-      genPubKeyB (k, params);
+      genPubKeyB (k, params, d);
   } 
 
 
+  SidhPublicKey (F2elm px, F2elm qx, F2elm dx) {
+    phiPx = px;
+    phiQx = qx;
+    phiDx = dx;
+  }
+
+
   public SidhPublicKey (SidhPublicKey k) {
     phiPx = new F2elm (k.phiPx);
     phiQx = new F2elm (k.phiQx);
@@ -31,10 +57,58 @@ public class SidhPublicKey {
 
 
   public SidhPublicKey (byte[] inBytes) {
-    int len = (inBytes.length) / 3;
-    phiPx = new F2elm (Arrays.copyOfRange (inBytes, 0, len));
-    phiQx = new F2elm (Arrays.copyOfRange (inBytes, len, 2*len));
-    phiDx = new F2elm (Arrays.copyOfRange (inBytes, 2*len, 3*len));
+    // Decoded for the default field backend of the parameter set whose keys have this length.
+    // An exchange using another backend converts the key when it is used.
+    this (inBytes, 0, inBytes.length);
+  }
+
+
+  public SidhPublicKey (byte[] inBytes, SidhKeyExchange kex) {
+    // Decoded for kex's parameter set and field backend
+    this (inBytes, 0, inBytes.length, kex.getField ());
+  }
+
+
+  SidhPublicKey (byte[] inBytes, int off, int length) {
+    this (inBytes, off, length,
+          SidhParameters.forPublicKeyLength (length).forField (FieldBackend.defaultName ()).field);
+  }
+
+
+  SidhPublicKey (byte[] inBytes, int off, int length, FieldBackend f) {
+    // Decode from length bytes of a larger buffer, starting at off. Coordinates must be in
+    // [0, p); anything else is rejected with IllegalArgumentException.
+    int len = length / 3;
+
+    if (length != 6 * f.getPrimeSize ())
+      throw new IllegalArgumentException ("SIDH public key must be " + 6 * f.getPrimeSize () +
+                                          " bytes");
+
+    phiPx = new F2elm (f, Arrays.copyOfRange (inBytes, off, off + len));
+    phiQx = new F2elm (f, Arrays.copyOfRange (inBytes, off + len, off + 2*len));
+    phiDx = new F2elm (f, Arrays.copyOfRange (inBytes, off + 2*len, off + 3*len));
+  }
+
+
+  FieldBackend getField () {
+    return phiPx.getField ();
+  }
+
+
+  SidhPublicKey forField (FieldBackend f) {
+    // This key, or a copy of it re-encoded for f if it was made with another backend
+
+    if (getField () == f)
+      return this;
+    if (!getField ().getPrime ().equals (f.getPrime ()))
+      throw new IllegalArgumentException ("Public key belongs to another parameter set");
+
+    return new SidhPublicKey (convert (phiPx, f), convert (phiQx, f), convert (phiDx, f));
+  }
+
+
+  private static F2elm convert (F2elm a, FieldBackend f) {
+    return new F2elm (f, a.f2Get0 ().fpGetValue (), a.f2Get1 ().fpGetValue ());
   }
 
 
@@ -54,18 +128,26 @@ public class SidhPublicKey {
     
     
   public byte[] serialize() {
-    int f2size = 2 * Felm.primesize;
-    byte[] retval = new byte[3*f2size];
-    
-    System.arraycopy (phiPx.toByteArray(), 0, retval, 0, f2size);
-    System.arraycopy (phiQx.toByteArray(), 0, retval, f2size, f2size);
-    System.arraycopy (phiDx.toByteArray(), 0, retval, 2*f2size, f2size);
+    byte[] retval = new byte[6 * getField ().getPrimeSize ()];
 
+    serialize (retval, 0);
     return retval;
   }
 
 
+  void serialize (byte[] out, int off) {
+    // Write the 6*primesize byte encoding into out at off
+    int f2size = 2 * getField ().getPrimeSize ();
+
+    System.arraycopy (phiPx.toByteArray(), 0, out, off, f2size);
+    System.arraycopy (phiQx.toByteArray(), 0, out, off + f2size, f2size);
+    System.arraycopy (phiDx.toByteArray(), 0, out, off + 2*f2size, f2size);
+  }
+
+
   public boolean publicKeyEquals (SidhPublicKey k2) {
+    if (k2.getField () != getField ())
+      return Arrays.equals (serialize (), k2.serialize ());
     if (phiPx.f2Equals (k2.phiPx) == false)
       return false;
     if (phiQx.f2Equals (k2.phiQx) == false)
@@ -80,30 +162,40 @@ public class SidhPublicKey {
 
 
   protected void genPubKeyA (SidhPrivateKey privKey, SidhKeyExchange params) {
+    genPubKeyA (privKey, params, null);
+  }
+
+
+  void genPubKeyA (SidhPrivateKey privKey, SidhKeyExchange params, SidhDeadline d) {
     // Given A's private key compute the corresponding public key
 
     MontCurve curve;
     FourIsogeny fourIsog;
     F2Point r, phiP, phiQ, phiD, pts[];
-    F2elm invs[], coeffs[], genA[], genB[];
+    F2elm invs[], coeffs[], genA[], genB[], one;
     int maxIntPointsA, maxA, splitsA[], obits, row, index = 0, npts = 0, ptsIdx[], m, i, ii = 0;
+    SidhOperationEvent opEvent;
+    SidhPhaseEvent phEvent;
  
+    opEvent = SidhOperationEvent.start ("genPubKeyA", params, SidhKeyExchange.ALICE);
+
     obits = params.getObitsA();
     curve = new MontCurve (params.getCurve());
-    curve.updateA24();
     
     genA = params.getGenA();
     genB = params.getGenB();
 
+    phEvent = SidhPhaseEvent.start ("genPubKeyA", SidhPhaseEvent.LADDER, params,
+                                    SidhKeyExchange.ALICE);
     r = curve.ladder3pt (genA[0], genA[1], genA[2], privKey.getKey(), obits);
+    phEvent.commit ();
     
-    phiP = new F2Point (genB[0], F2elm.ONE);
-    phiQ = new F2Point (genB[1], F2elm.ONE);
-    phiD = new F2Point (genB[2], F2elm.ONE);
+    one = F2elm.one (params.getField ());
+    phiP = new F2Point (genB[0], one);
+    phiQ = new F2Point (genB[1], one);
+    phiD = new F2Point (genB[2], one);
     
     fourIsog = new FourIsogeny (curve);
-    fourIsog.updatePlusMinus();
-    fourIsog.updateC4 ();
 
     maxIntPointsA = params.getMIPA();
     maxA = params.getMaxA();
@@ -111,7 +203,12 @@ public class SidhPublicKey {
     pts = new F2Point[maxIntPointsA];
     ptsIdx = new int[maxIntPointsA];
     
+    phEvent = SidhPhaseEvent.start ("genPubKeyA", SidhPhaseEvent.STRATEGY, params,
+                                    SidhKeyExchange.ALICE);
     for (row = 1; row < maxA; row++) {
+      if (d != null)
+        d.check ();
+
       while (index < maxA - row) {
 	pts[npts] = r;
         ptsIdx[npts++] = index;
@@ -133,7 +230,10 @@ public class SidhPublicKey {
       index = ptsIdx[npts-1];
       npts--;
     }
+    phEvent.commit ();
        
+    phEvent = SidhPhaseEvent.start ("genPubKeyA", SidhPhaseEvent.FINAL_ISOGENY, params,
+                                    SidhKeyExchange.ALICE);
     fourIsog.get4Isog (r);
 
     phiP = fourIsog.eval4Isog (phiP);
@@ -145,34 +245,48 @@ public class SidhPublicKey {
     phiPx = F2elm.mult (invs[0], phiP.getX());
     phiQx = F2elm.mult (invs[1], phiQ.getX());
     phiDx = F2elm.mult (invs[2], phiD.getX());
+    phEvent.commit ();
+
+    opEvent.commit ();
   }
 
 
   protected void genPubKeyB (SidhPrivateKey privKey, SidhKeyExchange params) {
+    genPubKeyB (privKey, params, null);
+  }
+
+
+  void genPubKeyB (SidhPrivateKey privKey, SidhKeyExchange params, SidhDeadline d) {
     // Given B's private key, compute the corresponding public key
 
     MontCurve curve; 
-    F2elm genA[], genB[], invs[];
+    F2elm genA[], genB[], invs[], one;
     int maxIntPointsB, maxB, splitsB[], obits, row, m, index = 0, ptsIdx[], npts = 0, i, ii = 0;
     
     F2Point r, phiP, phiQ, phiD, pts[];
     ThreeIsogeny threeIsog;
+    SidhOperationEvent opEvent;
+    SidhPhaseEvent phEvent;
+
+    opEvent = SidhOperationEvent.start ("genPubKeyB", params, SidhKeyExchange.BOB);
 
     obits = params.getObitsB();
     curve = new MontCurve (params.getCurve());
-    curve.updateA24();
 
     genA = params.getGenA();
     genB = params.getGenB();
     
+    phEvent = SidhPhaseEvent.start ("genPubKeyB", SidhPhaseEvent.LADDER, params,
+                                    SidhKeyExchange.BOB);
     r = curve.ladder3pt (genB[0], genB[1], genB[2], privKey.getKey(), obits);
+    phEvent.commit ();
 
-    phiP = new F2Point (genA[0], F2elm.ONE);
-    phiQ = new F2Point (genA[1], F2elm.ONE);
-    phiD = new F2Point (genA[2], F2elm.ONE);
+    one = F2elm.one (params.getField ());
+    phiP = new F2Point (genA[0], one);
+    phiQ = new F2Point (genA[1], one);
+    phiD = new F2Point (genA[2], one);
     
     threeIsog = new ThreeIsogeny (curve);
-    threeIsog.updatePlusMinus();
 
     maxIntPointsB = params.getMIPB();
     maxB = params.getMaxB();
@@ -180,7 +294,12 @@ public class SidhPublicKey {
     pts = new F2Point[maxIntPointsB];
     ptsIdx = new int[maxIntPointsB];
     
+    phEvent = SidhPhaseEvent.start ("genPubKeyB", SidhPhaseEvent.STRATEGY, params,
+                                    SidhKeyExchange.BOB);
     for (row = 1; row < maxB; row++) {
+      if (d != null)
+        d.check ();
+
       while (index < maxB - row) {
         pts[npts] = r;
         ptsIdx[npts++] = index;
@@ -202,7 +321,10 @@ public class SidhPublicKey {
       index = ptsIdx[npts-1];
       npts--;
     }
+    phEvent.commit ();
 
+    phEvent = SidhPhaseEvent.start ("genPubKeyB", SidhPhaseEvent.FINAL_ISOGENY, params,
+                                    SidhKeyExchange.BOB);
     threeIsog.get3Isog (r);
 
     phiP = threeIsog.eval3Isog (phiP);
@@ -214,6 +336,9 @@ public class SidhPublicKey {
     phiPx = F2elm.mult (invs[0], phiP.getX());
     phiQx = F2elm.mult (invs[1], phiQ.getX());
     phiDx = F2elm.mult (invs[2], phiD.getX());
+    phEvent.commit ();
+
+    opEvent.commit ();
   }
 
 
@@ -0,0 +1,382 @@
+
+package sidh;
+
+/**************************************************************************************************
+ *
+ * Priority- and tenant-aware scheduler for key generations and agreements. Requests are
+ * classified by priority class and tenant and run on a fixed set of worker threads:
+ *
+ *   INTERACTIVE  handshakes waiting on a client; always dispatched first
+ *   BACKGROUND   ephemeral key precomputation and pool refills
+ *   BULK         rotation and re-agreement jobs
+ *
+ * Classes are served in strict priority order. BACKGROUND and BULK work may occupy all workers
+ * but one, so an interactive request never waits behind a full set of background operations.
+ * The exception is a scheduler with a single worker, which low-priority work may also use; an
+ * interactive request there can wait for one background or bulk operation to finish. Use at least
+ * two workers when interactive latency matters.
+ * Within a class, tenants share the workers by start-time fair queueing: each request is tagged
+ * with its tenant's virtual finish time, advanced by the estimated cost of the request divided by
+ * the tenant's weight, and the request with the smallest start tag runs next. Costs are estimated
+ * per parameter set and operation, starting from the cube of the prime's bit length and then
+ * following the measured durations, so a P751 agreement is charged several P434 agreements.
+ *
+ * A tenant's quota is its weight (1 by default) and an optional limit on queued requests beyond
+ * which submissions are rejected with RejectedExecutionException. A request whose SidhDeadline
+ * has passed by the time it is dispatched is not run; it completes with SidhCancelledException
+ * and is reported as shed, like a request abandoned during its run.
+ *
+ **************************************************************************************************/
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+
+public class SidhScheduler implements AutoCloseable {
+  public static final int INTERACTIVE = 0;
+  public static final int BACKGROUND = 1;
+  public static final int BULK = 2;
+  static final int NUM_CLASSES = 3;
+
+  // Weight of the measured duration in the running cost estimates
+  static final double COST_ALPHA = 0.2;
+
+  private final ReentrantLock lock = new ReentrantLock ();
+  private final Condition ready = lock.newCondition ();
+  private final ClassQueue classes[] = new ClassQueue[NUM_CLASSES];
+  private final HashMap<String, double[]> costs = new HashMap<String, double[]> ();
+  private final HashMap<String, Double> weights = new HashMap<String, Double> ();
+  private final HashMap<String, Integer> limits = new HashMap<String, Integer> ();
+  private final Thread workers[];
+  private final int maxLowPriority;
+  private int runningLowPriority;
+  private boolean closed;
+
+
+  public SidhScheduler (int threads) {
+    if (threads < 1)
+      throw new IllegalArgumentException ("Need at least one worker");
+
+    for (int i = 0; i < NUM_CLASSES; i++)
+      classes[i] = new ClassQueue ();
+
+    // With a single worker low-priority work has to be allowed on it, or it would never run
+    maxLowPriority = Math.max (1, threads - 1);
+    workers = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      workers[i] = new Thread (this::work, "sidh-scheduler-" + i);
+      workers[i].setDaemon (true);
+      workers[i].start ();
+    }
+  }
+
+
+  public void setTenantWeight (String tenant, double weight) {
+    // Share of the workers relative to the other tenants of the same class
+
+    if (!(weight > 0))
+      throw new IllegalArgumentException ("Tenant weight must be positive");
+
+    lock.lock ();
+    try {
+      weights.put (tenant, weight);
+    } finally {
+      lock.unlock ();
+    }
+  }
+
+
+  public void setTenantQueueLimit (String tenant, int limit) {
+    // Most requests tenant may have waiting across all classes
+
+    lock.lock ();
+    try {
+      limits.put (tenant, limit);
+    } finally {
+      lock.unlock ();
+    }
+  }
+
+
+  public CompletableFuture<SidhKeyPair> generateKeyPair (int priority, String tenant,
+                                                         SidhKeyExchange kex, int aOrB) {
+    return submit (priority, tenant, kex, SidhMetrics.KEYGEN, aOrB, null,
+                   () -> kex.generateKeyPair (aOrB));
+  }
+
+
+  public CompletableFuture<SidhKeyPair> generateKeyPair (int priority, String tenant,
+                                                         SidhKeyExchange kex, int aOrB,
+                                                         SidhPrivateKey k, SidhDeadline d) {
+    return submit (priority, tenant, kex, SidhMetrics.KEYGEN, aOrB, d,
+                   () -> kex.generateKeyPair (aOrB, k, d));
+  }
+
+
+  public CompletableFuture<byte[]> calculateAgreementA (int priority, String tenant,
+                                                        SidhKeyExchange kex,
+                                                        SidhPrivateKey privKeyA,
+                                                        SidhPublicKey pubKeyB, SidhDeadline d) {
+    return submit (priority, tenant, kex, SidhMetrics.AGREEMENT, SidhKeyExchange.ALICE, d,
+                   () -> kex.calculateAgreementA (privKeyA, pubKeyB, d));
+  }
+
+
+  public CompletableFuture<byte[]> calculateAgreementB (int priority, String tenant,
+                                                        SidhKeyExchange kex,
+                                                        SidhPrivateKey privKeyB,
+                                                        SidhPublicKey pubKeyA, SidhDeadline d) {
+    return submit (priority, tenant, kex, SidhMetrics.AGREEMENT, SidhKeyExchange.BOB, d,
+                   () -> kex.calculateAgreementB (privKeyB, pubKeyA, d));
+  }
+
+
+  public int queued (int priority) {
+    lock.lock ();
+    try {
+      return classes[priority].size;
+    } finally {
+      lock.unlock ();
+    }
+  }
+
+
+  public void close () {
+    // Stop taking requests. Queued requests still run.
+
+    lock.lock ();
+    try {
+      closed = true;
+      ready.signalAll ();
+    } finally {
+      lock.unlock ();
+    }
+  }
+
+
+  private <T> CompletableFuture<T> submit (int priority, String tenant, SidhKeyExchange kex,
+                                           int operation, int aOrB, SidhDeadline d,
+                                           Supplier<T> work) {
+    ScheduledTask<T> task;
+    TenantQueue tq;
+    Integer limit;
+
+    if (priority < 0 || priority >= NUM_CLASSES)
+      throw new IllegalArgumentException ("Unknown priority class " + priority);
+
+    task = new ScheduledTask<T> (kex, operation, aOrB, d, work);
+
+    lock.lock ();
+    try {
+      if (closed)
+        throw new RejectedExecutionException ("Scheduler is closed");
+
+      limit = limits.get (tenant);
+      if (limit != null && queuedFor (tenant) >= limit)
+        throw new RejectedExecutionException ("Queue limit of " + limit + " reached for " +
+                                              tenant);
+
+      tq = classes[priority].tenant (tenant);
+      task.cost = estimate (kex, operation);
+      task.start = Math.max (classes[priority].virtualTime, tq.lastFinish);
+      tq.lastFinish = task.start + task.cost / weights.getOrDefault (tenant, 1.0);
+      tq.tasks.add (task);
+      classes[priority].size++;
+      ready.signal ();
+    } finally {
+      lock.unlock ();
+    }
+
+    return task.result;
+  }
+
+
+  private int queuedFor (String tenant) {
+    TenantQueue tq;
+    int n = 0;
+
+    for (ClassQueue cq : classes) {
+      tq = cq.tenants.get (tenant);
+      if (tq != null)
+        n += tq.tasks.size ();
+    }
+
+    return n;
+  }
+
+
+  private double estimate (SidhKeyExchange kex, int operation) {
+    // Running estimate of the operation's duration in nanoseconds
+
+    double c[] = costs.get (kex.getParameterID ());
+    double bits;
+
+    if (c == null) {
+      // About 20 ms for a P434 agreement on current hardware, growing with the cube of the
+      // prime's size; key generations cost about the same
+      bits = kex.getPrime ().bitLength () / 434.0;
+      c = new double[] { 20e6 * bits * bits * bits, 20e6 * bits * bits * bits };
+      costs.put (kex.getParameterID (), c);
+    }
+
+    return c[operation];
+  }
+
+
+  private void work () {
+    ScheduledTask<?> task;
+    long start;
+
+    while (true) {
+      lock.lock ();
+      try {
+        while ((task = next ()) == null) {
+          if (closed)
+            return;
+          ready.awaitUninterruptibly ();
+        }
+      } finally {
+        lock.unlock ();
+      }
+
+      start = System.nanoTime ();
+      try {
+        task.run ();
+      } finally {
+        lock.lock ();
+        try {
+          if (task.lowPriority) {
+            runningLowPriority--;
+            ready.signal ();
+          }
+          if (task.succeeded) {
+            double c[] = costs.get (task.kex.getParameterID ());
+            c[task.operation] += COST_ALPHA * ((System.nanoTime () - start) - c[task.operation]);
+          }
+        } finally {
+          lock.unlock ();
+        }
+      }
+    }
+  }
+
+
+  private ScheduledTask<?> next () {
+    // Highest priority class first, and within it the smallest start tag. Called with the lock.
+
+    ScheduledTask<?> task;
+    Iterator<TenantQueue> it;
+    TenantQueue best, tq;
+
+    for (int p = 0; p < NUM_CLASSES; p++) {
+      if (classes[p].size == 0)
+        continue;
+      if (p != INTERACTIVE && runningLowPriority >= maxLowPriority)
+        return null;
+
+      best = null;
+      it = classes[p].tenants.values ().iterator ();
+      while (it.hasNext ()) {
+        tq = it.next ();
+        if (tq.tasks.isEmpty ()) {
+          // An idle tenant that has caught up with virtual time has nothing left to remember
+          if (tq.lastFinish <= classes[p].virtualTime)
+            it.remove ();
+        } else if (best == null || tq.tasks.peek ().start < best.tasks.peek ().start)
+          best = tq;
+      }
+
+      task = best.tasks.poll ();
+      classes[p].size--;
+      classes[p].virtualTime = Math.max (classes[p].virtualTime, task.start);
+      if (p != INTERACTIVE) {
+        task.lowPriority = true;
+        runningLowPriority++;
+      }
+      return task;
+    }
+
+    return null;
+  }
+}
+
+
+class ClassQueue {
+  /* The waiting requests of one priority class, per tenant */
+
+  final HashMap<String, TenantQueue> tenants = new HashMap<String, TenantQueue> ();
+  double virtualTime;
+  int size;
+
+
+  TenantQueue tenant (String name) {
+    TenantQueue tq = tenants.get (name);
+
+    if (tq == null) {
+      tq = new TenantQueue ();
+      tenants.put (name, tq);
+    }
+
+    return tq;
+  }
+}
+
+
+class TenantQueue {
+  final ArrayDeque<ScheduledTask<?>> tasks = new ArrayDeque<ScheduledTask<?>> ();
+  double lastFinish;
+}
+
+
+class ScheduledTask<T> {
+  final SidhKeyExchange kex;
+  final int operation;
+  final int aOrB;
+  final SidhDeadline deadline;
+  final Supplier<T> work;
+  final CompletableFuture<T> result = new CompletableFuture<T> ();
+  double cost;
+  double start;
+  boolean lowPriority;
+  boolean succeeded;
+
+
+  ScheduledTask (SidhKeyExchange k, int op, int party, SidhDeadline d, Supplier<T> w) {
+    kex = k;
+    operation = op;
+    aOrB = party;
+    deadline = d;
+    work = w;
+  }
+
+
+  void run () {
+    // Requests that are already past their deadline are shed without running
+
+    long now = System.nanoTime ();
+    T res;
+
+    try {
+      if (deadline != null) {
+        try {
+          deadline.check ();
+        } catch (SidhCancelledException ex) {
+          kex.recordShed (operation, aOrB, now);
+          throw ex;
+        }
+      }
+
+      res = work.get ();
+      succeeded = true;
+      result.complete (res);
+    } catch (Throwable ex) {
+      result.completeExceptionally (ex);
+    }
+  }
+}
@@ -0,0 +1,193 @@
+
+package sidh;
+
+/**************************************************************************************************
+ *
+ * Off-heap storage for private keys. An arena is a direct buffer that private scalars are written
+ * into instead of BigIntegers, so the collector never sees, copies or leaves behind the key
+ * material. Closing the arena overwrites the whole buffer with zeros; keys allocated in it are
+ * unusable afterwards.
+ *
+ * An arena is confined to the thread that created it for allocation and closing. Keys may be
+ * read from any thread until the arena is closed. Operations with a key from an arena read its
+ * bits straight from the buffer and wipe the pooled context they ran in before returning it.
+ *
+ *   try (SidhSecretArena arena = new SidhSecretArena (1024)) {
+ *     SidhPrivateKey k = new SidhPrivateKey (arena, SidhKeyExchange.ALICE, kex.getOrderA (), rnd);
+ *     ...
+ *   }
+ *
+ **************************************************************************************************/
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+
+public final class SidhSecretArena implements AutoCloseable {
+  private final ByteBuffer buf;
+  private final Thread owner;
+  private int used;
+  private volatile boolean closed;
+
+
+  public SidhSecretArena (int capacity) {
+    buf = ByteBuffer.allocateDirect (capacity);
+    owner = Thread.currentThread ();
+  }
+
+
+  public int capacity () {
+    return buf.capacity ();
+  }
+
+
+  public int remaining () {
+    return buf.capacity () - used;
+  }
+
+
+  public boolean isClosed () {
+    return closed;
+  }
+
+
+  public void close () {
+    // Zeroize everything ever allocated. Closing twice is harmless.
+
+    checkOwner ();
+    if (closed)
+      return;
+
+    closed = true;
+    for (int i = 0; i < used; i++)
+      buf.put (i, (byte) 0);
+    used = 0;
+  }
+
+
+  private void checkOwner () {
+    if (Thread.currentThread () != owner)
+      throw new IllegalStateException ("Arena is confined to " + owner.getName ());
+  }
+
+
+  private void checkOpen () {
+    if (closed)
+      throw new IllegalStateException ("Arena is closed");
+  }
+
+
+  int allocate (int size) {
+    // Offset of size fresh bytes
+
+    int off;
+
+    checkOwner ();
+    checkOpen ();
+    if (size > remaining ())
+      throw new IllegalStateException ("Arena full: " + size + " bytes requested, " +
+                                       remaining () + " left");
+
+    off = used;
+    used += size;
+    return off;
+  }
+
+
+  // Scalars are stored least significant byte first
+
+  int store (byte[] bigEndian) {
+    // Copy a non-negative big-endian value in, as SidhPrivateKey.serialize() produces it
+
+    int off = allocate (bigEndian.length);
+
+    for (int i = 0; i < bigEndian.length; i++)
+      buf.put (off + i, bigEndian[bigEndian.length - 1 - i]);
+
+    return off;
+  }
+
+
+  int random (BigInteger bound, int aOrB, SecureRandom rnd) {
+    // Sample a scalar below bound in place, with the conditions of SidhPrivateKey: nonzero, even
+    // for A and a multiple of 3 for B. The bytes only pass through a scratch array that is
+    // cleared before returning.
+
+    int len = (bound.bitLength () + 7) / 8, top = bound.bitLength () % 8, off;
+    byte tmp[] = new byte[len];
+
+    off = allocate (len);
+    try {
+      do {
+        rnd.nextBytes (tmp);
+        if (top != 0)
+          tmp[len - 1] &= (byte) ((1 << top) - 1);
+        for (int i = 0; i < len; i++)
+          buf.put (off + i, tmp[i]);
+      } while (!acceptable (off, len, bound, aOrB));
+    } finally {
+      Arrays.fill (tmp, (byte) 0);
+    }
+
+    return off;
+  }
+
+
+  private boolean acceptable (int off, int len, BigInteger bound, int aOrB) {
+    int mod3 = 0, zero = 0, cmp = 0, b, c;
+
+    // 256 = 1 mod 3, so the value is the sum of its bytes mod 3
+    for (int i = 0; i < len; i++) {
+      b = buf.get (off + i) & 0xff;
+      mod3 += b;
+      zero |= b;
+    }
+
+    // Compare against bound from the most significant byte down
+    for (int i = len - 1; i >= 0 && cmp == 0; i--) {
+      b = buf.get (off + i) & 0xff;
+      c = byteOf (bound, i);
+      cmp = Integer.compare (b, c);
+    }
+
+    if (zero == 0 || cmp >= 0)
+      return false;
+    if (aOrB == SidhKeyExchange.ALICE)
+      return (buf.get (off) & 1) == 0;
+    return mod3 % 3 == 0;
+  }
+
+
+  private static int byteOf (BigInteger x, int i) {
+    int v = 0;
+
+    for (int j = 0; j < 8; j++)
+      if (x.testBit (8*i + j))
+        v |= 1 << j;
+
+    return v;
+  }
+
+
+  int bit (int off, int len, int i) {
+    checkOpen ();
+    if ((i >>> 3) >= len)
+      return 0;
+    return (buf.get (off + (i >>> 3)) >>> (i & 7)) & 1;
+  }
+
+
+  byte[] load (int off, int len) {
+    // Big-endian copy of a stored scalar, with a leading zero byte so it reads as non-negative
+
+    byte res[] = new byte[len + 1];
+
+    checkOpen ();
+    for (int i = 0; i < len; i++)
+      res[len - i] = buf.get (off + i);
+
+    return res;
+  }
+}
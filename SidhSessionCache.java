@@ -0,0 +1,252 @@
+
+package sidh;
+
+/**************************************************************************************************
+ *
+ * Cache of shared secrets for repeat pairs of static keys. An agreement between the same private
+ * key and the same peer public key always gives the same j-invariant, so when clients reconnect
+ * with a static key the whole isogeny walk can be skipped. Entries are keyed by the SHA-256 hash
+ * of the local private key and the SHA-256 hash of the peer's encoded public key, each under the
+ * parameter set and party.
+ *
+ * The cache is bounded in size (least recently used entries go first) and in age. Expired
+ * entries are swept out on every put. Secrets are overwritten with zeros when their entry is
+ * evicted, expires or is dropped by evict(), which should be called when a local key is rotated
+ * out. Callers get a copy of the secret.
+ *
+ * Attach a cache with SidhKeyExchange.setSessionCache, or with -Dsidh.sessionCache=<entries>
+ * (and optionally -Dsidh.sessionTtl=<seconds>, 300 by default).
+ *
+ **************************************************************************************************/
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+
+public class SidhSessionCache {
+  public static final long DEFAULT_TTL_SECONDS = Long.getLong ("sidh.sessionTtl", 300);
+  static final int KEY_ID_BYTES = 48;           // Hashed private key width; orders are below 2^384
+
+  private final Map<SessionKey, Session> cache;
+  private final long ttlNanos;
+
+  private long hits;
+  private long misses;
+
+
+  public SidhSessionCache (final int maxEntries) {
+    this (maxEntries, DEFAULT_TTL_SECONDS, TimeUnit.SECONDS);
+  }
+
+
+  public SidhSessionCache (final int maxEntries, long ttl, TimeUnit unit) {
+    ttlNanos = unit.toNanos (ttl);
+    cache = new LinkedHashMap<SessionKey, Session> (16, 0.75f, true) {
+      protected boolean removeEldestEntry (Map.Entry<SessionKey, Session> eldest) {
+        if (size () <= maxEntries)
+          return false;
+        eldest.getValue ().wipe ();
+        return true;
+      }
+    };
+  }
+
+
+  byte[] get (String parameterID, int aOrB, SidhPrivateKey local, SidhPublicKey peer) {
+    // A copy of the cached secret, or null
+
+    SessionKey k = new SessionKey (localId (parameterID, aOrB, local),
+                                   peerId (parameterID, aOrB, peer));
+    Session s;
+
+    synchronized (cache) {
+      s = cache.get (k);
+      if (s != null && System.nanoTime () - s.created > ttlNanos) {
+        cache.remove (k);
+        s.wipe ();
+        s = null;
+      }
+
+      if (s == null) {
+        misses++;
+        return null;
+      }
+
+      hits++;
+      return s.secret.clone ();
+    }
+  }
+
+
+  void put (String parameterID, int aOrB, SidhPrivateKey local, SidhPublicKey peer,
+            byte[] secret) {
+    SessionKey k = new SessionKey (localId (parameterID, aOrB, local),
+                                   peerId (parameterID, aOrB, peer));
+    Session old;
+
+    synchronized (cache) {
+      sweep ();
+      old = cache.put (k, new Session (secret.clone ()));
+      if (old != null)
+        old.wipe ();
+    }
+  }
+
+
+  private void sweep () {
+    // Drop and wipe every expired entry; the caller holds the lock
+
+    Iterator<Session> it = cache.values ().iterator ();
+    long now = System.nanoTime ();
+    Session s;
+
+    while (it.hasNext ()) {
+      s = it.next ();
+      if (now - s.created > ttlNanos) {
+        s.wipe ();
+        it.remove ();
+      }
+    }
+  }
+
+
+  public int evict (String parameterID, int aOrB, SidhPrivateKey local) {
+    // Drop every secret of a local key, as when it is rotated out. Returns the number dropped.
+
+    ByteBuffer id = localId (parameterID, aOrB, local);
+    Iterator<Map.Entry<SessionKey, Session>> it;
+    Map.Entry<SessionKey, Session> e;
+    int n = 0;
+
+    synchronized (cache) {
+      it = cache.entrySet ().iterator ();
+      while (it.hasNext ()) {
+        e = it.next ();
+        if (e.getKey ().local.equals (id)) {
+          e.getValue ().wipe ();
+          it.remove ();
+          n++;
+        }
+      }
+    }
+
+    return n;
+  }
+
+
+  public void clear () {
+    synchronized (cache) {
+      for (Session s : cache.values ())
+        s.wipe ();
+      cache.clear ();
+    }
+  }
+
+
+  public int size () {
+    synchronized (cache) {
+      return cache.size ();
+    }
+  }
+
+
+  public long getHits () {
+    synchronized (cache) {
+      return hits;
+    }
+  }
+
+
+  public long getMisses () {
+    synchronized (cache) {
+      return misses;
+    }
+  }
+
+
+  private static ByteBuffer localId (String parameterID, int aOrB, SidhPrivateKey k) {
+    // Hash the key as fixed-width unsigned big-endian bytes, read bit by bit so that an off-heap
+    // key is never copied to the heap in a length that depends on its value
+
+    byte enc[] = new byte[KEY_ID_BYTES];
+
+    for (int i = 0; i < 8 * KEY_ID_BYTES; i++)
+      enc[KEY_ID_BYTES - 1 - (i >>> 3)] |= (byte) (k.bit (i) << (i & 7));
+
+    try {
+      return ByteBuffer.wrap (digest (parameterID, aOrB, enc));
+    } finally {
+      Arrays.fill (enc, (byte) 0);
+    }
+  }
+
+
+  private static ByteBuffer peerId (String parameterID, int aOrB, SidhPublicKey k) {
+    // The peer is the other party
+    return ByteBuffer.wrap (digest (parameterID, 1 - aOrB, k.serialize ()));
+  }
+
+
+  private static byte[] digest (String parameterID, int aOrB, byte[] encoded) {
+    MessageDigest md;
+
+    try {
+      md = MessageDigest.getInstance ("SHA-256");
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException (ex);
+    }
+
+    md.update (parameterID.getBytes ());
+    md.update ((byte) aOrB);
+    return md.digest (encoded);
+  }
+}
+
+
+class SessionKey {
+  final ByteBuffer local;
+  final ByteBuffer peer;
+
+
+  SessionKey (ByteBuffer l, ByteBuffer p) {
+    local = l;
+    peer = p;
+  }
+
+
+  public boolean equals (Object o) {
+    if (!(o instanceof SessionKey))
+      return false;
+
+    SessionKey k = (SessionKey) o;
+    return local.equals (k.local) && peer.equals (k.peer);
+  }
+
+
+  public int hashCode () {
+    return 31 * local.hashCode () + peer.hashCode ();
+  }
+}
+
+
+class Session {
+  final byte secret[];
+  final long created;
+
+
+  Session (byte[] s) {
+    secret = s;
+    created = System.nanoTime ();
+  }
+
+
+  void wipe () {
+    Arrays.fill (secret, (byte) 0);
+  }
+}
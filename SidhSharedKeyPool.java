@@ -0,0 +1,298 @@
+
+package sidh;
+
+/**************************************************************************************************
+ *
+ * Pool of precomputed ephemeral key pairs in a memory-mapped file, shared by all the processes on
+ * a host. Producers (any process with spare CPU) generate key pairs into free slots and consumers
+ * take them out, so precomputation is balanced across the host instead of per JVM. Put the file
+ * on a memory file system such as /dev/shm; it holds private keys, so it is created readable by
+ * its owner only.
+ *
+ * Layout, in native byte order:
+ *
+ *   0    magic "SIDHPOOL"                  8 bytes
+ *   8    format version, party             4 + 4
+ *   16   slots, slot size                  4 + 4
+ *   24   private and public key widths     4 + 4
+ *   32   producer and consumer cursors     4 + 4
+ *   40   parameter set name, ASCII         24
+ *   64   slots
+ *
+ * Each slot is a state word followed by the private scalar (unsigned, big-endian) and the
+ * encoded public key, padded to a multiple of 64 bytes. Slots go EMPTY -> WRITING -> FULL on the
+ * producer side and FULL -> READING -> EMPTY on the consumer side, each step a compare-and-set or
+ * release store on the mapped buffer, so no locks are held across processes. Producers and
+ * consumers start probing at a shared cursor that they advance atomically, which finds a slot in
+ * a probe or two unless the pool is nearly full or nearly empty. A consumer overwrites the slot
+ * with zeros before releasing it. refill() holds a slot in WRITING while it generates the key
+ * pair for it. A slot left in WRITING or READING by a process that died is skipped for good;
+ * recreate the pool to reclaim it.
+ *
+ **************************************************************************************************/
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.math.BigInteger;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+
+
+public class SidhSharedKeyPool implements AutoCloseable {
+  static final long MAGIC = 0x4c4f4f5048444953L;          // "SIDHPOOL" read little-endian
+  static final int VERSION = 1;
+  static final int HEADER = 64;
+  static final int NAME_OFFSET = 40;
+  static final int NAME_LENGTH = 24;
+  static final int PRODUCER_CURSOR = 32;
+  static final int CONSUMER_CURSOR = 36;
+  static final int PAYLOAD = 8;                           // state word and padding
+
+  static final int EMPTY = 0;
+  static final int WRITING = 1;
+  static final int FULL = 2;
+  static final int READING = 3;
+
+  private static final VarHandle INT =
+    MethodHandles.byteBufferViewVarHandle (int[].class, ByteOrder.nativeOrder ());
+
+  private final SidhKeyExchange kex;
+  private final int aOrB;
+  private final MappedByteBuffer buf;
+  private final int slots;
+  private final int slotSize;
+  private final int privWidth;
+  private final int pubWidth;
+
+
+  private SidhSharedKeyPool (SidhKeyExchange k, int party, MappedByteBuffer b) {
+    kex = k;
+    aOrB = party;
+    buf = b;
+    buf.order (ByteOrder.nativeOrder ());
+    slots = buf.getInt (16);
+    slotSize = buf.getInt (20);
+    privWidth = buf.getInt (24);
+    pubWidth = buf.getInt (28);
+  }
+
+
+  public static SidhSharedKeyPool create (Path file, SidhKeyExchange kex, int aOrB, int slots)
+    throws IOException {
+    // Create an empty pool, replacing any existing file
+
+    int privWidth = keyWidth (kex, aOrB), pubWidth, slotSize;
+    byte name[] = kex.getParameterID ().getBytes (StandardCharsets.US_ASCII);
+    MappedByteBuffer b;
+    FileChannel ch;
+
+    if (slots < 1)
+      throw new IllegalArgumentException ("A pool needs at least one slot");
+    if (name.length > NAME_LENGTH)
+      throw new IllegalArgumentException ("Parameter set name too long: " + kex.getParameterID ());
+
+    pubWidth = 6 * kex.getPrimeSize ();
+    slotSize = (PAYLOAD + privWidth + pubWidth + 63) & ~63;
+
+    Files.deleteIfExists (file);
+    if (FileSystems.getDefault ().supportedFileAttributeViews ().contains ("posix"))
+      Files.createFile (file, PosixFilePermissions.asFileAttribute (
+                          PosixFilePermissions.fromString ("rw-------")));
+
+    ch = FileChannel.open (file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                           StandardOpenOption.WRITE);
+    try {
+      b = ch.map (FileChannel.MapMode.READ_WRITE, 0, HEADER + (long) slots * slotSize);
+    } finally {
+      ch.close ();
+    }
+
+    b.order (ByteOrder.nativeOrder ());
+    b.putInt (8, VERSION);
+    b.putInt (12, aOrB);
+    b.putInt (16, slots);
+    b.putInt (20, slotSize);
+    b.putInt (24, privWidth);
+    b.putInt (28, pubWidth);
+    for (int i = 0; i < name.length; i++)
+      b.put (NAME_OFFSET + i, name[i]);
+    // The magic goes in last so that nobody opens a half-written header
+    b.force ();
+    b.putLong (0, MAGIC);
+    b.force ();
+
+    return new SidhSharedKeyPool (kex, aOrB, b);
+  }
+
+
+  public static SidhSharedKeyPool open (Path file, SidhKeyExchange kex, int aOrB)
+    throws IOException {
+    // Attach to an existing pool for the same parameter set and party
+
+    MappedByteBuffer b;
+    FileChannel ch;
+    byte name[] = new byte[NAME_LENGTH];
+    String id;
+
+    ch = FileChannel.open (file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      if (ch.size () < HEADER)
+        throw new IllegalArgumentException (file + " is not a key pool");
+      b = ch.map (FileChannel.MapMode.READ_WRITE, 0, ch.size ());
+    } finally {
+      ch.close ();
+    }
+
+    b.order (ByteOrder.nativeOrder ());
+    b.get (NAME_OFFSET, name);
+    id = new String (name, StandardCharsets.US_ASCII).trim ();
+
+    if (b.getLong (0) != MAGIC || b.getInt (8) != VERSION)
+      throw new IllegalArgumentException (file + " is not a key pool");
+    if (!id.equals (kex.getParameterID ()) || b.getInt (12) != aOrB ||
+        b.getInt (24) != keyWidth (kex, aOrB))
+      throw new IllegalArgumentException (file + " holds " + id + " keys for party " +
+                                          b.getInt (12));
+    if (b.capacity () < HEADER + (long) b.getInt (16) * b.getInt (20))
+      throw new IllegalArgumentException (file + " is truncated");
+
+    return new SidhSharedKeyPool (kex, aOrB, b);
+  }
+
+
+  private static int keyWidth (SidhKeyExchange kex, int aOrB) {
+    BigInteger order = (aOrB == SidhKeyExchange.ALICE) ? kex.getOrderA () : kex.getOrderB ();
+    return (order.bitLength () + 7) / 8;
+  }
+
+
+  public int capacity () {
+    return slots;
+  }
+
+
+  public boolean offer (SidhKeyPair keys) {
+    // Store a key pair in a free slot. Returns false if the pool is full.
+
+    int slot = claim (PRODUCER_CURSOR, EMPTY, WRITING);
+
+    if (slot < 0)
+      return false;
+
+    store (slot, keys);
+    return true;
+  }
+
+
+  private void store (int slot, SidhKeyPair keys) {
+    // Fill a slot this producer holds in WRITING and publish it as FULL
+
+    int off = HEADER + slot * slotSize + PAYLOAD;
+    byte priv[], pub[];
+
+    priv = keys.getPrivateKey ().serialize ();
+    pub = keys.getPublicKey ().serialize ();
+
+    // serialize() may add a sign byte or drop leading zeros
+    for (int i = 0; i < privWidth; i++) {
+      int j = priv.length - privWidth + i;
+      buf.put (off + i, (j >= 0) ? priv[j] : 0);
+    }
+    buf.put (off + privWidth, pub);
+    Arrays.fill (priv, (byte) 0);
+
+    INT.setRelease (buf, HEADER + slot * slotSize, FULL);
+  }
+
+
+  public SidhKeyPair poll () {
+    // Take a key pair out of the pool and wipe its slot. Returns null if the pool is empty.
+
+    int slot = claim (CONSUMER_CURSOR, FULL, READING), off;
+    byte priv[] = new byte[privWidth], pub[] = new byte[pubWidth];
+    SidhPrivateKey privKey;
+    SidhPublicKey pubKey;
+
+    if (slot < 0)
+      return null;
+
+    off = HEADER + slot * slotSize + PAYLOAD;
+    buf.get (off, priv);
+    buf.get (off + privWidth, pub);
+    for (int i = 0; i < privWidth + pubWidth; i++)
+      buf.put (off + i, (byte) 0);
+    INT.setRelease (buf, HEADER + slot * slotSize, EMPTY);
+
+    privKey = new SidhPrivateKey (new BigInteger (1, priv));
+    Arrays.fill (priv, (byte) 0);
+    pubKey = new SidhPublicKey (pub, kex);
+
+    return new SidhKeyPair (pubKey, privKey);
+  }
+
+
+  public int refill () {
+    // Generate key pairs until the pool is full; returns how many were added. Each slot is
+    // claimed before its key pair is generated, so a full pool costs no key generation.
+
+    SidhKeyPair keys;
+    int n = 0, slot;
+
+    while ((slot = claim (PRODUCER_CURSOR, EMPTY, WRITING)) >= 0) {
+      try {
+        keys = kex.generateKeyPair (aOrB);
+      } catch (RuntimeException ex) {
+        INT.setRelease (buf, HEADER + slot * slotSize, EMPTY);
+        throw ex;
+      }
+      store (slot, keys);
+      n++;
+    }
+
+    return n;
+  }
+
+
+  public int available () {
+    // Number of full slots; a snapshot that may be stale as soon as it is returned
+
+    int n = 0;
+
+    for (int i = 0; i < slots; i++)
+      if ((int) INT.getAcquire (buf, HEADER + i * slotSize) == FULL)
+        n++;
+
+    return n;
+  }
+
+
+  public void close () {
+    // The mapping goes away with the last reference; force out what this process wrote
+    buf.force ();
+  }
+
+
+  private int claim (int cursor, int from, int to) {
+    // Move some slot from state from to state to, starting at the shared cursor; -1 if none is
+
+    int start = Math.floorMod ((int) INT.getAndAdd (buf, cursor, 1), slots), slot;
+
+    for (int i = 0; i < slots; i++) {
+      slot = (start + i) % slots;
+      if ((int) INT.getAcquire (buf, HEADER + slot * slotSize) == from &&
+          INT.compareAndSet (buf, HEADER + slot * slotSize, from, to))
+        return slot;
+    }
+
+    return -1;
+  }
+}
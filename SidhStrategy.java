@@ -0,0 +1,173 @@
+
+package sidh;
+
+/**************************************************************************************************
+ *
+ * Optimal strategies for walking a chain of isogenies, in the split format of the parameter sets
+ * (see the traversal loops in SidhPublicKey and SidhContext). A strategy for n steps is built
+ * from the cost p of one multiplication step and the cost q of one isogeny evaluation, following
+ * De Feo, Jao and Plut: the best split b of n steps minimizes
+ *
+ *   C(n) = C(n - b) + C(b) + b*p + (n - b)*q
+ *
+ * This is used for B's 9-isogeny engine, which composes pairs of 3-isogenies into steps of degree
+ * 9 (with a single 3-isogeny first when eB is odd). Costs are counted in multiplications and
+ * squarings in GF(p^2). Running this class compares the two engines on every parameter set.
+ *
+ **************************************************************************************************/
+
+import java.util.Arrays;
+
+
+class SidhStrategy {
+  public static final int XTPL_COST = 12;
+  public static final int EVAL3_COST = 6;
+  public static final int EVAL9_COST = 18;
+  public static final int GET3_COST = 5;
+  public static final int GET9_COST = 46;        // 2K, 3K and 4K, then the image curve
+
+
+  public static int[] optimal (int n, double p, double q) {
+    // The splits of an optimal strategy for n steps; there are n - 1 of them
+
+    int strat[][] = new int[n + 1][];
+    double cost[] = new double[n + 1], c;
+    int i, b, best;
+
+    strat[1] = new int[0];
+    cost[1] = 0;
+
+    for (i = 2; i <= n; i++) {
+      best = 1;
+      cost[i] = Double.MAX_VALUE;
+      for (b = 1; b < i; b++) {
+        c = cost[i - b] + cost[b] + b*p + (i - b)*q;
+        if (c < cost[i]) {
+          cost[i] = c;
+          best = b;
+        }
+      }
+
+      strat[i] = new int[i - 1];
+      strat[i][0] = best;
+      System.arraycopy (strat[i - best], 0, strat[i], 1, i - best - 1);
+      System.arraycopy (strat[best], 0, strat[i], i - best, best - 1);
+    }
+
+    return strat[n];
+  }
+
+
+  public static long cost (int n, int splits[], int p, int q) {
+    // Multiplication and evaluation cost of walking splits, as the traversal loops do it. Only
+    // the points saved on the way are evaluated; the images of the public points are not.
+
+    long total = 0;
+    int row, index = 0, npts = 0, ii = 0, m, ptsIdx[] = new int[n];
+
+    for (row = 1; row < n; row++) {
+      while (index < n - row) {
+        ptsIdx[npts++] = index;
+        m = splits[ii++];
+        total += (long) m * p;
+        index += m;
+      }
+
+      total += (long) npts * q;
+      index = ptsIdx[npts-1];
+      npts--;
+    }
+
+    return total;
+  }
+
+
+  public static int maxPoints (int n, int splits[]) {
+    // Largest number of points saved at once while walking splits
+
+    int row, index = 0, npts = 0, ii = 0, max = 0, ptsIdx[] = new int[n];
+
+    for (row = 1; row < n; row++) {
+      while (index < n - row) {
+        ptsIdx[npts++] = index;
+        index += splits[ii++];
+        max = Math.max (max, npts);
+      }
+
+      index = ptsIdx[npts-1];
+      npts--;
+    }
+
+    return max;
+  }
+
+
+  public static void main (String args[]) {
+    // Modelled cost and measured time of B's key generation and agreement with 3- and
+    // 9-isogeny steps. The two engines must produce the same public keys and shared secrets.
+
+    String sets[] = { SidhParameters.P434, SidhParameters.P503, SidhParameters.P751 };
+    int iters = (args.length > 0) ? Integer.parseInt (args[0]) : 10;
+    SidhKeyExchange kex;
+    SidhParameters ps;
+    SidhKeyPair keysA, keysB;
+    SidhPublicKey pub3, pub9;
+    byte shared3[], shared9[];
+    long model3, model9;
+    double keygen[] = new double[2], agree[] = new double[2];
+
+    for (String id : sets) {
+      kex = new SidhKeyExchange (id);
+      ps = SidhParameters.get (id);
+      keysA = kex.generateKeyPair (SidhKeyExchange.ALICE);
+      keysB = kex.generateKeyPair (SidhKeyExchange.BOB);
+
+      model3 = cost (ps.maxB, ps.splitsB, XTPL_COST, EVAL3_COST) + (ps.maxB - 1) * GET3_COST;
+      model9 = cost (ps.stepsB9, ps.splitsB9, 2*XTPL_COST, EVAL9_COST) +
+               (ps.stepsB9 - 1) * GET9_COST;
+
+      kex.setBobStep (3);
+      pub3 = new SidhPublicKey (SidhKeyExchange.BOB, keysB.getPrivateKey (), kex);
+      shared3 = kex.calculateAgreementB (keysB.getPrivateKey (), keysA.getPublicKey ());
+      kex.setBobStep (9);
+      pub9 = new SidhPublicKey (SidhKeyExchange.BOB, keysB.getPrivateKey (), kex);
+      shared9 = kex.calculateAgreementB (keysB.getPrivateKey (), keysA.getPublicKey ());
+
+      if (!pub3.publicKeyEquals (pub9) || !Arrays.equals (shared3, shared9))
+        throw new IllegalStateException ("3- and 9-isogeny engines disagree on " + id);
+
+      for (int run = 0; run < 3; run++) {
+        for (int step = 0; step < 2; step++) {
+          kex.setBobStep (step == 0 ? 3 : 9);
+          keygen[step] = timeKeygen (kex, keysB, iters);
+          agree[step] = timeAgreement (kex, keysA, keysB, iters);
+        }
+      }
+
+      System.out.printf ("%s: model %d vs %d mults (%d vs %d steps), keygen %.1f vs %.1f ms, " +
+                         "agreement %.1f vs %.1f ms%n", id, model3, model9, ps.maxB, ps.stepsB9,
+                         keygen[0], keygen[1], agree[0], agree[1]);
+    }
+  }
+
+
+  private static double timeKeygen (SidhKeyExchange kex, SidhKeyPair keysB, int iters) {
+    long start = System.nanoTime ();
+
+    for (int i = 0; i < iters; i++)
+      new SidhPublicKey (SidhKeyExchange.BOB, keysB.getPrivateKey (), kex);
+
+    return (System.nanoTime () - start) / 1e6 / iters;
+  }
+
+
+  private static double timeAgreement (SidhKeyExchange kex, SidhKeyPair keysA, SidhKeyPair keysB,
+                                       int iters) {
+    long start = System.nanoTime ();
+
+    for (int i = 0; i < iters; i++)
+      kex.calculateAgreementB (keysB.getPrivateKey (), keysA.getPublicKey ());
+
+    return (System.nanoTime () - start) / 1e6 / iters;
+  }
+}
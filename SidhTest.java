@@ -10,23 +10,66 @@ package sidh;
 import java.math.BigInteger;
 import java.util.Arrays;
 import java.security.SecureRandom;
-import java.lang.management.*;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import javax.crypto.KeyAgreement;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 class SidhTest {
   public static boolean testfixed = true;
   public static boolean debug = false;
+  public static boolean allocation = true;
+  public static boolean jca = true;
+  public static boolean offHeap = true;
+  public static boolean sessions = true;
+  public static boolean bulk = true;
+  public static boolean deadlines = true;
+  public static boolean scheduling = true;
+  public static boolean sharedPool = true;
+  public static boolean stepping = true;
+  public static boolean hybrid = true;
+  public static boolean prepared = true;
+  public static boolean concurrency = true;
+  public static boolean batch = true;
+  public static boolean statistics = true;
+  public static boolean timing = true;
+
+  // Bytes a warmed up key generation or agreement may allocate. Results and their encodings
+  // take a few kilobytes; the working state comes from a pooled SidhContext. Not checked for the
+  // BigInteger backend or cross-checked ones, which allocate a BigInteger per field operation.
+  public static final long ALLOCATION_BUDGET = 16384;
     
-  public static void main (String[] args) {
+  public static void main (String[] args)
+    throws InterruptedException, GeneralSecurityException, IOException {
     // Using default parameters
     SidhKeyExchange kex = new SidhKeyExchange("sidhP503");
     SidhKeyPair keysA, keysB;
-    SidhPublicKey reconstructedApub, publicB;
-    SidhPrivateKey reconstructedApriv, privateB;
+    SidhPublicKey reconstructedApub;
+    SidhPrivateKey reconstructedApriv;
+    SidhKeyValidator validator;
     byte[] sharedA, sharedB, pubKeyBytes, privKeyBytes, knownAnswer;
     
-    long startTime, startTime2, endTime, totalTime = 0;
-    int i, iterations = 10;
     BigInteger akey, bkey;
+    long perOp;
     
     // Testing key exchange
     
@@ -34,8 +77,8 @@ class SidhTest {
       akey = new BigInteger ("2b701ec1698bf9a513875fb7188c1d63fbd59ac8a378c3fbb1c98496173f6e", 16);
       bkey = new BigInteger ("9cfe2a283dfb23c330fb2202dd2c34f8a0c45f2ab761ec7ca4bc11a3324d5c7", 16);
       
-      keysA = kex.generateKeyPair (SidhKeyExchange.PARTYA, new SidhPrivateKey (akey));
-      keysB = kex.generateKeyPair (SidhKeyExchange.PARTYB, new SidhPrivateKey (bkey));
+      keysA = kex.generateKeyPair (SidhKeyExchange.ALICE, new SidhPrivateKey (akey));
+      keysB = kex.generateKeyPair (SidhKeyExchange.BOB, new SidhPrivateKey (bkey));
 
       pubKeyBytes = keysA.getPublicKey().serialize();
       privKeyBytes = keysA.getPrivateKey().serialize();
@@ -52,6 +95,17 @@ class SidhTest {
         System.out.println ("Private key reconstruction successful\n");
       else
         System.out.println ("Private key reconstruction unsuccessful\n");      
+
+      validator = new SidhKeyValidator (kex);
+      pubKeyBytes[7] ^= 1;
+      if (validator.isValid (SidhKeyExchange.ALICE, keysA.getPublicKey()) &&
+          validator.isValid (SidhKeyExchange.BOB, keysB.getPublicKey()) &&
+          !validator.isValid (SidhKeyExchange.BOB, keysA.getPublicKey()) &&
+          !validator.isValid (SidhKeyExchange.ALICE, pubKeyBytes) &&
+          rejectsUnreducedKey (kex, validator, keysA.getPublicKey()))
+        System.out.println ("Public key validation successful\n");
+      else
+        System.out.println ("Public key validation unsuccessful\n");
       
       sharedA = kex.calculateAgreementA (keysA.getPrivateKey(), keysB.getPublicKey());
       sharedB = kex.calculateAgreementB (keysB.getPrivateKey(), keysA.getPublicKey());
@@ -108,76 +162,835 @@ class SidhTest {
       }
     }
 
-    
-    if (iterations > 0) {
-      long mintime = 10000000;
-      long maxtime = 0;
-      long thistime;
-      
-      System.out.println ("\nRunning timing tests\n");
 
-      keysB = kex.generateKeyPair (SidhKeyExchange.PARTYB);
-      publicB = keysB.getPublicKey ();
-      privateB = keysB.getPrivateKey ();
-      
-      for (i = 0; i < iterations; i++) {
-	startTime = getCpuTime ();
-	  
-	keysA = kex.generateKeyPair (SidhKeyExchange.PARTYA);
-	sharedA = kex.calculateAgreementA (keysA.getPrivateKey(), publicB);
-	sharedB = kex.calculateAgreementB (privateB, keysA.getPublicKey());
-
-	if (Arrays.equals (sharedA, sharedB) == false) {
-	    System.out.println ("Failed exchange at iteration " + i + "\n");
-	    break;
-	}
-	
-	endTime = getCpuTime();
-	thistime = (endTime - startTime) / 1000;  // convert nanoseconds to microseconds
-	totalTime += thistime;
-	if (thistime > maxtime)
-	    maxtime = thistime;
-	if (thistime < mintime)
-	    mintime = thistime;
-      }
+    if (offHeap)
+      System.out.println (offHeapAgreement (kex) ? "Off-heap private keys successful\n"
+                                                 : "Off-heap private keys unsuccessful\n");
+
+
+    if (sessions)
+      System.out.println (sessionResumption (kex) ? "Session cache successful\n"
+                                                  : "Session cache unsuccessful\n");
+
+
+    if (deadlines)
+      System.out.println (deadlineShedding (kex) ? "Deadline shedding successful\n"
+                                                 : "Deadline shedding unsuccessful\n");
+
+
+    if (scheduling)
+      System.out.println (schedulerPriority (kex) ? "Scheduler priorities successful\n"
+                                                  : "Scheduler priorities unsuccessful\n");
+
+
+    if (scheduling)
+      System.out.println (schedulerMixedSets () ? "Mixed parameter set scheduling successful\n"
+                                                : "Mixed parameter set scheduling unsuccessful\n");
+
+
+    if (scheduling)
+      System.out.println (schedulerTenantWeights () ? "Tenant weighting successful\n"
+                                                    : "Tenant weighting unsuccessful\n");
+
+
+    if (sharedPool)
+      System.out.println (sharedKeyPool (kex) ? "Shared key pool successful\n"
+                                              : "Shared key pool unsuccessful\n");
+
+
+    if (stepping)
+      System.out.println (steppedOperations (kex) ? "Step-wise operations successful\n"
+                                                  : "Step-wise operations unsuccessful\n");
+
+
+    if (hybrid)
+      System.out.println (hybridAgreement (kex) ? "Hybrid X25519 agreement successful\n"
+                                                : "Hybrid X25519 agreement unsuccessful\n");
+
+
+    if (prepared)
+      System.out.println (preparedPeerKey (kex) ? "Prepared peer keys successful\n"
+                                                : "Prepared peer keys unsuccessful\n");
+
+
+    if (concurrency)
+      System.out.println (concurrentExchanges (new String[] { "sidhP434", "sidhP434" },
+                                               new String[] { FieldBackend.MONTGOMERY,
+                                                              FieldBackend.RADIX28 }, 4)
+                          ? "Concurrent field backends successful\n"
+                          : "Concurrent field backends unsuccessful\n");
+
 
-      System.out.println ("\nCPU time for " + iterations + " iterations: " + totalTime + " microseconds");
-      System.out.println ("Average = " + (totalTime / iterations) + " microseconds per iteration");
-      System.out.println ("Max = " + maxtime + " microseconds");
-      System.out.println ("Min = " + mintime + " microseconds\n");
+    if (concurrency)
+      System.out.println (concurrentExchanges (new String[] { "sidhP434", "sidhP751" },
+                                               new String[] { FieldBackend.defaultName (),
+                                                              FieldBackend.defaultName () }, 2)
+                          ? "Concurrent parameter sets successful\n"
+                          : "Concurrent parameter sets unsuccessful\n");
+
+
+    if (statistics)
+      System.out.println (baselineStatistics () ? "Baseline statistics successful\n"
+                                                : "Baseline statistics unsuccessful\n");
+
+
+    if (batch) {
+      if (batchOperations ("sidhP434") && batchOperations ("sidhP503") &&
+          batchOperations ("sidhP751"))
+        System.out.println ("Batched operations successful\n");
+      else
+        System.out.println ("Batched operations unsuccessful\n");
+    }
+
+
+    if (bulk)
+      System.out.println (bulkAgreement (kex) ? "Bulk processing successful\n"
+                                              : "Bulk processing unsuccessful\n");
+
+
+    if (jca) {
+      if (jcaAgreement ("sidhP434") && jcaAgreement ("sidhP503"))
+        System.out.println ("JCA provider agreement successful\n");
+      else
+        System.out.println ("JCA provider agreement unsuccessful\n");
+    }
+
+
+    if (allocation && SidhContext.ENABLED && !hasAllocationBudget (kex.getField()))
+      System.out.println ("Allocation budget not checked for the " + kex.getField().getName() +
+                          " field backend\n");
+    else if (allocation && SidhContext.ENABLED) {
+      // Also run with -XX:+UnlockExperimentalVMOptions -XX:+UseEpsilonGC, which never collects
+      keysA = kex.generateKeyPair (SidhKeyExchange.ALICE);
+      keysB = kex.generateKeyPair (SidhKeyExchange.BOB);
+      allocationPerOperation (kex, keysA, keysB, 10);
+      perOp = allocationPerOperation (kex, keysA, keysB, 10);
+
+      if (perOp < 0)
+        System.out.println ("Allocation counters unsupported, allocation budget not checked\n");
+      else if (perOp <= ALLOCATION_BUDGET)
+        System.out.println ("Allocation within budget: " + perOp + " bytes per operation\n");
+      else
+        System.out.println ("Allocation over budget: " + perOp + " bytes per operation\n");
+    }
+
+
+    if (timing) {
+      // Timing is done by the load tester; see SidhLoadTest for threads, mixes and output formats
+      SidhLoadTest load = new SidhLoadTest ();
+
+      System.out.println ("\nRunning timing tests");
+      load.parseArgs (new String[] { "-params", "sidhP503", "-duration", "5", "-warmup", "2",
+                                     "-mix", "exchange" });
+      load.run ();
+      System.out.print (load.report ());
     }
   }
   
-  public static void printByteArray (byte[] in) {
-    System.out.print ("0x");
-    for (int i = 0; i < in.length; i = i+2) 
-      System.out.printf ("%02x%02x ", in[i], in[i+1]);
+  static boolean rejectsUnreducedKey (SidhKeyExchange kex, SidhKeyValidator validator,
+                                     SidhPublicKey key) {
+    // A key whose first coordinate is p, the unreduced form of zero, is refused when decoded as
+    // well as by the validator
+
+    byte enc[] = key.serialize (), p[] = kex.getPrime().toByteArray();
+    int len = kex.getPrimeSize ();
+
+    Arrays.fill (enc, 0, len, (byte) 0);
+    System.arraycopy (p, Math.max (0, p.length - len), enc, len - Math.min (p.length, len),
+                      Math.min (p.length, len));
+    if (validator.isValid (SidhKeyExchange.ALICE, enc))
+      return false;
+
+    try {
+      new SidhPublicKey (enc, kex);
+      return false;
+    } catch (IllegalArgumentException ex) {
+      return true;
+    }
   }
 
 
-  public static long getCpuTime () {
-  // Get CPU Time in nanoseconds
+  static boolean offHeapAgreement (SidhKeyExchange kex) {
+    // Off-heap keys agree with their on-heap copies, serialize the same way, and are unusable
+    // once the arena is closed
+
+    SidhSecretArena arena = new SidhSecretArena (256);
+    SidhKeyPair keysA = kex.generateKeyPair (SidhKeyExchange.ALICE);
+    SidhPrivateKey privA, privB;
+    SidhPublicKey pubB;
+    boolean ok;
+
+    privA = new SidhPrivateKey (arena, keysA.getPrivateKey().serialize());
+    privB = new SidhPrivateKey (arena, SidhKeyExchange.BOB, kex.getOrderB(), new SecureRandom());
+    pubB = kex.generateKeyPair (SidhKeyExchange.BOB, privB).getPublicKey();
 
-    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
-    return bean.isCurrentThreadCpuTimeSupported()?
-      bean.getCurrentThreadCpuTime(): 0L;
+    ok = privA.privateKeyEquals (keysA.getPrivateKey()) &&
+         Arrays.equals (privA.serialize(), keysA.getPrivateKey().serialize()) &&
+         Arrays.equals (privB.serialize(), privB.getKey().toByteArray()) &&
+         privB.getKey().mod (BigInteger.valueOf (3)).signum() == 0 &&
+         Arrays.equals (kex.calculateAgreementA (privA, pubB),
+                        kex.calculateAgreementB (privB, keysA.getPublicKey()));
+
+    arena.close ();
+    try {
+      privA.serialize ();
+      ok = false;
+    } catch (IllegalStateException ex) {
+    }
+
+    return ok;
   }
 
 
-  public static long getUserTime () {
-  // Get User Time in nanoseconds
+  static boolean sessionResumption (SidhKeyExchange kex) {
+    // A repeat agreement is served from the cache until the local key is evicted, and is still
+    // reported to the metrics, as resumed
+
+    HistogramMetrics metrics = new HistogramMetrics ();
+    SidhMetrics previous = kex.getMetrics ();
+    SidhSessionCache cache = new SidhSessionCache (16);
+    SidhKeyPair keysA = kex.generateKeyPair (SidhKeyExchange.ALICE);
+    SidhKeyPair keysB = kex.generateKeyPair (SidhKeyExchange.BOB);
+    byte first[], second[];
+    boolean ok;
+
+    kex.setSessionCache (cache);
+    kex.setMetrics (metrics);
+    first = kex.calculateAgreementA (keysA.getPrivateKey(), keysB.getPublicKey());
+    second = kex.calculateAgreementA (keysA.getPrivateKey(), keysB.getPublicKey());
+    kex.setMetrics (previous);
+    kex.setSessionCache (null);
+
+    ok = Arrays.equals (first, second) && first != second && cache.getHits() == 1 &&
+         Arrays.equals (first, kex.calculateAgreementB (keysB.getPrivateKey(),
+                                                        keysA.getPublicKey()));
+    ok &= cache.evict (kex.getParameterID(), SidhKeyExchange.ALICE, keysA.getPrivateKey()) == 1 &&
+          cache.size() == 0;
+
+    for (HistogramMetrics.Snapshot s : metrics.snapshot ())
+      if (s.getOperation() == SidhMetrics.AGREEMENT && s.getParty() == SidhKeyExchange.ALICE)
+        ok &= s.getCount() == 2 && s.getResumed() == 1;
+
+    // An off-heap copy of the key finds the same entry
+    try (SidhSecretArena arena = new SidhSecretArena (64)) {
+      cache.put (kex.getParameterID(), SidhKeyExchange.ALICE, keysA.getPrivateKey(),
+                 keysB.getPublicKey(), first);
+      ok &= Arrays.equals (first, cache.get (kex.getParameterID(), SidhKeyExchange.ALICE,
+        new SidhPrivateKey (arena, keysA.getPrivateKey().serialize()), keysB.getPublicKey()));
+    }
+
+    // Expired entries go on the next put, not only when looked up
+    cache = new SidhSessionCache (16, 0, TimeUnit.SECONDS);
+    cache.put (kex.getParameterID(), SidhKeyExchange.ALICE, keysA.getPrivateKey(),
+               keysB.getPublicKey(), first);
+    cache.put (kex.getParameterID(), SidhKeyExchange.BOB, keysB.getPrivateKey(),
+               keysA.getPublicKey(), first);
+    ok &= cache.size() == 1;
+
+    return ok;
+  }
+
+
+  static boolean deadlineShedding (SidhKeyExchange kex) {
+    // Expired and cancelled operations are abandoned and counted; others complete as usual
+
+    HistogramMetrics metrics = new HistogramMetrics ();
+    SidhKeyPair keysA = kex.generateKeyPair (SidhKeyExchange.ALICE);
+    SidhKeyPair keysB = kex.generateKeyPair (SidhKeyExchange.BOB);
+    SidhDeadline cancelled = SidhDeadline.cancellable ();
+    long shed = 0;
+    boolean ok = true;
 
-    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
-    return bean.isCurrentThreadCpuTimeSupported()?
-      bean.getCurrentThreadUserTime(): 0L;
+    kex.setMetrics (metrics);
+    cancelled.cancel ();
+
+    try {
+      kex.calculateAgreementA (keysA.getPrivateKey(), keysB.getPublicKey(),
+                               SidhDeadline.after (0, TimeUnit.NANOSECONDS));
+      ok = false;
+    } catch (SidhCancelledException ex) {
+      ok &= ex.isDeadlineExpired ();
+    }
+
+    try {
+      kex.generateKeyPair (SidhKeyExchange.BOB, keysB.getPrivateKey(), cancelled);
+      ok = false;
+    } catch (SidhCancelledException ex) {
+      ok &= !ex.isDeadlineExpired ();
+    }
+
+    ok &= Arrays.equals (kex.calculateAgreementB (keysB.getPrivateKey(), keysA.getPublicKey(),
+                                                  SidhDeadline.after (1, TimeUnit.MINUTES)),
+                         kex.calculateAgreementA (keysA.getPrivateKey(), keysB.getPublicKey()));
+    kex.setMetrics (null);
+
+    for (HistogramMetrics.Snapshot s : metrics.snapshot())
+      shed += s.getShed();
+
+    return ok && shed == 2;
   }
 
 
-  public static long getSystemTime () {
-  // Get System Time in nanoseconds
+  static boolean steppedOperations (SidhKeyExchange kex) {
+    // Operations run in small steps give the same keys and secrets as the blocking calls, and an
+    // abandoned or failed one leaves nothing behind
+
+    SidhKeyPair keysA = kex.generateKeyPair (SidhKeyExchange.ALICE), keysB;
+    SidhKeyValidator validator;
+    SidhOperation op;
+    int steps = 0;
+    boolean ok;
+
+    op = kex.startKeyPair (SidhKeyExchange.BOB);
+    while (!op.step (20000))
+      steps++;
+    keysB = op.getKeyPair ();
+    ok = Arrays.equals (keysB.getPublicKey().serialize(),
+                        kex.generateKeyPair (SidhKeyExchange.BOB, keysB.getPrivateKey())
+                          .getPublicKey().serialize());
+
+    op = kex.startAgreementA (keysA.getPrivateKey(), keysB.getPublicKey());
+    while (!op.step (20000))
+      steps++;
+    ok &= Arrays.equals (op.getSharedSecret(),
+                         kex.calculateAgreementB (keysB.getPrivateKey(), keysA.getPublicKey()));
+
+    op = kex.startAgreementB (keysB.getPrivateKey(), keysA.getPublicKey());
+    op.step (20000);
+    op.close ();
+    try {
+      ok &= op.step (20000) && !SidhContext.ENABLED;      // the first step did everything
+    } catch (IllegalStateException ex) {
+      ok &= SidhContext.ENABLED;
+    }
+
+    // A first step that fails closes the operation
+    validator = kex.getKeyValidator ();
+    kex.setKeyValidator (new SidhKeyValidator (kex, 1));
+    op = kex.startAgreementA (keysA.getPrivateKey(), keysA.getPublicKey());
+    try {
+      op.step (20000);
+      ok = false;
+    } catch (IllegalArgumentException ex) {
+    } finally {
+      kex.setKeyValidator (validator);
+    }
+    try {
+      op.step (20000);
+      ok = false;
+    } catch (IllegalStateException ex) {
+    }
 
-    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
-    return bean.isCurrentThreadCpuTimeSupported()?
-      (bean.getCurrentThreadCpuTime() - bean.getCurrentThreadUserTime()): 0L;
+    return ok && (steps > 10 || !SidhContext.ENABLED);
+  }
+
+
+  static boolean hybridAgreement (SidhKeyExchange kex) {
+    // Both sides derive the same combined secret, and it changes with either leg's key
+
+    SidhHybridKeyExchange hybrid = new SidhHybridKeyExchange (kex);
+    SidhHybridKeyPair keysA = hybrid.generateKeyPair (SidhKeyExchange.ALICE);
+    SidhHybridKeyPair keysB = hybrid.generateKeyPair (SidhKeyExchange.BOB);
+    SidhHybridKeyPair otherB = hybrid.generateKeyPair (SidhKeyExchange.BOB);
+    byte secretA[], secretB[], mixed[];
+    boolean ok;
+
+    secretA = hybrid.calculateAgreement (keysA, keysB.getPublicKey());
+    secretB = hybrid.calculateAgreement (keysB, keysA.getPublicKey());
+    ok = secretA.length == SidhHybridKeyExchange.SECRET_LENGTH && Arrays.equals (secretA, secretB);
+
+    // B's X25519 key with another B's SIDH key
+    mixed = keysB.getPublicKey ();
+    System.arraycopy (otherB.getPublicKey(), SidhHybridKeyExchange.X25519_LENGTH, mixed,
+                      SidhHybridKeyExchange.X25519_LENGTH,
+                      mixed.length - SidhHybridKeyExchange.X25519_LENGTH);
+    ok &= !Arrays.equals (hybrid.calculateAgreement (keysA, mixed), secretA);
+
+    try {
+      hybrid.calculateAgreement (keysA, Arrays.copyOf (mixed, mixed.length - 1));
+      ok = false;
+    } catch (IllegalArgumentException ex) {
+    }
+
+    return ok;
+  }
+
+
+  static boolean preparedPeerKey (SidhKeyExchange kex) {
+    // Agreements against prepared static keys match the plain ones for either party, a key
+    // prepared for one party is refused by the other, and an invalid key cannot be prepared
+    // even without a validator
+
+    SidhKeyPair staticA = kex.generateKeyPair (SidhKeyExchange.ALICE);
+    SidhKeyPair staticB = kex.generateKeyPair (SidhKeyExchange.BOB);
+    SidhPreparedKey forA = kex.preparePeerKey (SidhKeyExchange.ALICE, staticB.getPublicKey());
+    SidhPreparedKey forB = kex.preparePeerKey (SidhKeyExchange.BOB, staticA.getPublicKey());
+    SidhKeyPair ephemeral;
+    boolean ok = true;
+
+    for (int i = 0; i < 2; i++) {
+      ephemeral = kex.generateKeyPair (SidhKeyExchange.ALICE);
+      ok &= Arrays.equals (kex.calculateAgreementA (ephemeral.getPrivateKey(), forA),
+                           kex.calculateAgreementB (staticB.getPrivateKey(),
+                                                    ephemeral.getPublicKey()));
+      ephemeral = kex.generateKeyPair (SidhKeyExchange.BOB);
+      ok &= Arrays.equals (kex.calculateAgreementB (ephemeral.getPrivateKey(), forB),
+                           kex.calculateAgreementA (staticA.getPrivateKey(),
+                                                    ephemeral.getPublicKey()));
+    }
+
+    try {
+      kex.calculateAgreementB (staticB.getPrivateKey(), forA);
+      ok = false;
+    } catch (IllegalArgumentException ex) {
+    }
+
+    try {
+      // B's key in place of A's: its points have the wrong order
+      kex.preparePeerKey (SidhKeyExchange.BOB, staticB.getPublicKey());
+      ok = false;
+    } catch (IllegalArgumentException ex) {
+    }
+
+    return ok;
+  }
+
+
+  static boolean schedulerPriority (SidhKeyExchange kex) throws InterruptedException {
+    // On a single worker, an interactive agreement overtakes background work queued before it,
+    // and a request already past its deadline is shed instead of run
+
+    SidhScheduler sched = new SidhScheduler (1);
+    SidhKeyPair keysA = kex.generateKeyPair (SidhKeyExchange.ALICE);
+    SidhKeyPair keysB = kex.generateKeyPair (SidhKeyExchange.BOB);
+    SidhMetrics previous = kex.getMetrics ();
+    List<String> order = Collections.synchronizedList (new ArrayList<String> ());
+    CompletableFuture<byte[]> interactive, late;
+    CompletableFuture<SidhKeyPair> bulkKey, background;
+    CompletableFuture<Void> running = new CompletableFuture<Void> ();
+    CompletableFuture<Void> queued = new CompletableFuture<Void> ();
+    boolean ok;
+
+    // The order is taken from metrics, which the worker reports as each request finishes.
+    // Callbacks on the futures could be registered too late under load. The bulk request holds
+    // the worker until the rest are queued, however late the worker thread starts.
+    kex.setMetrics ((op, id, aOrB, nanos) -> {
+      if (aOrB == SidhKeyExchange.ALICE)
+        order.add ((op == SidhMetrics.KEYGEN) ? "background" : "interactive");
+      else if (op == SidhMetrics.KEYGEN) {
+        running.complete (null);
+        queued.join ();
+      }
+    });
+
+    bulkKey = sched.generateKeyPair (SidhScheduler.BULK, "rotation", kex, SidhKeyExchange.BOB);
+    running.join ();
+    background = sched.generateKeyPair (SidhScheduler.BACKGROUND, "refill", kex,
+                                        SidhKeyExchange.ALICE);
+    interactive = sched.calculateAgreementA (SidhScheduler.INTERACTIVE, "client", kex,
+                                             keysA.getPrivateKey(), keysB.getPublicKey(), null);
+    late = sched.calculateAgreementB (SidhScheduler.INTERACTIVE, "client", kex,
+                                      keysB.getPrivateKey(), keysA.getPublicKey(),
+                                      SidhDeadline.after (0, TimeUnit.NANOSECONDS));
+    queued.complete (null);
+
+    try {
+      ok = Arrays.equals (interactive.get(), kex.calculateAgreementB (keysB.getPrivateKey(),
+                                                                      keysA.getPublicKey()));
+      bulkKey.get ();
+      background.get ();
+    } catch (ExecutionException ex) {
+      ok = false;
+    }
+
+    try {
+      late.get ();
+      ok = false;
+    } catch (ExecutionException ex) {
+      ok &= ex.getCause() instanceof SidhCancelledException;
+    }
+
+    sched.close ();
+    kex.setMetrics (previous);
+    return ok && order.indexOf ("interactive") < order.indexOf ("background");
+  }
+
+
+  static boolean schedulerMixedSets () throws InterruptedException {
+    // Requests for two parameter sets share the workers and all get the right secrets
+
+    SidhScheduler sched = new SidhScheduler (3);
+    SidhKeyExchange sets[] = { new SidhKeyExchange ("sidhP434"), new SidhKeyExchange ("sidhP751") };
+    List<CompletableFuture<byte[]>> results = new ArrayList<CompletableFuture<byte[]>> ();
+    List<byte[]> expected = new ArrayList<byte[]> ();
+    SidhKeyExchange kex;
+    SidhKeyPair keysA, keysB;
+    boolean ok = true;
+    int i;
+
+    for (i = 0; i < 6; i++) {
+      kex = sets[i % 2];
+      keysA = kex.generateKeyPair (SidhKeyExchange.ALICE);
+      keysB = kex.generateKeyPair (SidhKeyExchange.BOB);
+      results.add (sched.calculateAgreementA ((i < 2) ? SidhScheduler.INTERACTIVE
+                                                      : SidhScheduler.BULK,
+                                              kex.getParameterID (), kex, keysA.getPrivateKey(),
+                                              keysB.getPublicKey(), null));
+      expected.add (kex.calculateAgreementB (keysB.getPrivateKey(), keysA.getPublicKey()));
+    }
+
+    try {
+      for (i = 0; i < results.size (); i++)
+        ok &= Arrays.equals (results.get (i).get (), expected.get (i));
+    } catch (ExecutionException ex) {
+      ok = false;
+    }
+
+    sched.close ();
+    return ok;
+  }
+
+
+  static boolean schedulerTenantWeights () {
+    // Two bulk tenants with weights 3 and 1 that both keep the worker busy complete three
+    // requests to one: with everything queued at once, the first eight to finish are six and two
+
+    SidhScheduler sched = new SidhScheduler (1);
+    SidhKeyExchange kex = new SidhKeyExchange ("sidhP434");
+    List<String> order = Collections.synchronizedList (new ArrayList<String> ());
+    List<CompletableFuture<SidhKeyPair>> results = new ArrayList<CompletableFuture<SidhKeyPair>> ();
+    CompletableFuture<Void> running = new CompletableFuture<Void> ();
+    CompletableFuture<Void> queued = new CompletableFuture<Void> ();
+    int heavy = 0, i;
+
+    // The first request holds the worker until the rest are queued
+    kex.setMetrics ((op, id, aOrB, nanos) -> {
+      if (!running.isDone ()) {
+        running.complete (null);
+        queued.join ();
+      }
+    });
+
+    sched.setTenantWeight ("heavy", 3);
+    sched.setTenantWeight ("light", 1);
+    results.add (sched.generateKeyPair (SidhScheduler.BULK, "hold", kex, SidhKeyExchange.ALICE));
+    running.join ();
+
+    for (i = 0; i < 16; i++) {
+      final String tenant = (i % 2 == 0) ? "heavy" : "light";
+      results.add (sched.generateKeyPair (SidhScheduler.BULK, tenant, kex, SidhKeyExchange.ALICE)
+                     .whenComplete ((k, ex) -> order.add (tenant)));
+    }
+    queued.complete (null);
+
+    for (CompletableFuture<SidhKeyPair> f : results)
+      f.join ();
+    sched.close ();
+
+    for (i = 0; i < 8; i++)
+      if (order.get (i).equals ("heavy"))
+        heavy++;
+
+    return order.size () == 16 && heavy == 6;
+  }
+
+
+  static boolean concurrentExchanges (String sets[], String fields[], int rounds)
+    throws InterruptedException {
+    // Exchanges with different parameter sets or field backends, each on its own thread at the
+    // same time, all get matching secrets
+
+    Thread threads[] = new Thread[sets.length];
+    boolean ok[] = new boolean[sets.length], all = true;
+    int i;
+
+    for (i = 0; i < sets.length; i++) {
+      final int t = i;
+      threads[i] = new Thread (() -> ok[t] = exchanges (new SidhKeyExchange (sets[t], fields[t]),
+                                                        rounds));
+      threads[i].start ();
+    }
+
+    for (i = 0; i < sets.length; i++) {
+      threads[i].join ();
+      all &= ok[i];
+    }
+
+    return all;
+  }
+
+
+  static boolean exchanges (SidhKeyExchange kex, int rounds) {
+    SidhKeyPair keysA, keysB;
+    SidhPublicKey pubB;
+
+    try {
+      for (int i = 0; i < rounds; i++) {
+        keysA = kex.generateKeyPair (SidhKeyExchange.ALICE);
+        keysB = kex.generateKeyPair (SidhKeyExchange.BOB);
+        pubB = new SidhPublicKey (keysB.getPublicKey().serialize(), kex);
+        if (!Arrays.equals (kex.calculateAgreementA (keysA.getPrivateKey(), pubB),
+                            kex.calculateAgreementB (keysB.getPrivateKey(), keysA.getPublicKey())))
+          return false;
+      }
+    } catch (RuntimeException ex) {
+      return false;
+    }
+
+    return true;
+  }
+
+
+  static boolean sharedKeyPool (SidhKeyExchange kex) throws IOException {
+    // Pairs offered through one mapping come out of another intact, and their slots are wiped.
+    // Refilling a full pool generates nothing.
+
+    SidhMetrics previous = kex.getMetrics ();
+    AtomicInteger keygens = new AtomicInteger ();
+    Path file = Files.createTempFile ("sidhpool", ".keys");
+    SidhSharedKeyPool producer = SidhSharedKeyPool.create (file, kex, SidhKeyExchange.ALICE, 2);
+    SidhSharedKeyPool consumer = SidhSharedKeyPool.open (file, kex, SidhKeyExchange.ALICE);
+    SidhKeyPair keysB = kex.generateKeyPair (SidhKeyExchange.BOB), taken;
+    byte contents[];
+    boolean ok;
+
+    ok = producer.refill () == 2 && consumer.available () == 2;
+    kex.setMetrics ((op, id, aOrB, nanos) -> keygens.incrementAndGet ());
+    ok &= producer.refill () == 0 && keygens.get () == 0;
+    kex.setMetrics (previous);
+    for (int i = 0; i < 2; i++) {
+      taken = consumer.poll ();
+      ok &= taken != null &&
+            Arrays.equals (kex.calculateAgreementA (taken.getPrivateKey(), keysB.getPublicKey()),
+                           kex.calculateAgreementB (keysB.getPrivateKey(), taken.getPublicKey()));
+    }
+    ok &= consumer.poll () == null;
+
+    producer.close ();
+    consumer.close ();
+    contents = Files.readAllBytes (file);
+    for (int i = SidhSharedKeyPool.HEADER; i < contents.length; i++)
+      ok &= contents[i] == 0;
+    Files.delete (file);
+
+    return ok;
+  }
+
+
+  static boolean baselineStatistics () {
+    // The t-test behind the baseline gate against known Student's t tail probabilities, and
+    // Welch's degrees of freedom on a small sample
+
+    long base[] = { 1, 2, 3, 4, 5 }, cur[] = { 2, 4, 6, 8, 10 };
+    boolean ok;
+
+    ok = Math.abs (SidhBaseline.studentUpperTail (2.0, 10) - 0.0366940) < 1e-6 &&
+         Math.abs (SidhBaseline.studentUpperTail (-2.0, 10) - 0.9633060) < 1e-6 &&
+         Math.abs (SidhBaseline.studentUpperTail (2.042272, 30) - 0.0250000) < 1e-6 &&
+         Math.abs (SidhBaseline.studentUpperTail (1.0, 1) - 0.25) < 1e-9 &&
+         Math.abs (SidhBaseline.studentUpperTail (0.0, 7) - 0.5) < 1e-9 &&
+         Math.abs (SidhBaseline.logGamma (5) - Math.log (24)) < 1e-12;
+
+    // t = 3 / sqrt(2.5) with 5.88 degrees of freedom
+    ok &= Math.abs (SidhBaseline.welchUpperP (base, cur) - 0.0537656) < 1e-6 &&
+          Math.abs (SidhBaseline.welchUpperP (cur, base) - (1 - 0.0537656)) < 1e-6 &&
+          SidhBaseline.welchUpperP (base, base) == 0.5;
+
+    return ok;
+  }
+
+
+  static boolean batchOperations (String parameterID) {
+    // Public keys and secrets from the lanes match SidhKeyExchange for both parties. Five keys on
+    // four lanes leave a short second group, which is padded.
+
+    SidhKeyExchange kex = new SidhKeyExchange (parameterID);
+    SidhBatch batch = new SidhBatch (kex, 4);
+    SidhKeyPair keys[][] = new SidhKeyPair[2][5];
+    SidhPrivateKey priv[][] = new SidhPrivateKey[2][5];
+    SidhPublicKey pub[][] = new SidhPublicKey[2][5], batched[];
+    byte secretsA[][], secretsB[][];
+    boolean ok = true;
+    int i, p;
+
+    for (p = 0; p < 2; p++) {
+      for (i = 0; i < 5; i++) {
+        keys[p][i] = kex.generateKeyPair (p);
+        priv[p][i] = keys[p][i].getPrivateKey ();
+        pub[p][i] = keys[p][i].getPublicKey ();
+      }
+
+      batched = batch.genPubKeys (p, priv[p]);
+      for (i = 0; i < 5; i++)
+        ok &= Arrays.equals (batched[i].serialize(), pub[p][i].serialize());
+    }
+
+    secretsA = batch.calculateAgreementsA (priv[SidhKeyExchange.ALICE], pub[SidhKeyExchange.BOB]);
+    secretsB = batch.calculateAgreementsB (priv[SidhKeyExchange.BOB], pub[SidhKeyExchange.ALICE]);
+    for (i = 0; i < 5; i++) {
+      ok &= Arrays.equals (secretsA[i], kex.calculateAgreementA (priv[SidhKeyExchange.ALICE][i],
+                                                                 pub[SidhKeyExchange.BOB][i]));
+      ok &= Arrays.equals (secretsB[i], kex.calculateAgreementB (priv[SidhKeyExchange.BOB][i],
+                                                                 pub[SidhKeyExchange.ALICE][i]));
+      ok &= Arrays.equals (secretsA[i], secretsB[i]);
+    }
+
+    return ok;
+  }
+
+
+  static boolean bulkAgreement (SidhKeyExchange kex) throws IOException {
+    // Generate A's public keys from a file of scalars, then agree with each of them as B. The
+    // second run must resume entirely from its checkpoint, and a run on a changed input must not.
+
+    Path dir = Files.createTempDirectory ("sidhbulk");
+    Path scalars = dir.resolve ("scalars"), pubs = dir.resolve ("pubs");
+    Path keyB = dir.resolve ("keyB"), secrets = dir.resolve ("secrets");
+    Path cp = dir.resolve ("checkpoint");
+    SidhKeyPair keysB = kex.generateKeyPair (SidhKeyExchange.BOB);
+    int width = (kex.getOrderA().bitLength() + 7) / 8, n = 3, i;
+    byte in[] = new byte[n * width], rec[], out[], expect[];
+    SidhBulk job;
+    boolean ok = true;
+
+    new SecureRandom().nextBytes (in);
+    for (i = 0; i < n; i++)
+      in[i * width] &= 0x7f;
+    Files.write (scalars, in);
+    Files.write (keyB, keysB.getPrivateKey().serialize());
+
+    job = new SidhBulk ();
+    job.parseArgs (new String[] { "-op", "keygenA", "-in", scalars.toString(),
+                                  "-out", pubs.toString(), "-chunk", "2" });
+    job.run ();
+
+    for (i = 0; i < 2; i++) {
+      job = new SidhBulk ();
+      job.parseArgs (new String[] { "-op", "agreeB", "-in", pubs.toString(), "-key",
+                                    keyB.toString(), "-out", secrets.toString(), "-chunk", "2",
+                                    "-checkpoint", cp.toString() });
+      job.run ();
+      ok &= job.failures.get() == 0 && job.processed.get() == (i == 0 ? n : 0);
+    }
+
+    // The checkpoint does not carry over to a changed input
+    Files.setLastModifiedTime (pubs, FileTime.fromMillis (
+      Files.getLastModifiedTime (pubs).toMillis() + 1000));
+    job = new SidhBulk ();
+    job.parseArgs (new String[] { "-op", "agreeB", "-in", pubs.toString(), "-key",
+                                  keyB.toString(), "-out", secrets.toString(), "-chunk", "2",
+                                  "-checkpoint", cp.toString() });
+    try {
+      job.run ();
+      ok = false;
+    } catch (IllegalArgumentException ex) {
+    }
+
+    out = Files.readAllBytes (secrets);
+    for (i = 0; i < n; i++) {
+      rec = Arrays.copyOfRange (in, i * width, (i + 1) * width);
+      expect = kex.calculateAgreementA (new SidhPrivateKey (new BigInteger (1, rec)),
+                                        keysB.getPublicKey());
+      ok &= Arrays.equals (expect, Arrays.copyOfRange (out, i * expect.length,
+                                                       (i + 1) * expect.length));
+    }
+
+    for (Path f : new Path[] { scalars, pubs, keyB, secrets, cp })
+      Files.delete (f);
+    Files.delete (dir);
+
+    return ok;
+  }
+
+
+  static boolean jcaAgreement (String parameterID) throws GeneralSecurityException, IOException {
+    // Both parties through the provider, with B's public key sent through the key factory and
+    // A's through serialization. Private keys refuse to be serialized, and a key of the wrong
+    // type is rejected with InvalidKeyException.
+
+    SidhProvider provider = new SidhProvider ();
+    KeyPairGenerator kpg = KeyPairGenerator.getInstance ("SIDH", provider);
+    KeyFactory kf = KeyFactory.getInstance ("SIDH", provider);
+    KeyAgreement kaA = KeyAgreement.getInstance ("SIDH", provider);
+    KeyAgreement kaB = KeyAgreement.getInstance ("SIDH", provider);
+    SidhParameterSpec specB = new SidhParameterSpec (parameterID, SidhKeyExchange.BOB);
+    KeyPair pairA, pairB;
+    PublicKey received;
+
+    kpg.initialize (new SidhParameterSpec (parameterID, SidhKeyExchange.ALICE));
+    pairA = kpg.generateKeyPair ();
+    kpg.initialize (specB);
+    pairB = kpg.generateKeyPair ();
+
+    received = kf.generatePublic (new SidhPublicKeySpec (specB, pairB.getPublic().getEncoded()));
+
+    try {
+      kaB.init (pairB.getPublic(), specB, null);
+      return false;
+    } catch (InvalidKeyException ex) {
+    }
+
+    try {
+      serialCopy (pairB.getPrivate());
+      return false;
+    } catch (NotSerializableException ex) {
+    }
+
+    kaA.init (pairA.getPrivate());
+    kaA.doPhase (received, true);
+    kaB.init (pairB.getPrivate());
+    kaB.doPhase ((PublicKey) serialCopy (pairA.getPublic()), true);
+
+    return Arrays.equals (kaA.generateSecret(), kaB.generateSecret());
+  }
+
+
+  static Object serialCopy (Object o) throws IOException {
+    ByteArrayOutputStream buf = new ByteArrayOutputStream ();
+    ObjectOutputStream out = new ObjectOutputStream (buf);
+
+    out.writeObject (o);
+    out.close ();
+
+    try {
+      return new ObjectInputStream (new ByteArrayInputStream (buf.toByteArray ())).readObject ();
+    } catch (ClassNotFoundException ex) {
+      throw new IOException (ex);
+    }
+  }
+
+
+  static boolean hasAllocationBudget (FieldBackend f) {
+    return !f.getName().startsWith (FieldBackend.BIGINTEGER) &&
+           !f.getName().endsWith (FieldBackend.CHECK_SUFFIX);
+  }
+
+
+  static long allocationPerOperation (SidhKeyExchange kex, SidhKeyPair keysA, SidhKeyPair keysB,
+                                      int n) {
+    // Mean bytes allocated by this thread per key generation or agreement, or -1 if unknown
+
+    long ids[] = { Thread.currentThread().getId() }, before[], after[];
+
+    before = SidhLoadTest.allocatedBytes (ids);
+    if (before == null)
+      return -1;
+
+    for (int i = 0; i < n; i++) {
+      kex.generateKeyPair (SidhKeyExchange.ALICE, keysA.getPrivateKey());
+      kex.generateKeyPair (SidhKeyExchange.BOB, keysB.getPrivateKey());
+      kex.calculateAgreementA (keysA.getPrivateKey(), keysB.getPublicKey());
+      kex.calculateAgreementB (keysB.getPrivateKey(), keysA.getPublicKey());
+    }
+
+    after = SidhLoadTest.allocatedBytes (ids);
+    return (after[0] - before[0]) / (4 * n);
+  }
+
+
+  public static void printByteArray (byte[] in) {
+    System.out.print ("0x");
+    for (int i = 0; i < in.length; i = i+2) 
+      System.out.printf ("%02x%02x ", in[i], in[i+1]);
   }
 }